@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.google.protobuf.ByteString
+import io.prometheus.Payloads
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.common.GrpcObjects.toScrapeResponse
+import io.prometheus.common.GzipPool
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.update
+import io.prometheus.grpc.ChunkData
+import io.prometheus.grpc.ScrapeResponse
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.TimeUnit
+import java.util.zip.CRC32
+
+// Compares the copying payload handling that ByteArray content required with the wrapped and rope
+// ByteStrings used now. Run with the gc profiler to see gc.alloc.rate.norm, the bytes allocated per call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class AllocationBenchmark {
+  @Param("10000", "100000")
+  var seriesCount = 0
+
+  @Param("32")
+  var chunkSizeKbs = 0
+
+  private var chunkSize = 0
+  private lateinit var zippedArray: ByteArray
+  private lateinit var zippedResults: ScrapeResults
+  private lateinit var chunks: List<ChunkData>
+
+  @Setup
+  fun setUp() {
+    chunkSize = chunkSizeKbs * 1024
+    val zipped = GzipPool.gzip(Payloads.exposition(seriesCount))
+    zippedArray = zipped.toByteArray()
+    zippedResults =
+        ScrapeResults(agentId = "1", scrapeId = 2, validResponse = true, zipped = true, contentAsZipped = zipped)
+    chunks = viewChunks(zipped)
+  }
+
+  // Before: the ByteArray content was copied into the response
+  @Benchmark
+  fun copiedScrapeResponse(): ScrapeResponse =
+      zippedResults.toScrapeResponse().toBuilder().setContentAsZipped(ByteString.copyFrom(zippedArray)).build()
+
+  @Benchmark
+  fun wrappedScrapeResponse(): ScrapeResponse = zippedResults.toScrapeResponse()
+
+  // Before: each chunk was read into a reused buffer and then copied into a ByteString
+  @Benchmark
+  fun copiedChunks(bh: Blackhole) {
+    val checksum = CRC32()
+    val bais = ByteArrayInputStream(zippedArray)
+    val buffer = ByteArray(chunkSize)
+    var chunkCount = 0
+    var readByteCount: Int
+    while (bais.read(buffer).also { readByteCount = it } > 0) {
+      checksum.update(buffer, 0, buffer.size)
+      bh.consume(newScrapeResponseChunk(2, ++chunkCount, readByteCount, checksum.value, ByteString.copyFrom(buffer)))
+    }
+  }
+
+  @Benchmark
+  fun substringChunks(bh: Blackhole) {
+    val zipped = zippedResults.contentAsZipped
+    val checksum = CRC32()
+    var chunkCount = 0
+    var byteCount = 0
+    while (byteCount < zipped.size()) {
+      val chunkBytes = zipped.substring(byteCount, minOf(byteCount + chunkSize, zipped.size()))
+      byteCount += chunkBytes.size()
+      checksum.update(chunkBytes)
+      bh.consume(newScrapeResponseChunk(2, ++chunkCount, chunkBytes.size(), checksum.value, chunkBytes))
+    }
+  }
+
+  // Before: the proxy copied every chunk into a ByteArrayOutputStream and then copied out its array
+  @Benchmark
+  fun copiedReassembly(): ByteArray =
+      ByteArrayOutputStream().run {
+        chunks.forEach { chunk -> chunk.chunkBytes.writeTo(this) }
+        toByteArray()
+      }
+
+  @Benchmark
+  fun ropeReassembly(): ByteString = ByteString.copyFrom(chunks.map { it.chunkBytes })
+
+  private fun viewChunks(zipped: ByteString) =
+      (0 until (zipped.size() + chunkSize - 1) / chunkSize).map { i ->
+        val chunkBytes = zipped.substring(i * chunkSize, minOf((i + 1) * chunkSize, zipped.size()))
+        newScrapeResponseChunk(2, i + 1, chunkBytes.size(), 0L, chunkBytes).chunk
+      }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import io.prometheus.Proxy
+import io.prometheus.proxy.ProxyOptions
+
+// A proxy that is never started, for the classes that need one for their config.
+// Metrics are disabled, so the benchmarks measure the classes and not the collectors.
+object BenchmarkProxy {
+  val proxy by lazy { Proxy(options = ProxyOptions(listOf("-Dproxy.metrics.enabled=false")), testMode = true) }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.google.protobuf.ByteString
+import io.prometheus.Payloads
+import io.prometheus.common.Checksums.checksChunks
+import io.prometheus.common.Checksums.newChecksum
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.GrpcObjects.toScrapeResponseHeader
+import io.prometheus.common.GzipPool
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.update
+import io.prometheus.grpc.ChunkData
+import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.IntegrityMode
+import io.prometheus.grpc.SummaryData
+import io.prometheus.proxy.ChunkedContext
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+// Reassembly of a zipped scrape on the proxy, as done for each chunked response
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ChunkedContextBenchmark {
+  @Param("10000", "100000")
+  var seriesCount = 0
+
+  @Param("8", "32", "1024")
+  var chunkSizeKbs = 0
+
+  @Param("CRC32", "CRC32C", "NONE")
+  var integrityMode = ""
+
+  private lateinit var header: ChunkedScrapeResponse
+  private lateinit var chunks: List<ChunkData>
+  private lateinit var summary: SummaryData
+
+  @Setup
+  fun setUp() {
+    val mode = IntegrityMode.valueOf(integrityMode)
+    val chunkSize = chunkSizeKbs * 1024
+    val zipped = GzipPool.gzip(Payloads.exposition(seriesCount))
+    val chunkCount = (zipped.size() + chunkSize - 1) / chunkSize
+    val checksum = newChecksum(mode)
+
+    header =
+        ScrapeResults(agentId = "1", scrapeId = 2, validResponse = true, zipped = true, contentAsZipped = zipped)
+            .toScrapeResponseHeader(chunkCount, mode)
+    chunks =
+        (0 until chunkCount).map { i ->
+          val chunkBytes = zipped.substring(i * chunkSize, minOf((i + 1) * chunkSize, zipped.size()))
+          checksum.update(chunkBytes)
+          val chunkChecksum = if (mode.checksChunks) checksum.value else 0L
+          newScrapeResponseChunk(2, i + 1, chunkBytes.size(), chunkChecksum, chunkBytes).chunk
+        }
+    summary = newScrapeResponseSummary(2, chunkCount, zipped.size(), checksum.value).summary
+  }
+
+  @Benchmark
+  fun reassemble(): ByteString =
+      ChunkedContext(header).run {
+        chunks.forEach { applyChunk(it.chunkBytes, it.chunkByteCount, it.chunkCount, it.chunkChecksum) }
+        applySummary(summary.summaryChunkCount, summary.summaryByteCount, summary.summaryChecksum)
+        scrapeResults.contentAsZipped
+      }
+}
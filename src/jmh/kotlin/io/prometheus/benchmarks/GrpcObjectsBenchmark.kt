@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.google.protobuf.ByteString
+import io.prometheus.Payloads
+import io.prometheus.common.GrpcObjects.newScrapeRequest
+import io.prometheus.common.GrpcObjects.toScrapeResponse
+import io.prometheus.common.GrpcObjects.toScrapeResponseHeader
+import io.prometheus.common.GrpcObjects.toScrapeResults
+import io.prometheus.common.GzipPool
+import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.IntegrityMode
+import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.grpc.ScrapeResponse
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class GrpcObjectsBenchmark {
+  @Param("100", "10000")
+  var seriesCount = 0
+
+  private lateinit var textResults: ScrapeResults
+  private lateinit var zippedResults: ScrapeResults
+  private lateinit var textResponse: ScrapeResponse
+  private lateinit var zippedResponse: ScrapeResponse
+
+  @Setup
+  fun setUp() {
+    val content = Payloads.exposition(seriesCount)
+    textResults = newResults(false, content, ByteString.EMPTY)
+    zippedResults = newResults(true, "", GzipPool.gzip(content))
+    textResponse = textResults.toScrapeResponse()
+    zippedResponse = zippedResults.toScrapeResponse()
+  }
+
+  @Benchmark
+  fun newScrapeRequest(): ScrapeRequest = newScrapeRequest("1", 2, "metrics", "text/plain", false)
+
+  @Benchmark
+  fun textToScrapeResponse(): ScrapeResponse = textResults.toScrapeResponse()
+
+  @Benchmark
+  fun zippedToScrapeResponse(): ScrapeResponse = zippedResults.toScrapeResponse()
+
+  @Benchmark
+  fun zippedToScrapeResponseHeader(): ChunkedScrapeResponse =
+      zippedResults.toScrapeResponseHeader(16, IntegrityMode.CRC32)
+
+  @Benchmark
+  fun textToScrapeResults(): ScrapeResults = textResponse.toScrapeResults()
+
+  @Benchmark
+  fun zippedToScrapeResults(): ScrapeResults = zippedResponse.toScrapeResults()
+
+  // Serialization is the cost the gRPC marshaller adds to every response
+  @Benchmark
+  fun zippedResponseToByteString(): ByteString = zippedResponse.toByteString()
+
+  private fun newResults(zipped: Boolean, text: String, bytes: ByteString) =
+      ScrapeResults(agentId = "1",
+                    scrapeId = 2,
+                    validResponse = true,
+                    statusCode = 200,
+                    contentType = "text/plain; version=0.0.4",
+                    zipped = zipped,
+                    contentAsText = text,
+                    contentAsZipped = bytes,
+                    url = "http://localhost:9100/metrics")
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ProxyPathManager
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Group
+import org.openjdk.jmh.annotations.GroupThreads
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+
+// Every proxied scrape looks up its path, while agents add paths as they connect
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ProxyPathManagerBenchmark {
+  @Param("100", "10000")
+  var pathCount = 0
+
+  private lateinit var pathManager: ProxyPathManager
+  private lateinit var paths: Array<String>
+  private lateinit var agentContext: AgentContext
+
+  @Setup
+  fun setUp() {
+    val proxy = BenchmarkProxy.proxy
+    agentContext = AgentContext("localhost", proxy.schedulingPolicy)
+    pathManager = ProxyPathManager(true)
+    paths = Array(pathCount) { "metrics_$it" }
+    paths.forEach { pathManager.addPath(it, agentContext) }
+  }
+
+  private fun randomPath() = paths[ThreadLocalRandom.current().nextInt(paths.size)]
+
+  @Benchmark
+  @Threads(4)
+  fun lookup(): AgentContext? = pathManager[randomPath()]
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  fun contendedLookup(): AgentContext? = pathManager[randomPath()]
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  fun contendedAdd() = pathManager.addPath(randomPath(), agentContext)
+}
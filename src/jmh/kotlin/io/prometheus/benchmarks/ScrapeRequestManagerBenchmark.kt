@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import io.prometheus.common.ScrapeResults
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ScrapeRequestManager
+import io.prometheus.proxy.ScrapeRequestWrapper
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import java.util.concurrent.TimeUnit
+
+// The life of a scrape request in the proxy's map, from its submission to its results arriving
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ScrapeRequestManagerBenchmark {
+  private lateinit var scrapeRequestManager: ScrapeRequestManager
+  private lateinit var agentContext: AgentContext
+
+  @Setup
+  fun setUp() {
+    scrapeRequestManager = ScrapeRequestManager()
+    agentContext = AgentContext("localhost", BenchmarkProxy.proxy.schedulingPolicy)
+  }
+
+  private fun addAssignRemove(): ScrapeRequestWrapper? {
+    val wrapper = ScrapeRequestWrapper(BenchmarkProxy.proxy, "metrics", agentContext, null, false)
+    val scrapeId = wrapper.scrapeId
+    scrapeRequestManager.addToScrapeRequestMap(wrapper)
+    scrapeRequestManager.assignScrapeResults(ScrapeResults(agentId = agentContext.agentId, scrapeId = scrapeId))
+    return scrapeRequestManager.removeFromScrapeRequestMap(scrapeId)
+  }
+
+  @Benchmark
+  fun singleThreaded() = addAssignRemove()
+
+  @Benchmark
+  @Threads(8)
+  fun contended() = addAssignRemove()
+}
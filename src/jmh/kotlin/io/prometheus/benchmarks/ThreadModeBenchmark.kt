@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.github.pambrose.common.dsl.KtorDsl.get
+import com.github.pambrose.common.dsl.KtorDsl.http
+import com.github.pambrose.common.dsl.KtorDsl.newHttpClient
+import io.ktor.application.call
+import io.ktor.client.HttpClient
+import io.ktor.client.response.readText
+import io.ktor.http.ContentType.Text
+import io.ktor.response.respondText
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.ApplicationEngine
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.Agent
+import io.prometheus.Proxy
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.fixUrl
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import mu.KLogging
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import java.lang.management.ManagementFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.seconds
+
+// Compares platform and virtual thread execution with many agents and paths on one in-process proxy.
+// The score is scrapes/sec, and the peak thread count and failed scrapes of each mode are logged at teardown.
+// Virtual threads need a JVM that has them, or the mode logs a warning and runs on platform threads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+open class ThreadModeBenchmark {
+  @Param("default", "virtual")
+  var executorType = ""
+
+  private val threadBean = ManagementFactory.getThreadMXBean()
+  private val failures = AtomicInteger(0)
+  private lateinit var exporter: ApplicationEngine
+  private lateinit var proxy: Proxy
+  private lateinit var agents: List<Agent>
+  private lateinit var paths: List<String>
+  private lateinit var httpClient: HttpClient
+
+  @Setup(Level.Trial)
+  fun setUp() {
+    CollectorRegistry.defaultRegistry.clear()
+    exporter =
+        embeddedServer(CIO, port = EXPORTER_PORT) {
+          routing {
+            get("/metrics") {
+              call.respondText("benchmark_value 1\n".repeat(100), Text.Plain)
+            }
+          }
+        }.apply { start() }
+
+    val serverName = "benchmark-$executorType"
+    proxy = startProxy(serverName, argv = listOf("-Dproxy.transport.executorType=$executorType"))
+    agents =
+        List(AGENT_COUNT) {
+          startAgent(serverName = serverName,
+                     argv = listOf("-Dagent.transport.executorType=$executorType",
+                                   "-Dagent.transport.virtualScrapesEnabled=${executorType == "virtual"}"))
+        }
+    paths =
+        agents.mapIndexed { i, agent ->
+          agent.awaitInitialConnection(30.seconds)
+          List(PATHS_PER_AGENT) { j ->
+            "bench-$i-$j".also { agent.pathManager.registerPath(it, "$EXPORTER_PORT/metrics".fixUrl()) }
+          }
+        }.flatten()
+
+    httpClient = newHttpClient()
+    threadBean.resetPeakThreadCount()
+  }
+
+  @TearDown(Level.Trial)
+  fun tearDown() {
+    logger.info { "$executorType: peak threads: ${threadBean.peakThreadCount}, failures: ${failures.get()}" }
+    httpClient.close()
+    agents.forEach { it.stopSync() }
+    proxy.stopSync()
+    exporter.stop(1, 1, SECONDS)
+  }
+
+  // Each worker issues its share of the scrapes back to back
+  @Benchmark
+  @OperationsPerInvocation(SCRAPE_COUNT)
+  fun scrapes() =
+      runBlocking {
+        coroutineScope {
+          repeat(CONCURRENCY) { worker ->
+            launch(Dispatchers.Default) {
+              for (cnt in worker until SCRAPE_COUNT step CONCURRENCY) {
+                try {
+                  http(httpClient) {
+                    get("$PROXY_PORT/${paths[cnt % paths.size]}".fixUrl()) { response ->
+                      if (response.readText().isEmpty())
+                        failures.incrementAndGet()
+                    }
+                  }
+                } catch (e: Exception) {
+                  failures.incrementAndGet()
+                }
+              }
+            }
+          }
+        }
+      }
+
+  companion object : KLogging() {
+    private const val EXPORTER_PORT = 12100
+    private const val AGENT_COUNT = 20
+    private const val PATHS_PER_AGENT = 10
+    private const val SCRAPE_COUNT = 1000
+    private const val CONCURRENCY = 200
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.github.pambrose.common.util.zip
+import com.google.protobuf.ByteString
+import io.prometheus.Payloads
+import io.prometheus.common.GzipPool
+import io.prometheus.common.unzip
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+// The agent zips each scrape and the proxy unzips it, so both sides of the exchange are measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class ZipBenchmark {
+  @Param("1000", "10000", "100000")
+  var seriesCount = 0
+
+  @Param("1", "6")
+  var gzipLevel = 0
+
+  private lateinit var content: String
+  private lateinit var zipped: ByteString
+
+  @Setup
+  fun setUp() {
+    content = Payloads.exposition(seriesCount)
+    zipped = GzipPool.gzip(content, gzipLevel)
+  }
+
+  @Benchmark
+  fun pooledGzip(): ByteString = GzipPool.gzip(content, gzipLevel)
+
+  // The unpooled GZIPOutputStream path the agent used before GzipPool, as a baseline
+  @Benchmark
+  fun streamGzip(): ByteArray = content.zip()
+
+  @Benchmark
+  fun unzip(): String = zipped.unzip()
+}
@@ -15,25 +15,51 @@ public class ConfigVals {
   }
 
   public static class Agent {
+    public final boolean adaptiveChunkSizeEnabled;
+    public final double adaptiveGzipMaxRatio;
     public final Agent.Admin admin;
     public final int chunkContentSizeKbs;
+    public final java.lang.String chunkIntegrityMode;
+    public final int circuitBreakerFailureThreshold;
+    public final int circuitBreakerOpenSecs;
+    public final java.lang.String contentCodec;
+    public final int gzipLevel;
     public final Agent.Internal internal;
+    public final int maxChunkContentSizeKbs;
+    public final int maxScrapeSizeBytes;
     public final Agent.Metrics metrics;
+    public final int minChunkContentSizeKbs;
     public final int minGzipSizeBytes;
     public final java.lang.String name;
     public final java.util.List<Agent.PathConfigs$Elm> pathConfigs;
     public final Agent.Proxy proxy;
+    public final java.lang.String spillDirectory;
+    public final int spillThresholdBytes;
     public final Agent.Tls tls;
+    public final Agent.Transport transport;
     public Agent(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+      this.adaptiveChunkSizeEnabled = c.hasPathOrNull("adaptiveChunkSizeEnabled") && c.getBoolean("adaptiveChunkSizeEnabled");
+      this.adaptiveGzipMaxRatio = c.hasPathOrNull("adaptiveGzipMaxRatio") ? c.getDouble("adaptiveGzipMaxRatio") : 0.9;
       this.admin = c.hasPathOrNull("admin") ? new Agent.Admin(c.getConfig("admin"), parentPath + "admin.", $tsCfgValidator) : new Agent.Admin(com.typesafe.config.ConfigFactory.parseString("admin{}"), parentPath + "admin.", $tsCfgValidator);
       this.chunkContentSizeKbs = c.hasPathOrNull("chunkContentSizeKbs") ? c.getInt("chunkContentSizeKbs") : 32;
+      this.chunkIntegrityMode = c.hasPathOrNull("chunkIntegrityMode") ? c.getString("chunkIntegrityMode") : "CRC32";
+      this.circuitBreakerFailureThreshold = c.hasPathOrNull("circuitBreakerFailureThreshold") ? c.getInt("circuitBreakerFailureThreshold") : -1;
+      this.circuitBreakerOpenSecs = c.hasPathOrNull("circuitBreakerOpenSecs") ? c.getInt("circuitBreakerOpenSecs") : 30;
+      this.contentCodec = c.hasPathOrNull("contentCodec") ? c.getString("contentCodec") : "gzip";
+      this.gzipLevel = c.hasPathOrNull("gzipLevel") ? c.getInt("gzipLevel") : -1;
       this.internal = c.hasPathOrNull("internal") ? new Agent.Internal(c.getConfig("internal"), parentPath + "internal.", $tsCfgValidator) : new Agent.Internal(com.typesafe.config.ConfigFactory.parseString("internal{}"), parentPath + "internal.", $tsCfgValidator);
+      this.maxChunkContentSizeKbs = c.hasPathOrNull("maxChunkContentSizeKbs") ? c.getInt("maxChunkContentSizeKbs") : 1024;
+      this.maxScrapeSizeBytes = c.hasPathOrNull("maxScrapeSizeBytes") ? c.getInt("maxScrapeSizeBytes") : -1;
       this.metrics = c.hasPathOrNull("metrics") ? new Agent.Metrics(c.getConfig("metrics"), parentPath + "metrics.", $tsCfgValidator) : new Agent.Metrics(com.typesafe.config.ConfigFactory.parseString("metrics{}"), parentPath + "metrics.", $tsCfgValidator);
+      this.minChunkContentSizeKbs = c.hasPathOrNull("minChunkContentSizeKbs") ? c.getInt("minChunkContentSizeKbs") : 8;
       this.minGzipSizeBytes = c.hasPathOrNull("minGzipSizeBytes") ? c.getInt("minGzipSizeBytes") : 512;
       this.name = c.hasPathOrNull("name") ? c.getString("name") : "";
       this.pathConfigs = $_LAgent_PathConfigs$Elm(c.getList("pathConfigs"), parentPath, $tsCfgValidator);
       this.proxy = c.hasPathOrNull("proxy") ? new Agent.Proxy(c.getConfig("proxy"), parentPath + "proxy.", $tsCfgValidator) : new Agent.Proxy(com.typesafe.config.ConfigFactory.parseString("proxy{}"), parentPath + "proxy.", $tsCfgValidator);
+      this.spillDirectory = c.hasPathOrNull("spillDirectory") ? c.getString("spillDirectory") : "";
+      this.spillThresholdBytes = c.hasPathOrNull("spillThresholdBytes") ? c.getInt("spillThresholdBytes") : 16777216;
       this.tls = c.hasPathOrNull("tls") ? new Agent.Tls(c.getConfig("tls"), parentPath + "tls.", $tsCfgValidator) : new Agent.Tls(com.typesafe.config.ConfigFactory.parseString("tls{}"), parentPath + "tls.", $tsCfgValidator);
+      this.transport = c.hasPathOrNull("transport") ? new Agent.Transport(c.getConfig("transport"), parentPath + "transport.", $tsCfgValidator) : new Agent.Transport(com.typesafe.config.ConfigFactory.parseString("transport{}"), parentPath + "transport.", $tsCfgValidator);
     }
 
     private static java.util.List<Agent.PathConfigs$Elm> $_LAgent_PathConfigs$Elm(com.typesafe.config.ConfigList cl, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
@@ -70,6 +96,7 @@ public class ConfigVals {
       public final int heartbeatMaxInactivitySecs;
       public final int reconnectPauseSecs;
       public final int scrapeRequestBacklogUnhealthySize;
+      public final boolean scrapeStreamEnabled;
       public final Internal.Zipkin zipkin;
       public static class Zipkin {
         public final boolean enabled;
@@ -95,6 +122,7 @@ public class ConfigVals {
         this.heartbeatMaxInactivitySecs = c.hasPathOrNull("heartbeatMaxInactivitySecs") ? c.getInt("heartbeatMaxInactivitySecs") : 5;
         this.reconnectPauseSecs = c.hasPathOrNull("reconnectPauseSecs") ? c.getInt("reconnectPauseSecs") : 3;
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
+        this.scrapeStreamEnabled = c.hasPathOrNull("scrapeStreamEnabled") && c.getBoolean("scrapeStreamEnabled");
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal.Zipkin(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal.Zipkin(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
       }
     }
@@ -104,6 +132,9 @@ public class ConfigVals {
       public final boolean enabled;
       public final boolean garbageCollectorExportsEnabled;
       public final Metrics.Grpc grpc;
+      public final java.util.List<java.lang.Double> latencyBuckets;
+      public final boolean latencyPathGroupsEnabled;
+      public final int maxLatencyPathGroups;
       public final boolean memoryPoolsExportsEnabled;
       public final java.lang.String path;
       public final int port;
@@ -125,6 +156,9 @@ public class ConfigVals {
         this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
         this.garbageCollectorExportsEnabled = c.hasPathOrNull("garbageCollectorExportsEnabled") && c.getBoolean("garbageCollectorExportsEnabled");
         this.grpc = c.hasPathOrNull("grpc") ? new Metrics.Grpc(c.getConfig("grpc"), parentPath + "grpc.", $tsCfgValidator) : new Metrics.Grpc(com.typesafe.config.ConfigFactory.parseString("grpc{}"), parentPath + "grpc.", $tsCfgValidator);
+        this.latencyBuckets = c.hasPathOrNull("latencyBuckets") ? $_L$dbl(c.getList("latencyBuckets"), parentPath, $tsCfgValidator) : null;
+        this.latencyPathGroupsEnabled = c.hasPathOrNull("latencyPathGroupsEnabled") && c.getBoolean("latencyPathGroupsEnabled");
+        this.maxLatencyPathGroups = c.hasPathOrNull("maxLatencyPathGroups") ? c.getInt("maxLatencyPathGroups") : 50;
         this.memoryPoolsExportsEnabled = c.hasPathOrNull("memoryPoolsExportsEnabled") && c.getBoolean("memoryPoolsExportsEnabled");
         this.path = c.hasPathOrNull("path") ? c.getString("path") : "metrics";
         this.port = c.hasPathOrNull("port") ? c.getInt("port") : 8083;
@@ -135,11 +169,17 @@ public class ConfigVals {
     }
 
     public static class PathConfigs$Elm {
+      public final java.lang.String contentCodec;
+      public final int gzipLevel;
+      public final int minGzipSizeBytes;
       public final java.lang.String name;
       public final java.lang.String path;
       public final java.lang.String url;
 
       public PathConfigs$Elm(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.contentCodec = c.hasPathOrNull("contentCodec") ? c.getString("contentCodec") : null;
+        this.gzipLevel = c.hasPathOrNull("gzipLevel") ? c.getInt("gzipLevel") : -1;
+        this.minGzipSizeBytes = c.hasPathOrNull("minGzipSizeBytes") ? c.getInt("minGzipSizeBytes") : -1;
         this.name = $_reqStr(parentPath, c, "name", $tsCfgValidator);
         this.path = $_reqStr(parentPath, c, "path", $tsCfgValidator);
         this.url = $_reqStr(parentPath, c, "url", $tsCfgValidator);
@@ -180,28 +220,66 @@ public class ConfigVals {
         this.trustCertCollectionFilePath = c.hasPathOrNull("trustCertCollectionFilePath") ? c.getString("trustCertCollectionFilePath") : "";
       }
     }
+
+    public static class Transport {
+      public final int channelCount;
+      public final java.lang.String compression;
+      public final boolean epollEnabled;
+      public final int executorThreads;
+      public final java.lang.String executorType;
+      public final int flowControlWindowBytes;
+      public final int keepAliveTimeSecs;
+      public final int keepAliveTimeoutSecs;
+      public final boolean keepAliveWithoutCalls;
+      public final boolean virtualScrapesEnabled;
+      public final int workerThreads;
+
+      public Transport(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.channelCount = c.hasPathOrNull("channelCount") ? c.getInt("channelCount") : 1;
+        this.compression = c.hasPathOrNull("compression") ? c.getString("compression") : "none";
+        this.epollEnabled = c.hasPathOrNull("epollEnabled") && c.getBoolean("epollEnabled");
+        this.executorThreads = c.hasPathOrNull("executorThreads") ? c.getInt("executorThreads") : -1;
+        this.executorType = c.hasPathOrNull("executorType") ? c.getString("executorType") : "default";
+        this.flowControlWindowBytes = c.hasPathOrNull("flowControlWindowBytes") ? c.getInt("flowControlWindowBytes") : -1;
+        this.keepAliveTimeSecs = c.hasPathOrNull("keepAliveTimeSecs") ? c.getInt("keepAliveTimeSecs") : -1;
+        this.keepAliveTimeoutSecs = c.hasPathOrNull("keepAliveTimeoutSecs") ? c.getInt("keepAliveTimeoutSecs") : -1;
+        this.keepAliveWithoutCalls = c.hasPathOrNull("keepAliveWithoutCalls") && c.getBoolean("keepAliveWithoutCalls");
+        this.virtualScrapesEnabled = c.hasPathOrNull("virtualScrapesEnabled") && c.getBoolean("virtualScrapesEnabled");
+        this.workerThreads = c.hasPathOrNull("workerThreads") ? c.getInt("workerThreads") : -1;
+      }
+    }
   }
 
   public static class Proxy2 {
     public final Proxy2.Admin2 admin;
     public final Proxy2.Agent2 agent;
+    public final Proxy2.Cluster cluster;
     public final Proxy2.Http http;
     public final Proxy2.Internal2 internal;
     public final Proxy2.Metrics2 metrics;
+    public final Proxy2.Scheduling scheduling;
     public final Proxy2.Tls2 tls;
+    public final Proxy2.Transport2 transport;
     public Proxy2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
       this.admin = c.hasPathOrNull("admin") ? new Proxy2.Admin2(c.getConfig("admin"), parentPath + "admin.", $tsCfgValidator) : new Proxy2.Admin2(com.typesafe.config.ConfigFactory.parseString("admin{}"), parentPath + "admin.", $tsCfgValidator);
       this.agent = c.hasPathOrNull("agent") ? new Proxy2.Agent2(c.getConfig("agent"), parentPath + "agent.", $tsCfgValidator) : new Proxy2.Agent2(com.typesafe.config.ConfigFactory.parseString("agent{}"), parentPath + "agent.", $tsCfgValidator);
+      this.cluster = c.hasPathOrNull("cluster") ? new Proxy2.Cluster(c.getConfig("cluster"), parentPath + "cluster.", $tsCfgValidator) : new Proxy2.Cluster(com.typesafe.config.ConfigFactory.parseString("cluster{}"), parentPath + "cluster.", $tsCfgValidator);
       this.http = c.hasPathOrNull("http") ? new Proxy2.Http(c.getConfig("http"), parentPath + "http.", $tsCfgValidator) : new Proxy2.Http(com.typesafe.config.ConfigFactory.parseString("http{}"), parentPath + "http.", $tsCfgValidator);
       this.internal = c.hasPathOrNull("internal") ? new Proxy2.Internal2(c.getConfig("internal"), parentPath + "internal.", $tsCfgValidator) : new Proxy2.Internal2(com.typesafe.config.ConfigFactory.parseString("internal{}"), parentPath + "internal.", $tsCfgValidator);
       this.metrics = c.hasPathOrNull("metrics") ? new Proxy2.Metrics2(c.getConfig("metrics"), parentPath + "metrics.", $tsCfgValidator) : new Proxy2.Metrics2(com.typesafe.config.ConfigFactory.parseString("metrics{}"), parentPath + "metrics.", $tsCfgValidator);
+      this.scheduling = c.hasPathOrNull("scheduling") ? new Proxy2.Scheduling(c.getConfig("scheduling"), parentPath + "scheduling.", $tsCfgValidator) : new Proxy2.Scheduling(com.typesafe.config.ConfigFactory.parseString("scheduling{}"), parentPath + "scheduling.", $tsCfgValidator);
       this.tls = c.hasPathOrNull("tls") ? new Proxy2.Tls2(c.getConfig("tls"), parentPath + "tls.", $tsCfgValidator) : new Proxy2.Tls2(com.typesafe.config.ConfigFactory.parseString("tls{}"), parentPath + "tls.", $tsCfgValidator);
+      this.transport = c.hasPathOrNull("transport") ? new Proxy2.Transport2(c.getConfig("transport"), parentPath + "transport.", $tsCfgValidator) : new Proxy2.Transport2(com.typesafe.config.ConfigFactory.parseString("transport{}"), parentPath + "transport.", $tsCfgValidator);
     }
 
     public static class Admin2 {
       public final boolean debugEnabled;
       public final boolean enabled;
       public final java.lang.String healthCheckPath;
+      public final int hotPathsCount;
+      public final boolean hotPathsEnabled;
+      public final java.lang.String hotPathsPath;
+      public final int hotPathsWindowSecs;
       public final java.lang.String pingPath;
       public final int port;
       public final int recentRequestsQueueSize;
@@ -212,6 +290,10 @@ public class ConfigVals {
         this.debugEnabled = c.hasPathOrNull("debugEnabled") && c.getBoolean("debugEnabled");
         this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
         this.healthCheckPath = c.hasPathOrNull("healthCheckPath") ? c.getString("healthCheckPath") : "healthcheck";
+        this.hotPathsCount = c.hasPathOrNull("hotPathsCount") ? c.getInt("hotPathsCount") : 10;
+        this.hotPathsEnabled = c.hasPathOrNull("hotPathsEnabled") && c.getBoolean("hotPathsEnabled");
+        this.hotPathsPath = c.hasPathOrNull("hotPathsPath") ? c.getString("hotPathsPath") : "hotpaths";
+        this.hotPathsWindowSecs = c.hasPathOrNull("hotPathsWindowSecs") ? c.getInt("hotPathsWindowSecs") : 300;
         this.pingPath = c.hasPathOrNull("pingPath") ? c.getString("pingPath") : "ping";
         this.port = c.hasPathOrNull("port") ? c.getInt("port") : 8092;
         this.recentRequestsQueueSize = c.hasPathOrNull("recentRequestsQueueSize") ? c.getInt("recentRequestsQueueSize") : 50;
@@ -228,17 +310,41 @@ public class ConfigVals {
       }
     }
 
+    public static class Cluster {
+      public final boolean enabled;
+      public final int forwardTimeoutSecs;
+      public final java.lang.String inProcessName;
+      public final int peerPollMillis;
+      public final java.util.List<java.lang.String> peers;
+      public final int port;
+
+      public Cluster(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
+        this.forwardTimeoutSecs = c.hasPathOrNull("forwardTimeoutSecs") ? c.getInt("forwardTimeoutSecs") : 10;
+        this.inProcessName = c.hasPathOrNull("inProcessName") ? c.getString("inProcessName") : "";
+        this.peerPollMillis = c.hasPathOrNull("peerPollMillis") ? c.getInt("peerPollMillis") : 1000;
+        this.peers = $_L$str(c.getList("peers"), parentPath, $tsCfgValidator);
+        this.port = c.hasPathOrNull("port") ? c.getInt("port") : 50052;
+      }
+    }
+
     public static class Http {
+      public final int callGroupSize;
+      public final int connectionGroupSize;
       public final int idleTimeoutSecs;
       public final int maxThreads;
       public final int minThreads;
       public final int port;
+      public final int workerGroupSize;
 
       public Http(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.callGroupSize = c.hasPathOrNull("callGroupSize") ? c.getInt("callGroupSize") : -1;
+        this.connectionGroupSize = c.hasPathOrNull("connectionGroupSize") ? c.getInt("connectionGroupSize") : -1;
         this.idleTimeoutSecs = c.hasPathOrNull("idleTimeoutSecs") ? c.getInt("idleTimeoutSecs") : 45;
         this.maxThreads = c.hasPathOrNull("maxThreads") ? c.getInt("maxThreads") : -1;
         this.minThreads = c.hasPathOrNull("minThreads") ? c.getInt("minThreads") : -1;
         this.port = c.hasPathOrNull("port") ? c.getInt("port") : 8080;
+        this.workerGroupSize = c.hasPathOrNull("workerGroupSize") ? c.getInt("workerGroupSize") : -1;
       }
     }
 
@@ -246,10 +352,13 @@ public class ConfigVals {
       public final Internal2.Blitz blitz;
       public final int chunkContextMapUnhealthySize;
       public final int maxAgentInactivitySecs;
+      public final int maxScrapeSizeBytes;
       public final int scrapeRequestBacklogUnhealthySize;
       public final int scrapeRequestCheckMillis;
       public final int scrapeRequestMapUnhealthySize;
       public final int scrapeRequestTimeoutSecs;
+      public final java.lang.String spillDirectory;
+      public final int spillThresholdBytes;
       public final boolean staleAgentCheckEnabled;
       public final int staleAgentCheckPauseSecs;
       public final Internal2.Zipkin2 zipkin;
@@ -258,10 +367,13 @@ public class ConfigVals {
         this.blitz = c.hasPathOrNull("blitz") ? new Internal2.Blitz(c.getConfig("blitz"), parentPath + "blitz.", $tsCfgValidator) : new Internal2.Blitz(com.typesafe.config.ConfigFactory.parseString("blitz{}"), parentPath + "blitz.", $tsCfgValidator);
         this.chunkContextMapUnhealthySize = c.hasPathOrNull("chunkContextMapUnhealthySize") ? c.getInt("chunkContextMapUnhealthySize") : 25;
         this.maxAgentInactivitySecs = c.hasPathOrNull("maxAgentInactivitySecs") ? c.getInt("maxAgentInactivitySecs") : 15;
+        this.maxScrapeSizeBytes = c.hasPathOrNull("maxScrapeSizeBytes") ? c.getInt("maxScrapeSizeBytes") : -1;
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
         this.scrapeRequestCheckMillis = c.hasPathOrNull("scrapeRequestCheckMillis") ? c.getInt("scrapeRequestCheckMillis") : 500;
         this.scrapeRequestMapUnhealthySize = c.hasPathOrNull("scrapeRequestMapUnhealthySize") ? c.getInt("scrapeRequestMapUnhealthySize") : 25;
         this.scrapeRequestTimeoutSecs = c.hasPathOrNull("scrapeRequestTimeoutSecs") ? c.getInt("scrapeRequestTimeoutSecs") : 5;
+        this.spillDirectory = c.hasPathOrNull("spillDirectory") ? c.getString("spillDirectory") : "";
+        this.spillThresholdBytes = c.hasPathOrNull("spillThresholdBytes") ? c.getInt("spillThresholdBytes") : 16777216;
         this.staleAgentCheckEnabled = !c.hasPathOrNull("staleAgentCheckEnabled") || c.getBoolean("staleAgentCheckEnabled");
         this.staleAgentCheckPauseSecs = c.hasPathOrNull("staleAgentCheckPauseSecs") ? c.getInt("staleAgentCheckPauseSecs") : 10;
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal2.Zipkin2(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal2.Zipkin2(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
@@ -283,6 +395,7 @@ public class ConfigVals {
         public final java.lang.String hostname;
         public final java.lang.String path;
         public final int port;
+        public final double scrapeSampleRate;
         public final java.lang.String serviceName;
 
         public Zipkin2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
@@ -291,18 +404,24 @@ public class ConfigVals {
           this.hostname = c.hasPathOrNull("hostname") ? c.getString("hostname") : "localhost";
           this.path = c.hasPathOrNull("path") ? c.getString("path") : "api/v2/spans";
           this.port = c.hasPathOrNull("port") ? c.getInt("port") : 9411;
+          this.scrapeSampleRate = c.hasPathOrNull("scrapeSampleRate") ? c.getDouble("scrapeSampleRate") : 0.0;
           this.serviceName = c.hasPathOrNull("serviceName") ? c.getString("serviceName") : "prometheus-proxy";
         }
       }
     }
 
     public static class Metrics2 {
+      public final boolean agentNameLabelsEnabled;
       public final boolean classLoadingExportsEnabled;
       public final boolean enabled;
       public final boolean garbageCollectorExportsEnabled;
       public final Metrics2.Grpc2 grpc;
+      public final java.util.List<java.lang.Double> latencyBuckets;
+      public final boolean latencyPathGroupsEnabled;
+      public final int maxPathGroups;
       public final boolean memoryPoolsExportsEnabled;
       public final java.lang.String path;
+      public final java.util.List<java.lang.String> pathGroups;
       public final int port;
       public final boolean standardExportsEnabled;
       public final boolean threadExportsEnabled;
@@ -322,8 +441,12 @@ public class ConfigVals {
         this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
         this.garbageCollectorExportsEnabled = c.hasPathOrNull("garbageCollectorExportsEnabled") && c.getBoolean("garbageCollectorExportsEnabled");
         this.grpc = c.hasPathOrNull("grpc") ? new Metrics2.Grpc2(c.getConfig("grpc"), parentPath + "grpc.", $tsCfgValidator) : new Metrics2.Grpc2(com.typesafe.config.ConfigFactory.parseString("grpc{}"), parentPath + "grpc.", $tsCfgValidator);
+        this.latencyBuckets = c.hasPathOrNull("latencyBuckets") ? $_L$dbl(c.getList("latencyBuckets"), parentPath, $tsCfgValidator) : null;
+        this.latencyPathGroupsEnabled = c.hasPathOrNull("latencyPathGroupsEnabled") && c.getBoolean("latencyPathGroupsEnabled");
+        this.maxPathGroups = c.hasPathOrNull("maxPathGroups") ? c.getInt("maxPathGroups") : 50;
         this.memoryPoolsExportsEnabled = c.hasPathOrNull("memoryPoolsExportsEnabled") && c.getBoolean("memoryPoolsExportsEnabled");
         this.path = c.hasPathOrNull("path") ? c.getString("path") : "metrics";
+        this.pathGroups = $_L$str(c.getList("pathGroups"), parentPath, $tsCfgValidator);
         this.port = c.hasPathOrNull("port") ? c.getInt("port") : 8082;
         this.standardExportsEnabled = c.hasPathOrNull("standardExportsEnabled") && c.getBoolean("standardExportsEnabled");
         this.threadExportsEnabled = c.hasPathOrNull("threadExportsEnabled") && c.getBoolean("threadExportsEnabled");
@@ -331,6 +454,49 @@ public class ConfigVals {
       }
     }
 
+    public static class Scheduling {
+      public final int defaultWeight;
+      public final int maxInFlightPerAgent;
+      public final int maxInFlightPerPath;
+      public final java.util.List<Scheduling.PriorityClasses$Elm> priorityClasses;
+
+      public Scheduling(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.defaultWeight = c.hasPathOrNull("defaultWeight") ? c.getInt("defaultWeight") : 1;
+        this.maxInFlightPerAgent = c.hasPathOrNull("maxInFlightPerAgent") ? c.getInt("maxInFlightPerAgent") : -1;
+        this.maxInFlightPerPath = c.hasPathOrNull("maxInFlightPerPath") ? c.getInt("maxInFlightPerPath") : -1;
+        this.priorityClasses = $_LScheduling_PriorityClasses$Elm(c.getList("priorityClasses"), parentPath, $tsCfgValidator);
+      }
+
+      private static java.util.List<Scheduling.PriorityClasses$Elm> $_LScheduling_PriorityClasses$Elm(com.typesafe.config.ConfigList cl, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        java.util.ArrayList<Scheduling.PriorityClasses$Elm> al = new java.util.ArrayList<>();
+        for (com.typesafe.config.ConfigValue cv : cl) {
+          al.add(new Scheduling.PriorityClasses$Elm(((com.typesafe.config.ConfigObject) cv).toConfig(), parentPath, $tsCfgValidator));
+        }
+        return java.util.Collections.unmodifiableList(al);
+      }
+
+      public static class PriorityClasses$Elm {
+        public final java.lang.String pattern;
+        public final int weight;
+
+        public PriorityClasses$Elm(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+          this.pattern = $_reqStr(parentPath, c, "pattern", $tsCfgValidator);
+          this.weight = c.hasPathOrNull("weight") ? c.getInt("weight") : 1;
+        }
+        private static java.lang.String $_reqStr(java.lang.String parentPath, com.typesafe.config.Config c, java.lang.String path, $TsCfgValidator $tsCfgValidator) {
+          if (c == null) return null;
+          try {
+            return c.getString(path);
+          }
+          catch (com.typesafe.config.ConfigException e) {
+            $tsCfgValidator.addBadPath(parentPath + path, e);
+            return null;
+          }
+        }
+
+      }
+    }
+
     public static class Tls2 {
       public final java.lang.String certChainFilePath;
       public final java.lang.String privateKeyFilePath;
@@ -342,6 +508,66 @@ public class ConfigVals {
         this.trustCertCollectionFilePath = c.hasPathOrNull("trustCertCollectionFilePath") ? c.getString("trustCertCollectionFilePath") : "";
       }
     }
+
+    public static class Transport2 {
+      public final int bossThreads;
+      public final java.lang.String compression;
+      public final boolean epollEnabled;
+      public final int executorThreads;
+      public final java.lang.String executorType;
+      public final int flowControlWindowBytes;
+      public final int keepAliveTimeSecs;
+      public final int keepAliveTimeoutSecs;
+      public final int permitKeepAliveTimeSecs;
+      public final boolean permitKeepAliveWithoutCalls;
+      public final int workerThreads;
+
+      public Transport2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.bossThreads = c.hasPathOrNull("bossThreads") ? c.getInt("bossThreads") : -1;
+        this.compression = c.hasPathOrNull("compression") ? c.getString("compression") : "none";
+        this.epollEnabled = c.hasPathOrNull("epollEnabled") && c.getBoolean("epollEnabled");
+        this.executorThreads = c.hasPathOrNull("executorThreads") ? c.getInt("executorThreads") : -1;
+        this.executorType = c.hasPathOrNull("executorType") ? c.getString("executorType") : "default";
+        this.flowControlWindowBytes = c.hasPathOrNull("flowControlWindowBytes") ? c.getInt("flowControlWindowBytes") : -1;
+        this.keepAliveTimeSecs = c.hasPathOrNull("keepAliveTimeSecs") ? c.getInt("keepAliveTimeSecs") : -1;
+        this.keepAliveTimeoutSecs = c.hasPathOrNull("keepAliveTimeoutSecs") ? c.getInt("keepAliveTimeoutSecs") : -1;
+        this.permitKeepAliveTimeSecs = c.hasPathOrNull("permitKeepAliveTimeSecs") ? c.getInt("permitKeepAliveTimeSecs") : -1;
+        this.permitKeepAliveWithoutCalls = c.hasPathOrNull("permitKeepAliveWithoutCalls") && c.getBoolean("permitKeepAliveWithoutCalls");
+        this.workerThreads = c.hasPathOrNull("workerThreads") ? c.getInt("workerThreads") : -1;
+      }
+    }
+  }
+
+  private static java.util.List<java.lang.Double> $_L$dbl(com.typesafe.config.ConfigList cl, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+    java.util.ArrayList<java.lang.Double> al = new java.util.ArrayList<>();
+    for (com.typesafe.config.ConfigValue cv : cl) {
+      al.add($_dbl(cv));
+    }
+    return java.util.Collections.unmodifiableList(al);
+  }
+
+  private static java.util.List<java.lang.String> $_L$str(com.typesafe.config.ConfigList cl, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+    java.util.ArrayList<java.lang.String> al = new java.util.ArrayList<>();
+    for (com.typesafe.config.ConfigValue cv : cl) {
+      al.add($_str(cv));
+    }
+    return java.util.Collections.unmodifiableList(al);
+  }
+
+  private static java.lang.Double $_dbl(com.typesafe.config.ConfigValue cv) {
+    java.lang.Object u = cv.unwrapped();
+    if (cv.valueType() != com.typesafe.config.ConfigValueType.NUMBER || !(u instanceof java.lang.Number))
+      throw $_expE(cv, "double");
+    return ((java.lang.Number) u).doubleValue();
+  }
+
+  private static java.lang.String $_str(com.typesafe.config.ConfigValue cv) {
+    return java.lang.String.valueOf(cv.unwrapped());
+  }
+
+  private static com.typesafe.config.ConfigException $_expE(com.typesafe.config.ConfigValue cv, java.lang.String exp) {
+    java.lang.Object u = cv.unwrapped();
+    return new com.typesafe.config.ConfigException.BadValue(cv.origin(), exp, "expecting: " + exp + " got: " + (u instanceof java.lang.String ? "\"" + u + "\"" : u));
   }
 
   private static final class $TsCfgValidator {
@@ -37,14 +37,17 @@ import io.prometheus.agent.AgentMetrics
 import io.prometheus.agent.AgentOptions
 import io.prometheus.agent.AgentPathManager
 import io.prometheus.agent.RequestFailureException
-import io.prometheus.client.Summary
 import io.prometheus.common.BaseOptions.Companion.DEBUG
 import io.prometheus.common.ConfigVals
 import io.prometheus.common.ConfigWrappers.newAdminConfig
 import io.prometheus.common.ConfigWrappers.newMetricsConfig
 import io.prometheus.common.ConfigWrappers.newZipkinConfig
+import io.prometheus.common.NettyTransports.Companion.newVirtualThreadExecutor
 import io.prometheus.common.getVersionDesc
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import mu.KLogging
@@ -80,6 +83,12 @@ class Agent(val options: AgentOptions,
   // Prime the limiter
   private val reconnectLimiter = RateLimiter.create(1.0 / agentConfigVals.reconnectPauseSecs).apply { acquire() }
   private var lastMsgSentMark: ClockMark by nonNullableReference(clock.markNow())
+  private val virtualScrapeDispatcher =
+      if (configVals.agent.transport.virtualScrapesEnabled)
+        newVirtualThreadExecutor("agent scrapes", "the default dispatcher")?.asCoroutineDispatcher()
+      else
+        null
+  private val scrapeDispatcher: CoroutineDispatcher = virtualScrapeDispatcher ?: Dispatchers.Default
 
   val agentName = if (options.agentName.isBlank()) "Unnamed-${hostInfo.hostName}" else options.agentName
   val scrapeRequestBacklogSize = AtomicInteger(0)
@@ -137,20 +146,37 @@ class Agent(val options: AgentOptions,
       if (grpcService.connectAgent()) {
         grpcService.registerAgent(initialConnectionLatch)
         pathManager.registerPaths()
+        grpcService.registerSubConnections()
 
+        // All channels share one connection context, so requests and results are spread across them
+        // and a failure on any channel reconnects them all
         val connectionContext = AgentConnectionContext()
-        grpcService.readRequestsFromProxy(agentHttpService, connectionContext)
+        val useScrapeStream = grpcService.useScrapeStream
+        val scrapeConnections = grpcService.scrapeConnections
+        if (!useScrapeStream)
+          scrapeConnections.forEach { (id, stub) ->
+            grpcService.readRequestsFromProxy(agentHttpService, connectionContext, id, stub)
+          }
 
         runBlocking {
           launch(Dispatchers.Default) { startHeartBeat(connectionContext) }
 
-          launch(Dispatchers.Default) { grpcService.writeResponsesToProxyUntilDisconnected(connectionContext) }
+          scrapeConnections.forEach { (id, stub) ->
+            launch(Dispatchers.Default) {
+              if (useScrapeStream)
+                grpcService.scrapeStreamUntilDisconnected(agentHttpService, connectionContext, id, stub)
+              else
+                grpcService.writeResponsesToProxyUntilDisconnected(connectionContext, stub)
+            }
+          }
 
           for (scrapeRequestAction in connectionContext.scrapeRequestsChannel) {
-            launch(Dispatchers.Default) {
+            launch(scrapeDispatcher) {
               // The fetch occurs during the invoke()
               val scrapeResponse = scrapeRequestAction.invoke()
-              connectionContext.scrapeResultsChannel.send(scrapeResponse)
+              // A scrape cancelled by the proxy has already been removed from the backlog
+              if (isActive)
+                connectionContext.scrapeResultsChannel.send(scrapeResponse)
             }
           }
         }
@@ -175,8 +201,6 @@ class Agent(val options: AgentOptions,
 
   val proxyHost get() = "${grpcService.hostName}:${grpcService.port}"
 
-  fun startTimer(): Summary.Timer? = metrics.scrapeRequestLatency.labels(agentName).startTimer()
-
   override fun serviceName() = "$simpleClassName $agentName"
 
   override fun registerHealthChecks() {
@@ -187,7 +211,10 @@ class Agent(val options: AgentOptions,
   }
 
   private suspend fun startHeartBeat(connectionContext: AgentConnectionContext) =
-      if (agentConfigVals.heartbeatEnabled) {
+      if (grpcService.transportLiveness) {
+        logger.info { "Heartbeat not needed, liveness is provided by transport keepalive" }
+      }
+      else if (agentConfigVals.heartbeatEnabled) {
         val heartbeatPauseTime = agentConfigVals.heartbeatCheckPauseMillis.milliseconds
         val maxInactivityTime = agentConfigVals.heartbeatMaxInactivitySecs.seconds
         logger.info { "Heartbeat scheduled to fire after $maxInactivityTime of inactivity" }
@@ -223,6 +250,8 @@ class Agent(val options: AgentOptions,
 
   override fun shutDown() {
     grpcService.shutDown()
+    agentHttpService.shutDown()
+    virtualScrapeDispatcher?.close()
     super.shutDown()
   }
 
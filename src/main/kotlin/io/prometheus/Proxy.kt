@@ -27,6 +27,7 @@ import com.github.pambrose.common.servlet.LambdaServlet
 import com.github.pambrose.common.time.format
 import com.github.pambrose.common.util.MetricsUtils.newMapHealthCheck
 import com.github.pambrose.common.util.getBanner
+import com.github.pambrose.common.util.hostInfo
 import com.google.common.base.Joiner
 import com.google.common.collect.EvictingQueue
 import io.grpc.Attributes
@@ -40,12 +41,17 @@ import io.prometheus.common.getVersionDesc
 import io.prometheus.proxy.AgentContext
 import io.prometheus.proxy.AgentContextCleanupService
 import io.prometheus.proxy.AgentContextManager
+import io.prometheus.proxy.HotPaths
+import io.prometheus.proxy.ProxyClusterManager
+import io.prometheus.proxy.ProxyClusterService
 import io.prometheus.proxy.ProxyGrpcService
 import io.prometheus.proxy.ProxyHttpService
 import io.prometheus.proxy.ProxyMetrics
 import io.prometheus.proxy.ProxyOptions
 import io.prometheus.proxy.ProxyPathManager
 import io.prometheus.proxy.ScrapeRequestManager
+import io.prometheus.proxy.ScrapeSchedulingPolicy
+import io.prometheus.proxy.TransportLivenessPolicy
 import kotlinx.coroutines.runBlocking
 import mu.KLogging
 import java.time.LocalDateTime
@@ -71,6 +77,11 @@ class Proxy(val options: ProxyOptions,
   private val proxyConfigVals: ConfigVals.Proxy2.Internal2 = configVals.proxy.internal
   private val httpService = ProxyHttpService(this, proxyHttpPort)
   private val recentActions: EvictingQueue<String> = EvictingQueue.create(configVals.proxy.admin.recentRequestsQueueSize)
+  // Only kept when its servlet is enabled, so scrapes are not summarized otherwise
+  val hotPaths =
+      configVals.proxy.admin.let { admin ->
+        if (options.adminEnabled && admin.hotPathsEnabled) HotPaths(admin.hotPathsWindowSecs) else null
+      }
   private val grpcService =
       if (inProcessServerName.isEmpty())
         ProxyGrpcService(this, port = options.proxyAgentPort)
@@ -78,11 +89,21 @@ class Proxy(val options: ProxyOptions,
         ProxyGrpcService(this, inProcessName = inProcessServerName)
 
   private val agentCleanupService by lazy { AgentContextCleanupService(this, proxyConfigVals) { addServices(this) } }
+  private val clusterConfigVals = configVals.proxy.cluster
+  private val clusterService by lazy { ProxyClusterService(this, httpService, clusterConfigVals) { addServices(this) } }
 
   val pathManager = ProxyPathManager(isTestMode)
   val scrapeRequestManager = ScrapeRequestManager()
+  val schedulingPolicy = ScrapeSchedulingPolicy(configVals.proxy.scheduling)
   val agentContextManager = AgentContextManager()
   val metrics by lazy { ProxyMetrics(this) }
+  val livenessPolicy = TransportLivenessPolicy(configVals.proxy.transport)
+  val isClusterEnabled = clusterConfigVals.enabled
+  val clusterManager by lazy {
+    ProxyClusterManager("${hostInfo.hostName}:${httpService.httpPort}",
+                        clusterConfigVals,
+                        options.peerTlsContext()) { addServices(this) }
+  }
 
   init {
     fun toPlainText() = """
@@ -97,6 +118,9 @@ class Proxy(val options: ProxyOptions,
       Metrics Service:
       ${if (isMetricsEnabled) metricsService.toString() else "Disabled"}
       
+      Cluster Service:
+      ${if (isClusterEnabled) clusterManager.toString() else "Disabled"}
+      
     """.trimIndent()
 
     addServices(grpcService, httpService)
@@ -113,6 +137,11 @@ class Proxy(val options: ProxyOptions,
                          .joinToString("\n")
                    })
       }
+
+      hotPaths?.also { hotPaths ->
+        val admin = configVals.proxy.admin
+        addServlet(admin.hotPathsPath, LambdaServlet { hotPaths.toPlainText(admin.hotPathsCount) })
+      }
     }
 
     initBlock?.invoke(this)
@@ -128,9 +157,18 @@ class Proxy(val options: ProxyOptions,
       agentCleanupService.startSync()
     else
       logger.info { "Agent eviction thread not started" }
+
+    if (isClusterEnabled) {
+      clusterService.startSync()
+      clusterManager.startSync()
+    }
   }
 
   override fun shutDown() {
+    if (isClusterEnabled) {
+      clusterManager.stopSync()
+      clusterService.stopSync()
+    }
     grpcService.stopSync()
     httpService.stopSync()
     if (proxyConfigVals.staleAgentCheckEnabled)
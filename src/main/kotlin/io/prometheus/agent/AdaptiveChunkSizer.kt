@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+// Sizes chunks so that each one takes roughly targetChunkNanos to drain on the proxy connection.
+// Fast links get larger chunks and fewer messages, slow links get smaller chunks and better interleaving.
+class AdaptiveChunkSizer(initialSize: Int,
+                         private val minSize: Int,
+                         private val maxSize: Int,
+                         private val targetChunkNanos: Long = TARGET_CHUNK_NANOS) {
+
+  init {
+    require(minSize in 1..maxSize) { "Invalid chunk size range: $minSize to $maxSize" }
+  }
+
+  @Volatile
+  var chunkSize = initialSize.coerceIn(minSize, maxSize)
+    private set
+
+  // byteCount is the size of a chunked response and elapsedNanos includes the time spent waiting on flow control
+  fun update(byteCount: Int, elapsedNanos: Long) {
+    val drainableBytes =
+        if (elapsedNanos <= 0)
+          Long.MAX_VALUE
+        else
+          byteCount * targetChunkNanos / elapsedNanos
+
+    chunkSize =
+        when {
+          // Grow additively (by at least minSize) and shrink multiplicatively
+          drainableBytes > chunkSize -> (chunkSize + maxOf(minSize, chunkSize / 4)).coerceAtMost(maxSize)
+          drainableBytes < chunkSize / 2 -> (chunkSize / 2).coerceAtLeast(minSize)
+          else -> chunkSize
+        }
+  }
+
+  companion object {
+    private val TARGET_CHUNK_NANOS = MILLISECONDS.toNanos(10)
+  }
+}
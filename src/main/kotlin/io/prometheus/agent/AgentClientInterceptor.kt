@@ -31,7 +31,18 @@ import io.prometheus.Proxy
 import io.prometheus.common.GrpcObjects.EMPTY_AGENTID
 import mu.KLogging
 
-class AgentClientInterceptor(private val agent: Agent) : ClientInterceptor {
+class AgentClientInterceptor(private val agent: Agent,
+                             private val subConnection: AgentSubConnection? = null) : ClientInterceptor {
+
+  // A sub-connection is assigned its own agentId by the proxy
+  private var agentId: String
+    get() = subConnection?.agentId ?: agent.agentId
+    set(value) {
+      if (subConnection != null)
+        subConnection.agentId = value
+      else
+        agent.agentId = value
+    }
 
   override fun <ReqT, RespT> interceptCall(method: MethodDescriptor<ReqT, RespT>,
                                            callOptions: CallOptions,
@@ -40,7 +51,7 @@ class AgentClientInterceptor(private val agent: Agent) : ClientInterceptor {
       // logger.info {"Intercepting {}", methodName);
       object :
           ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
-              agent.grpcService.channel.newCall(method, callOptions)) {
+              next.newCall(method, callOptions)) {
         override fun start(responseListener: Listener<RespT>, metadata: Metadata) {
           super.start(
               object : ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
@@ -50,11 +61,11 @@ class AgentClientInterceptor(private val agent: Agent) : ClientInterceptor {
                   }
                   else {
                     // Grab agent_id from headers if not already assigned
-                    if (agent.agentId.isEmpty()) {
+                    if (agentId.isEmpty()) {
                       headers.get(Metadata.Key.of(Proxy.AGENT_ID, Metadata.ASCII_STRING_MARSHALLER))?.also {
-                        agent.agentId = it
-                        check(agent.agentId.isNotEmpty()) { EMPTY_AGENTID }
-                        logger.debug { "Assigned agentId to $agent" }
+                        agentId = it
+                        check(agentId.isNotEmpty()) { EMPTY_AGENTID }
+                        logger.debug { "Assigned agentId $agentId to $agent" }
                       } ?: logger.error { "Headers missing AGENT_ID key" }
                     }
                   }
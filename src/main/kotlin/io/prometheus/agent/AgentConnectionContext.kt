@@ -19,15 +19,45 @@
 package io.prometheus.agent
 
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
+import com.google.common.collect.Maps.newConcurrentMap
+import io.grpc.stub.StreamObserver
 import io.prometheus.common.ScrapeRequestAction
 import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.ScrapeStreamMessage
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.channels.Channel
+import java.util.concurrent.ConcurrentMap
+import kotlin.coroutines.coroutineContext
 
 class AgentConnectionContext {
   private var disconnected by atomicBoolean(false)
   val scrapeRequestsChannel = Channel<ScrapeRequestAction>(Channel.UNLIMITED)
   val scrapeResultsChannel = Channel<ScrapeResults>(Channel.UNLIMITED)
 
+  // Assigned when connected with scrapeStream rather than the separate request and response streams
+  @Volatile
+  var scrapeStream: StreamObserver<ScrapeStreamMessage>? = null
+
+  // Map scrape_id to the job fetching it, so the proxy can cancel it
+  private val scrapeJobs: ConcurrentMap<Long, Job> = newConcurrentMap()
+
+  suspend fun <T> trackScrape(scrapeId: Long, block: suspend () -> T): T {
+    coroutineContext[Job]?.also { scrapeJobs[scrapeId] = it }
+    try {
+      return block()
+    } finally {
+      scrapeJobs.remove(scrapeId)
+    }
+  }
+
+  // Returns true if the scrape was still in progress
+  fun cancelScrape(scrapeId: Long) =
+      scrapeJobs.remove(scrapeId)
+          ?.let { job ->
+            job.cancel()
+            true
+          } ?: false
+
   fun disconnect() {
     disconnected = true
     scrapeRequestsChannel.cancel()
@@ -31,25 +31,54 @@ import io.grpc.ClientInterceptors
 import io.grpc.ManagedChannel
 import io.grpc.Status
 import io.grpc.StatusRuntimeException
+import io.grpc.netty.NettyChannelBuilder
+import io.grpc.stub.ClientCallStreamObserver
+import io.grpc.stub.ClientResponseObserver
+import io.grpc.stub.StreamObserver
+import io.netty.channel.EventLoopGroup
 import io.prometheus.Agent
 import io.prometheus.common.BaseOptions.Companion.HTTPS_PREFIX
 import io.prometheus.common.BaseOptions.Companion.HTTP_PREFIX
+import io.prometheus.common.Checksums.checksChunks
+import io.prometheus.common.Checksums.newChecksum
+import io.prometheus.common.Checksums.parseIntegrityMode
+import io.prometheus.common.GrpcCompression
+import io.prometheus.common.GrpcCompression.IDENTITY
+import io.prometheus.common.GrpcCompression.encodingOf
+import io.prometheus.common.GrpcCompression.withEncoding
 import io.prometheus.common.GrpcObjects
 import io.prometheus.common.GrpcObjects.newAgentInfo
 import io.prometheus.common.GrpcObjects.newRegisterAgentRequest
 import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
 import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.GrpcObjects.newStreamPingMessage
 import io.prometheus.common.GrpcObjects.toScrapeResponse
 import io.prometheus.common.GrpcObjects.toScrapeResponseHeader
+import io.prometheus.common.GrpcObjects.toStreamMessage
+import io.prometheus.common.NettyTransports
+import io.prometheus.common.NettyTransports.Companion.isDirect
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.CHUNK_SENT
 import io.prometheus.common.ScrapeResults
+import io.prometheus.common.SynchronizedStreamObserver
+import io.prometheus.common.update
+import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.IntegrityMode
 import io.prometheus.grpc.ProxyServiceGrpc
 import io.prometheus.grpc.ProxyServiceGrpc.ProxyServiceBlockingStub
 import io.prometheus.grpc.ProxyServiceGrpc.ProxyServiceStub
+import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeStreamMessage
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.CANCEL
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.PING
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.REQUEST
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
 import mu.KLogging
-import java.io.ByteArrayInputStream
 import java.util.concurrent.CountDownLatch
-import java.util.zip.CRC32
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit.SECONDS
 import kotlin.properties.Delegates.notNull
 
 class AgentGrpcService(private val agent: Agent,
@@ -63,9 +92,41 @@ class AgentGrpcService(private val agent: Agent,
 
   var channel: ManagedChannel by notNull()
 
+  // Additional channels beyond the primary one, each with its own HTTP/2 connection, which are
+  // closed if the proxy does not support them
+  @Volatile
+  var subConnections: List<AgentSubConnection> = emptyList()
+    private set
+
   val hostName: String
   val port: Int
   private val tlsContext: TlsContext
+  private val configIntegrityMode = parseIntegrityMode(agent.configVals.agent.chunkIntegrityMode)
+  private var integrityMode = IntegrityMode.CRC32
+  private val adaptiveChunkSizeEnabled = agent.configVals.agent.adaptiveChunkSizeEnabled
+  private val scrapeStreamEnabled = agent.configVals.agent.internal.scrapeStreamEnabled
+  private val transportConfigVals = agent.configVals.agent.transport
+  private var transports: NettyTransports by notNull()
+
+  // The gRPC message encoding of requests, or null if messages are not compressed by the transport
+  val transportEncoding = encodingOf(transportConfigVals.compression)
+
+  // Labels results with the gRPC message encoding, which is separate from whether the content is gzipped
+  private val resultEncoding = transportEncoding ?: "identity"
+
+  // Time to send a byte to the proxy, as measured by adaptive chunk sizing, or 0 if it has not been measured
+  @Volatile
+  var linkNanosPerByte = 0.0
+    private set
+
+  // Cleared if the proxy turns out to be a version without scrapeStream
+  private var scrapeStreamSupported by atomicBoolean(true)
+
+  val useScrapeStream get() = scrapeStreamEnabled && scrapeStreamSupported
+
+  // Set when the proxy agrees that keepalive pings, rather than heartbeats, show this agent is alive
+  var transportLiveness by atomicBoolean(false)
+    private set
 
   init {
     val schemeStripped =
@@ -107,8 +168,11 @@ class AgentGrpcService(private val agent: Agent,
   fun shutDown() {
     if (agent.isZipkinEnabled)
       tracing.close()
-    if (grpcStarted)
+    if (grpcStarted) {
       channel.shutdownNow()
+      subConnections.forEach { it.shutDown() }
+      transports.shutDown()
+    }
   }
 
   @Synchronized
@@ -120,22 +184,70 @@ class AgentGrpcService(private val agent: Agent,
     else
       grpcStarted = true
 
-    channel =
-        channel(hostName = hostName,
-                port = port,
-                tlsContext = tlsContext,
-                overrideAuthority = agent.options.overrideAuthority,
-                inProcessServerName = inProcessServerName) {
-          if (agent.isZipkinEnabled)
-            intercept(grpcTracing.newClientInterceptor())
-        }
+    // Event loops and executors are shared by all channels and replaced with them
+    transports = NettyTransports("grpc-client", transportConfigVals.epollEnabled)
+    val eventLoopGroup =
+        if (transports.useEpoll || transportConfigVals.workerThreads > 0)
+          transports.newEventLoopGroup("worker", transportConfigVals.workerThreads)
+        else
+          null
+    val callExecutor = transports.newExecutor(transportConfigVals.executorType, transportConfigVals.executorThreads)
+
+    channel = newChannel(eventLoopGroup, callExecutor)
 
     val interceptors = listOf(AgentClientInterceptor(agent))
 
-    blockingStub = ProxyServiceGrpc.newBlockingStub(ClientInterceptors.intercept(channel, interceptors))
-    asyncStub = ProxyServiceGrpc.newStub(ClientInterceptors.intercept(channel, interceptors))
+    blockingStub =
+        ProxyServiceGrpc.newBlockingStub(ClientInterceptors.intercept(channel, interceptors)).withEncoding(transportEncoding)
+    asyncStub = ProxyServiceGrpc.newStub(ClientInterceptors.intercept(channel, interceptors)).withEncoding(transportEncoding)
+
+    subConnections =
+        List(maxOf(transportConfigVals.channelCount - 1, 0)) {
+          AgentSubConnection(agent, newChannel(eventLoopGroup, callExecutor), transportEncoding)
+        }
   }
 
+  private fun newChannel(eventLoopGroup: EventLoopGroup?, callExecutor: Executor?) =
+      channel(hostName = hostName,
+              port = port,
+              tlsContext = tlsContext,
+              overrideAuthority = agent.options.overrideAuthority,
+              inProcessServerName = inProcessServerName) {
+        if (agent.isZipkinEnabled)
+          intercept(grpcTracing.newClientInterceptor())
+
+        transportConfigVals
+            .also { transport ->
+              if (transport.keepAliveTimeSecs > 0)
+                keepAliveTime(transport.keepAliveTimeSecs.toLong(), SECONDS)
+              if (transport.keepAliveTimeoutSecs > 0)
+                keepAliveTimeout(transport.keepAliveTimeoutSecs.toLong(), SECONDS)
+              keepAliveWithoutCalls(transport.keepAliveWithoutCalls)
+
+              compressorRegistry(GrpcCompression.compressorRegistry)
+              decompressorRegistry(GrpcCompression.decompressorRegistry)
+
+              if (isDirect(transport.executorType))
+                directExecutor()
+              else if (callExecutor != null)
+                executor(callExecutor)
+
+              if (this is NettyChannelBuilder) {
+                if (eventLoopGroup != null) {
+                  eventLoopGroup(eventLoopGroup)
+                  channelType(transports.channelType)
+                }
+                if (transport.flowControlWindowBytes > 0)
+                  flowControlWindow(transport.flowControlWindowBytes)
+              }
+            }
+      }
+
+  // The agentId and stub of each channel that carries scrapes, starting with the primary channel
+  val scrapeConnections: List<Pair<String, ProxyServiceStub>>
+    get() = listOf(agent.agentId to asyncStub) +
+            subConnections.map { it.agentId to it.asyncStub }
+
   // If successful, this will create an agentContext on the Proxy and an interceptor will add an agent_id to the headers`
   fun connectAgent() =
       try {
@@ -151,15 +263,57 @@ class AgentGrpcService(private val agent: Agent,
       }
 
   fun registerAgent(initialConnectionLatch: CountDownLatch) {
-    val request = newRegisterAgentRequest(agent.agentId, agent.agentName, hostName)
+    val request =
+        newRegisterAgentRequest(agent.agentId, agent.agentName, hostName, transportConfigVals.keepAliveTimeSecs)
     blockingStub.registerAgent(request).also { response ->
       agent.markMsgSent()
       if (!response.valid)
         throw RequestFailureException("registerAgent() - ${response.reason}")
+
+      // Older proxies do not report transport liveness and still expect heartbeats
+      transportLiveness = response.transportLiveness
+
+      // Older proxies do not report their integrity modes and only verify CRC32
+      integrityMode =
+          if (configIntegrityMode in response.supportedIntegrityModesList) {
+            configIntegrityMode
+          }
+          else {
+            if (configIntegrityMode != IntegrityMode.CRC32)
+              logger.warn { "Proxy does not support integrity mode $configIntegrityMode, using CRC32" }
+            IntegrityMode.CRC32
+          }
+      logger.info { "Using chunk integrity mode $integrityMode" }
     }
     initialConnectionLatch.countDown()
   }
 
+  // Called after registerAgent(), since sub-connections are registered under the primary agentId
+  @Synchronized
+  fun registerSubConnections() {
+    for (subConnection in subConnections) {
+      subConnection.blockingStub.connectAgent(Empty.getDefaultInstance())
+      val request =
+          newRegisterAgentRequest(subConnection.agentId,
+                                  agent.agentName,
+                                  hostName,
+                                  transportConfigVals.keepAliveTimeSecs,
+                                  agent.agentId)
+      val response = subConnection.blockingStub.registerAgent(request)
+      if (!response.valid)
+        throw RequestFailureException("registerAgent() sub-connection - ${response.reason}")
+
+      // Older proxies ignore the parent agentId, so the channels would never be sent any requests
+      if (!response.subConnection) {
+        logger.warn { "Proxy at ${agent.proxyHost} does not support sub-connections, using a single channel" }
+        subConnections.forEach { it.shutDown() }
+        subConnections = emptyList()
+        break
+      }
+    }
+    logger.info { "Using ${scrapeConnections.size} channel(s) to proxy at ${agent.proxyHost}" }
+  }
+
   fun pathMapSize(): Int {
     val request = GrpcObjects.newPathMapSizeRequest(agent.agentId)
     return blockingStub.pathMapSize(request).run {
@@ -192,6 +346,19 @@ class AgentGrpcService(private val agent: Agent,
     if (agent.agentId.isEmpty())
       return
 
+    // Pings on a scrapeStream take the place of unary heartbeats
+    val scrapeStream = connectionContext.scrapeStream
+    if (scrapeStream != null) {
+      try {
+        scrapeStream.onNext(newStreamPingMessage())
+        agent.markMsgSent()
+      } catch (e: IllegalStateException) {
+        logger.error { "Ping failed ${e.message}" }
+        connectionContext.disconnect()
+      }
+      return
+    }
+
     try {
       val request = GrpcObjects.newHeartBeatRequest(agent.agentId)
       blockingStub
@@ -209,16 +376,20 @@ class AgentGrpcService(private val agent: Agent,
     }
   }
 
-  fun readRequestsFromProxy(agentHttpService: AgentHttpService, connectionContext: AgentConnectionContext) {
-    asyncStub.readRequestsFromProxy(
-        newAgentInfo(agent.agentId),
+  fun readRequestsFromProxy(agentHttpService: AgentHttpService,
+                            connectionContext: AgentConnectionContext,
+                            agentId: String = agent.agentId,
+                            stub: ProxyServiceStub = asyncStub) {
+    stub.readRequestsFromProxy(
+        newAgentInfo(agentId),
         streamObserver {
           onNext { request ->
             // This will block, but only very briefly for the duration of the send.
             // The actual fetch happens at the other end of the channel, not here.
+            val receivedNanos = System.nanoTime()
             runBlocking {
               logger.debug { "readRequestsFromProxy(): \n$request" }
-              connectionContext.scrapeRequestsChannel.send { agentHttpService.fetchScrapeUrl(request) }
+              connectionContext.scrapeRequestsChannel.send { agentHttpService.fetchScrapeUrl(request, receivedNanos) }
               agent.scrapeRequestBacklogSize.incrementAndGet()
             }
           }
@@ -237,7 +408,8 @@ class AgentGrpcService(private val agent: Agent,
         })
   }
 
-  suspend fun writeResponsesToProxyUntilDisconnected(connectionContext: AgentConnectionContext) {
+  suspend fun writeResponsesToProxyUntilDisconnected(connectionContext: AgentConnectionContext,
+                                                     stub: ProxyServiceStub = asyncStub) {
 
     val emptyResponseObserver =
         streamObserver<Empty> {
@@ -258,67 +430,240 @@ class AgentGrpcService(private val agent: Agent,
           }
         }
 
-    val nonchunkedObserver = asyncStub.writeResponsesToProxy(emptyResponseObserver)
-    val chunkedObserver = asyncStub.writeChunkedResponsesToProxy(emptyResponseObserver)
+    // Signalled by gRPC when the chunked stream can accept more messages without buffering
+    val readySignal = Channel<Unit>(Channel.CONFLATED)
+    var chunkedRequestStream: ClientCallStreamObserver<ChunkedScrapeResponse>? = null
+    val chunkedResponseObserver =
+        object : ClientResponseObserver<ChunkedScrapeResponse, Empty>, StreamObserver<Empty> by emptyResponseObserver {
+          override fun beforeStart(requestStream: ClientCallStreamObserver<ChunkedScrapeResponse>) {
+            chunkedRequestStream = requestStream
+            requestStream.setOnReadyHandler { readySignal.offer(Unit) }
+          }
+        }
+
+    val nonchunkedObserver = stub.writeResponsesToProxy(emptyResponseObserver)
+    // Chunks are already gzipped, so they are not compressed again by the transport
+    val chunkedObserver = stub.withCompression(IDENTITY).writeChunkedResponsesToProxy(chunkedResponseObserver)
+    val chunkSizer = newChunkSizer()
 
     for (scrapeResults: ScrapeResults in connectionContext.scrapeResultsChannel) {
-      val scrapedId = scrapeResults.scrapeId
+      writeScrapeResults(scrapeResults,
+                         chunkSizer,
+                         { nonchunkedObserver.onNext(it) },
+                         { chunkedObserver.onNext(it) },
+                         { awaitReady(chunkedRequestStream, readySignal, connectionContext) })
+      agent.markMsgSent()
+      agent.scrapeRequestBacklogSize.decrementAndGet()
+    }
 
-      if (!scrapeResults.zipped) {
-        logger.debug { "Writing non-chunked msg scrapeId: $scrapedId length: ${scrapeResults.contentAsText.length}" }
-        nonchunkedObserver.onNext(scrapeResults.toScrapeResponse())
-        agent.metrics { scrapeResultCount.labels("non-gzipped").inc() }
-      }
-      else {
-        val zipped = scrapeResults.contentAsZipped
-        logger.debug { "Comparing ${zipped.size} and ${options.chunkContentSizeKbs}" }
+    logger.info { "Disconnected from proxy at ${agent.proxyHost}" }
 
-        if (zipped.size < options.chunkContentSizeKbs) {
-          logger.debug { "Writing zipped non-chunked msg scrapeId: $scrapedId length: ${zipped.size}" }
-          nonchunkedObserver.onNext(scrapeResults.toScrapeResponse())
-          agent.metrics { scrapeResultCount.labels("gzipped").inc() }
-        }
-        else {
-          scrapeResults.toScrapeResponseHeader().also {
-            logger.debug { "Writing header length: ${zipped.size} for scrapeId: $scrapedId " }
-            chunkedObserver.onNext(it)
+    nonchunkedObserver.onCompleted()
+    chunkedObserver.onCompleted()
+  }
+
+  suspend fun scrapeStreamUntilDisconnected(agentHttpService: AgentHttpService,
+                                            connectionContext: AgentConnectionContext,
+                                            agentId: String = agent.agentId,
+                                            stub: ProxyServiceStub = asyncStub) {
+    val readySignal = Channel<Unit>(Channel.CONFLATED)
+    var scrapeRequestStream: ClientCallStreamObserver<ScrapeStreamMessage>? = null
+    val responseObserver =
+        object : ClientResponseObserver<ScrapeStreamMessage, ScrapeStreamMessage> {
+          override fun beforeStart(requestStream: ClientCallStreamObserver<ScrapeStreamMessage>) {
+            scrapeRequestStream = requestStream
+            requestStream.setOnReadyHandler { readySignal.offer(Unit) }
           }
 
-          var totalByteCount = 0
-          var totalChunkCount = 0
-          val checksum = CRC32()
-          val bais = ByteArrayInputStream(zipped)
-          val buffer = ByteArray(options.chunkContentSizeKbs)
-          var readByteCount: Int
-
-          while (bais.read(buffer).also { bytesRead -> readByteCount = bytesRead } > 0) {
-            totalChunkCount++
-            totalByteCount += readByteCount
-            checksum.update(buffer, 0, buffer.size)
-
-            newScrapeResponseChunk(scrapeResults.scrapeId, totalChunkCount, readByteCount, checksum, buffer).also {
-              logger.debug { "Writing chunk $totalChunkCount for scrapeId: $scrapedId" }
-              chunkedObserver.onNext(it)
+          override fun onNext(message: ScrapeStreamMessage) {
+            when (message.messageOneOfCase) {
+              REQUEST ->
+                message.request.also { request ->
+                  val receivedNanos = System.nanoTime()
+                  // This will block, but only very briefly for the duration of the send.
+                  runBlocking {
+                    logger.debug { "scrapeStream(): \n$request" }
+                    connectionContext.scrapeRequestsChannel.send {
+                      connectionContext.trackScrape(request.scrapeId) {
+                        agentHttpService.fetchScrapeUrl(request, receivedNanos)
+                      }
+                    }
+                    agent.scrapeRequestBacklogSize.incrementAndGet()
+                  }
+                }
+              CANCEL ->
+                message.cancel.cancelScrapeId.also { scrapeId ->
+                  if (connectionContext.cancelScrape(scrapeId)) {
+                    logger.debug { "Cancelled scrapeId: $scrapeId" }
+                    agent.scrapeRequestBacklogSize.decrementAndGet()
+                  }
+                }
+              PING -> {
+                // Proxies do not send pings, they are accepted so that one could confirm the stream is alive
+              }
+              else -> logger.warn { "Invalid message in scrapeStream(): ${message.messageOneOfCase}" }
             }
           }
 
-          newScrapeResponseSummary(scrapeResults.scrapeId, totalChunkCount, totalByteCount, checksum).also {
-            logger.debug { "Writing summary totalChunkCount: $totalChunkCount for scrapeID: $scrapedId" }
-            chunkedObserver.onNext(it)
-            agent.metrics { scrapeResultCount.labels("chunked").inc() }
+          override fun onError(throwable: Throwable) {
+            Status.fromThrowable(throwable).apply {
+              if (code == Status.Code.UNIMPLEMENTED) {
+                logger.warn { "Proxy at ${agent.proxyHost} does not support scrapeStream, reverting to separate streams" }
+                scrapeStreamSupported = false
+              }
+              else if (agent.isRunning) {
+                logger.error { "Error in scrapeStreamUntilDisconnected(): $code $description" }
+              }
+            }
+            connectionContext.disconnect()
+          }
+
+          override fun onCompleted() {
+            connectionContext.disconnect()
           }
         }
+
+    val syncObserver = SynchronizedStreamObserver(stub.scrapeStream(responseObserver))
+    syncObserver.onNext(newAgentInfo(agentId).toStreamMessage())
+    // Heartbeat pings go out on the primary stream, which is the one the proxy checks
+    if (agentId == agent.agentId)
+      connectionContext.scrapeStream = syncObserver
+    val chunkSizer = newChunkSizer()
+
+    // A disconnect cancels the results channel, which ends the loop with a CancellationException,
+    // so the outbound half is completed in the finally block
+    try {
+      for (scrapeResults: ScrapeResults in connectionContext.scrapeResultsChannel) {
+        writeScrapeResults(scrapeResults,
+                           chunkSizer,
+                           { syncObserver.onNext(it.toStreamMessage()) },
+                           { chunk ->
+                             // Chunks are already gzipped, so they are not compressed again by the transport
+                             val requestStream = scrapeRequestStream
+                             if (transportEncoding == null || requestStream == null)
+                               syncObserver.onNext(chunk.toStreamMessage())
+                             else
+                               synchronized(syncObserver) {
+                                 requestStream.setMessageCompression(false)
+                                 syncObserver.onNext(chunk.toStreamMessage())
+                                 requestStream.setMessageCompression(true)
+                               }
+                           },
+                           { awaitReady(scrapeRequestStream, readySignal, connectionContext) })
+        agent.markMsgSent()
+        agent.scrapeRequestBacklogSize.decrementAndGet()
       }
+    } finally {
+      logger.info { "Disconnected from proxy at ${agent.proxyHost}" }
 
-      agent.markMsgSent()
-      agent.scrapeRequestBacklogSize.decrementAndGet()
+      if (connectionContext.scrapeStream === syncObserver)
+        connectionContext.scrapeStream = null
+      try {
+        syncObserver.onCompleted()
+      } catch (e: IllegalStateException) {
+        // Ignore if the call was already closed
+      }
+    }
+  }
+
+  // A new sizer for each connection, since a reconnect may be over a different link
+  private fun newChunkSizer() =
+      if (adaptiveChunkSizeEnabled)
+        agent.configVals.agent.run {
+          AdaptiveChunkSizer(options.chunkContentSizeKbs, minChunkContentSizeKbs * 1024, maxChunkContentSizeKbs * 1024)
+        }
+      else
+        null
+
+  // Waiting on flow control makes the elapsed time of a chunked response reflect the link throughput
+  private suspend fun awaitReady(requestStream: ClientCallStreamObserver<*>?,
+                                 readySignal: Channel<Unit>,
+                                 connectionContext: AgentConnectionContext) {
+    if (requestStream != null)
+      while (!requestStream.isReady && connectionContext.connected)
+        withTimeoutOrNull(READY_TIMEOUT_MILLIS) { readySignal.receive() }
+  }
+
+  private suspend fun writeScrapeResults(scrapeResults: ScrapeResults,
+                                         chunkSizer: AdaptiveChunkSizer?,
+                                         writeResponse: (ScrapeResponse) -> Unit,
+                                         writeChunkedResponse: (ChunkedScrapeResponse) -> Unit,
+                                         awaitReady: suspend () -> Unit) {
+    val scrapedId = scrapeResults.scrapeId
+
+    if (scrapeResults.readyNanos > 0)
+      scrapeResults.phaseTimings =
+          scrapeResults.phaseTimings.toBuilder().setSendNanos(System.nanoTime() - scrapeResults.readyNanos).build()
+
+    if (!scrapeResults.zipped) {
+      logger.debug { "Writing non-chunked msg scrapeId: $scrapedId length: ${scrapeResults.contentAsText.length}" }
+      writeResponse(scrapeResults.toScrapeResponse().also { recordSentBytes(it.serializedSize) })
+      agent.metrics { scrapeResultCount.labels("non-gzipped", resultEncoding).inc() }
     }
+    else {
+      val zipped = scrapeResults.contentAsZipped
+      val chunkSize = chunkSizer?.chunkSize ?: options.chunkContentSizeKbs
+      agent.metrics { chunkContentSize.labels(agent.proxyHost).set(chunkSize.toDouble()) }
+      logger.debug { "Comparing ${zipped.size()} and ${options.chunkContentSizeKbs}" }
+
+      // Only the size of each chunk adapts, so whether content is chunked does not depend on the link
+      if (zipped.size() < options.chunkContentSizeKbs) {
+        logger.debug { "Writing zipped non-chunked msg scrapeId: $scrapedId length: ${zipped.size()}" }
+        writeResponse(scrapeResults.toScrapeResponse().also { recordSentBytes(it.serializedSize) })
+        agent.metrics { scrapeResultCount.labels("gzipped", resultEncoding).inc() }
+      }
+      else {
+        val mode = integrityMode
+        val start = System.nanoTime()
+        scrapeResults.toScrapeResponseHeader((zipped.size() + chunkSize - 1) / chunkSize, mode).also {
+          logger.debug { "Writing header length: ${zipped.size()} for scrapeId: $scrapedId " }
+          writeChunkedResponse(it)
+        }
 
-    logger.info { "Disconnected from proxy at ${agent.proxyHost}" }
+        var totalByteCount = 0
+        var totalChunkCount = 0
+        val checksum = newChecksum(mode)
+
+        while (totalByteCount < zipped.size()) {
+          // substring() returns a bounded view of zipped, so the chunk bytes are not copied
+          val chunkBytes = zipped.substring(totalByteCount, minOf(totalByteCount + chunkSize, zipped.size()))
+          val readByteCount = chunkBytes.size()
+          totalChunkCount++
+          totalByteCount += readByteCount
+          checksum.update(chunkBytes)
+
+          val chunkChecksum = if (mode.checksChunks) checksum.value else 0L
+          newScrapeResponseChunk(scrapeResults.scrapeId, totalChunkCount, readByteCount, chunkChecksum, chunkBytes).also {
+            logger.debug { "Writing chunk $totalChunkCount for scrapeId: $scrapedId" }
+            writeChunkedResponse(it)
+          }
+          ScrapeEvents.emit(CHUNK_SENT, scrapeResults.scrapeId, scrapeResults.path, scrapeResults.agentId, readByteCount.toLong())
+          if (chunkSizer != null)
+            awaitReady()
+        }
 
-    nonchunkedObserver.onCompleted()
-    chunkedObserver.onCompleted()
+        newScrapeResponseSummary(scrapeResults.scrapeId, totalChunkCount, totalByteCount, checksum.value).also {
+          logger.debug { "Writing summary totalChunkCount: $totalChunkCount for scrapeID: $scrapedId" }
+          writeChunkedResponse(it)
+          agent.metrics { scrapeResultCount.labels("chunked", resultEncoding).inc() }
+          recordSentBytes(totalByteCount)
+        }
+
+        chunkSizer?.apply {
+          val elapsedNanos = System.nanoTime() - start
+          linkNanosPerByte = elapsedNanos.toDouble() / totalByteCount
+          update(totalByteCount, elapsedNanos)
+          logger.debug { "Chunk size for ${agent.proxyHost} is now ${this.chunkSize}" }
+        }
+      }
+    }
   }
 
-  companion object : KLogging()
+  // Sizes are before any transport compression
+  private fun recordSentBytes(byteCount: Int) =
+      agent.metrics { sentByteCount.labels(agent.proxyHost).inc(byteCount.toDouble()) }
+
+  companion object : KLogging() {
+    private const val READY_TIMEOUT_MILLIS = 1000L
+  }
 }
\ No newline at end of file
@@ -18,27 +18,59 @@
 
 package io.prometheus.agent
 
+import brave.Span
+import brave.propagation.Propagation
 import com.github.pambrose.common.dsl.KtorDsl.get
 import com.github.pambrose.common.dsl.KtorDsl.http
 import com.github.pambrose.common.util.simpleClassName
-import com.github.pambrose.common.util.zip
+import com.google.common.base.Utf8
 import com.google.common.net.HttpHeaders
 import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.client.request.header
 import io.ktor.client.response.HttpResponse
 import io.ktor.client.response.readText
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.charset
 import io.ktor.http.isSuccess
 import io.prometheus.Agent
+import io.prometheus.common.GzipPool
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.COMPRESS
+import io.prometheus.common.ScrapeEvents.Stage.FETCH
+import io.prometheus.common.ScrapeEvents.Stage.REQUEST_DEQUEUED
 import io.prometheus.common.ScrapeResults
+import io.prometheus.common.ScrapeTracing.isTraced
+import io.prometheus.common.ScrapeTracing.toScrapeTraceContext
+import io.prometheus.common.ScrapeTracing.toTraceContext
+import io.prometheus.common.SpillFile
+import io.prometheus.grpc.PhaseTimings
 import io.prometheus.grpc.ScrapeRequest
+import kotlinx.coroutines.CancellationException
+import kotlinx.io.core.readText
 import mu.KLogging
 import java.io.IOException
 import java.util.concurrent.atomic.AtomicReference
 
 class AgentHttpService(val agent: Agent) {
+  private val agentConfigVals = agent.configVals.agent
+  private val spillThresholdBytes = agentConfigVals.spillThresholdBytes
+  private val maxScrapeSizeBytes = agentConfigVals.maxScrapeSizeBytes
 
-  suspend fun fetchScrapeUrl(request: ScrapeRequest): ScrapeResults =
+  private val tracing by lazy { agent.zipkinReporterService.newTracing("agent-http") }
+  private val injector by lazy {
+    tracing.propagation().injector(Propagation.Setter<HttpRequestBuilder, String> { builder, key, value ->
+      builder.header(key, value)
+    })
+  }
+
+  // receivedNanos is when the request arrived from the proxy, so the time it waited in the backlog can be reported
+  suspend fun fetchScrapeUrl(request: ScrapeRequest, receivedNanos: Long = System.nanoTime()): ScrapeResults =
       ScrapeResults(agentId = request.agentId, scrapeId = request.scrapeId).also { scrapeResults ->
+        val fetchStart = System.nanoTime()
+        ScrapeEvents.emit(REQUEST_DEQUEUED, request.scrapeId, request.path, request.agentId)
+        val fetchEvent = ScrapeEvents.begin(FETCH)
+        scrapeResults.path = request.path
+        val span = newFetchSpan(request)
         val scrapeMsg = AtomicReference("")
         val path = request.path
         val pathContext = agent.pathManager[path]
@@ -49,55 +81,164 @@ class AgentHttpService(val agent: Agent) {
           if (request.debugEnabled)
             scrapeResults.setDebugInfo("None", "Invalid path: $path")
         }
+        else if (pathContext.circuitBreaker?.tryAcquire() == false) {
+          // The target has been failing, so the scrape fails fast rather than waiting on it again
+          val reason = "Circuit breaker is open: ${pathContext.circuitBreaker}"
+          logger.debug { "$reason: ${pathContext.url}" }
+          scrapeResults.apply {
+            statusCode = HttpStatusCode.ServiceUnavailable.value
+            failureReason = reason
+            circuitOpen = true
+            if (request.debugEnabled)
+              setDebugInfo(pathContext.url, reason)
+          }
+          scrapeMsg.set("circuit_open")
+        }
         else {
-          val requestTimer = if (agent.isMetricsEnabled) agent.startTimer() else null
           val url = pathContext.url
           logger.debug { "Fetching $pathContext" }
 
           // Content is fetched here
+          var fetchFailed = false
+          var fetchCancelled = false
           try {
             http {
-              get(url, getSetUp(request), getBlock(url, scrapeResults, scrapeMsg, request.debugEnabled))
+              get(url,
+                  getSetUp(request, span),
+                  getBlock(url, pathContext, scrapeResults, scrapeMsg, request.debugEnabled))
             }
+          } catch (e: CancellationException) {
+            // A shutdown or cancelled scrape says nothing about the target, so the circuit breaker is left alone
+            fetchCancelled = true
+            throw e
           } catch (e: IOException) {
+            fetchFailed = true
+            span?.error(e)
             logger.info { "Failed HTTP request: $url [${e.simpleClassName}: ${e.message}]" }
             if (request.debugEnabled)
               scrapeResults.setDebugInfo(url, "${e.simpleClassName} - ${e.message}")
           } catch (e: Throwable) {
+            fetchFailed = true
+            span?.error(e)
             logger.warn(e) { "fetchScrapeUrl() $e - $url" }
             if (request.debugEnabled)
               scrapeResults.setDebugInfo(url, "${e.simpleClassName} - ${e.message}")
           } finally {
-            requestTimer?.observeDuration()
+            agent.metrics { recordScrapeLatency(path, System.nanoTime() - fetchStart) }
+            pathContext.circuitBreaker?.takeUnless { fetchCancelled }?.apply {
+              // Only a target that cannot be reached, times out or answers with a 5xx counts against it.
+              // A 404 comes from a live target, and a 502 for oversized content comes from the agent itself.
+              val targetFailed =
+                  fetchFailed || (scrapeMsg.get() != "oversized" && scrapeResults.statusCode in 500..599)
+              if (targetFailed) recordFailure() else recordSuccess()
+              // Sent back with the results, so the proxy can show which paths are failing fast
+              scrapeResults.circuitOpen = isOpen
+            }
           }
         }
 
+        scrapeResults.apply {
+          ScrapeEvents.end(fetchEvent, scrapeId, path, agentId, if (fetchEvent == null) 0L else wireByteCount)
+          readyNanos = System.nanoTime()
+          span?.apply {
+            tag("http.status_code", statusCode.toString())
+            finish()
+            // The span goes back to the proxy, so it can be tied to the proxy's span
+            traceContext = context().toScrapeTraceContext()
+          }
+          // The compress phase was timed within the fetch, so it is taken out of the fetch phase
+          phaseTimings =
+              phaseTimings.toBuilder()
+                  .setQueueNanos(fetchStart - receivedNanos)
+                  .setFetchNanos(readyNanos - fetchStart - phaseTimings.compressNanos)
+                  .build()
+        }
+
         agent.updateScrapeCounter(scrapeMsg.get())
       }
 
-  private fun getSetUp(request: ScrapeRequest): HttpRequestBuilder.() -> Unit = {
+  // Continues the proxy's span when the scrape is traced, or returns null so an untraced scrape creates no spans
+  private fun newFetchSpan(request: ScrapeRequest): Span? =
+      if (agent.isZipkinEnabled && request.traceContext.isTraced)
+        tracing.tracer()
+            .newChild(request.traceContext.toTraceContext())
+            .name("fetch")
+            .kind(Span.Kind.CLIENT)
+            .tag("path", request.path)
+            .start()
+      else
+        null
+
+  private fun getSetUp(request: ScrapeRequest, span: Span?): HttpRequestBuilder.() -> Unit = {
     val accept: String? = request.accept
     if (accept?.isNotEmpty() == true)
       header(HttpHeaders.ACCEPT, accept)
+    // The target sees B3 headers, so an instrumented exporter joins the trace
+    if (span != null)
+      injector.inject(span.context(), this)
+  }
+
+  fun shutDown() {
+    if (agent.isZipkinEnabled)
+      tracing.close()
   }
 
   private fun getBlock(url: String,
+                       pathContext: AgentPathManager.PathContext,
                        responseArg: ScrapeResults,
                        scrapeCounterMsg: AtomicReference<String>,
                        debugEnabled: Boolean): suspend (HttpResponse) -> Unit =
       { response ->
         responseArg.statusCode = response.status.value
 
-        if (response.status.isSuccess()) {
+        // A declared length lets an oversized page be refused without reading it
+        val contentLength = response.headers[HttpHeaders.CONTENT_LENGTH]?.toLongOrNull() ?: -1L
+        val content = if (response.status.isSuccess() && !exceedsMax(contentLength)) response.readTextWithinMax() else null
+        val byteCount = content?.let { Utf8.encodedLength(it).toLong() } ?: contentLength
+
+        if (response.status.isSuccess() && content == null) {
+          val size = if (byteCount == -1L) "more than $maxScrapeSizeBytes" else "$byteCount"
+          val reason = "Content size $size exceeds max of $maxScrapeSizeBytes bytes"
+          logger.warn { "$reason: $url" }
+          responseArg.apply {
+            statusCode = HttpStatusCode.BadGateway.value
+            failureReason = reason
+            if (debugEnabled)
+              setDebugInfo(url, reason)
+          }
+          scrapeCounterMsg.set("oversized")
+        }
+        else if (content != null) {
           responseArg.apply {
             contentType = response.headers[HttpHeaders.CONTENT_TYPE].orEmpty()
             // Zip the content here
-            val content = response.readText()
-            zipped = content.length > agent.configVals.agent.minGzipSizeBytes
-            if (zipped)
-              contentAsZipped = content.zip()
-            else
+            val compression = pathContext.compression
+            val decision = compression.decide(byteCount.toInt(), agent.grpcService.linkNanosPerByte)
+            zipped = decision.zipped
+            if (zipped) {
+              val start = System.nanoTime()
+              val compressEvent = ScrapeEvents.begin(COMPRESS)
+              contentAsZipped = GzipPool.gzip(content, compression.gzipLevel)
+              ScrapeEvents.end(compressEvent, scrapeId, path, agentId, contentAsZipped.size().toLong())
+              compression.record(byteCount.toInt(), contentAsZipped.size(), System.nanoTime() - start)
+              // Large results may wait in the backlog, so they are kept off the heap until they are sent
+              if (spillThresholdBytes != -1 && contentAsZipped.size() > spillThresholdBytes) {
+                contentAsZipped = SpillFile.spill(contentAsZipped, agentConfigVals.spillDirectory)
+                agent.metrics { scrapeSpillCount.inc() }
+              }
+              phaseTimings = PhaseTimings.newBuilder().setCompressNanos(System.nanoTime() - start).build()
+            }
+            else {
               contentAsText = content
+            }
+            agent.metrics {
+              pathGzipDecisionCount.labels(pathContext.path, decision.label).inc()
+              recordScrapeBytes("uncompressed", pathContext.path, byteCount)
+              if (zipped) {
+                recordScrapeBytes("compressed", pathContext.path, contentAsZipped.size().toLong())
+                pathGzipRatio.labels(pathContext.path).set(compression.ratio)
+              }
+            }
             validResponse = true
           }
           if (debugEnabled)
@@ -111,5 +252,23 @@ class AgentHttpService(val agent: Agent) {
         }
       }
 
+  // Reads at most one byte past the limit, so a page without a declared length is not buffered in full
+  // to find out it is oversized. Returns null if the content exceeds the limit.
+  private suspend fun HttpResponse.readTextWithinMax(): String? {
+    if (maxScrapeSizeBytes == -1)
+      return readText()
+
+    val packet = content.readRemaining(maxScrapeSizeBytes + 1L)
+    return if (exceedsMax(packet.remaining)) {
+      packet.release()
+      null
+    }
+    else {
+      packet.readText(charset() ?: Charsets.ISO_8859_1)
+    }
+  }
+
+  private fun exceedsMax(byteCount: Long) = maxScrapeSizeBytes != -1 && byteCount > maxScrapeSizeBytes
+
   companion object : KLogging()
 }
\ No newline at end of file
@@ -20,17 +20,20 @@ package io.prometheus.agent
 
 import com.github.pambrose.common.dsl.PrometheusDsl.counter
 import com.github.pambrose.common.dsl.PrometheusDsl.gauge
-import com.github.pambrose.common.dsl.PrometheusDsl.summary
 import com.github.pambrose.common.metrics.SamplerGaugeCollector
 import io.prometheus.Agent
+import io.prometheus.client.Histogram
+import io.prometheus.common.GzipPool
+import io.prometheus.common.BoundedLabelHistogram
+import io.prometheus.common.BoundedLabelHistogram.Companion.observeNanos
 
 class AgentMetrics(agent: Agent) {
 
   val scrapeResultCount =
       counter {
         name("agent_scrape_result_count")
-        help("Agent scrape result count")
-        labelNames("type")
+        help("Agent scrape result count by content type and gRPC transport encoding")
+        labelNames("type", "encoding")
       }
 
   val scrapeRequestCount =
@@ -47,12 +50,75 @@ class AgentMetrics(agent: Agent) {
         labelNames("type")
       }
 
-  val scrapeRequestLatency =
-      summary {
-      name("agent_scrape_request_latency_seconds")
-      help("Agent scrape request latency in seconds")
-      labelNames("agent_name")
-    }
+  private val metricsConfigVals = agent.configVals.agent.metrics
+
+  private val latencyPathsEnabled = metricsConfigVals.latencyPathGroupsEnabled
+
+  // An agent's paths are few and fixed by its config, so they serve as its path groups
+  private val scrapeRequestLatency =
+      BoundedLabelHistogram("agent_scrape_request_latency_seconds",
+                            "Agent scrape request latency in seconds",
+                            metricsConfigVals.latencyBuckets ?: BoundedLabelHistogram.DEFAULT_BUCKETS,
+                            boundedLabelNames = if (latencyPathsEnabled) listOf("path") else emptyList(),
+                            maxLabelValues = metricsConfigVals.maxLatencyPathGroups).register()
+
+  fun recordScrapeLatency(path: String, nanos: Long) =
+      (if (latencyPathsEnabled) scrapeRequestLatency.labels(path) else scrapeRequestLatency.labels())
+          .observeNanos(nanos)
+
+  val chunkContentSize =
+      gauge {
+        name("agent_chunk_content_size_bytes")
+        help("Agent chunk content size in bytes")
+        labelNames("proxy_host")
+      }
+
+  val pathGzipDecisionCount =
+      counter {
+        name("agent_path_gzip_decision_count")
+        help("Agent gzip decisions per path")
+        labelNames("path", "decision")
+      }
+
+  val pathGzipRatio =
+      gauge {
+        name("agent_path_gzip_ratio")
+        help("Agent recent zipped to unzipped size ratio per path")
+        labelNames("path")
+      }
+
+  val scrapeByteCount =
+      counter {
+        name("agent_scrape_byte_count")
+        help("Agent scraped bytes by type: uncompressed and compressed")
+        labelNames("type", "path")
+      }
+
+  val scrapeSizeBytes: Histogram =
+      Histogram.build()
+          .name("agent_scrape_size_bytes")
+          .help("Agent scrape sizes in bytes by type")
+          .exponentialBuckets(1024.0, 4.0, 10)
+          .labelNames("type", "path")
+          .register()
+
+  val sentByteCount =
+      counter {
+        name("agent_sent_byte_count")
+        help("Agent scrape result bytes written to the proxy")
+        labelNames("proxy_host")
+      }
+
+  val scrapeSpillCount =
+      counter {
+        name("agent_scrape_spill_count")
+        help("Agent scrape results spilled to a temp file")
+      }
+
+  fun recordScrapeBytes(type: String, path: String, byteCount: Long) {
+    scrapeByteCount.labels(type, path).inc(byteCount.toDouble())
+    scrapeSizeBytes.labels(type, path).observe(byteCount.toDouble())
+  }
 
   init {
     gauge {
@@ -63,5 +129,21 @@ class AgentMetrics(agent: Agent) {
     SamplerGaugeCollector("agent_scrape_backlog_size",
                           "Agent scrape backlog size",
                           data = { agent.scrapeRequestBacklogSize.get().toDouble() })
+
+    SamplerGaugeCollector("agent_circuit_open_count",
+                          "Agent paths whose circuit breaker is open",
+                          data = { agent.pathManager.openCircuitCount.toDouble() })
+
+    SamplerGaugeCollector("agent_gzip_pool_deflater_count",
+                          "Agent pooled Deflaters created",
+                          data = { GzipPool.deflaterCount.get().toDouble() })
+
+    SamplerGaugeCollector("agent_gzip_pool_deflate_count",
+                          "Agent scrapes zipped with a pooled Deflater",
+                          data = { GzipPool.deflateCount.get().toDouble() })
+
+    SamplerGaugeCollector("agent_gzip_pool_buffer_bytes",
+                          "Agent gzip pool buffer bytes retained",
+                          data = { GzipPool.deflateBufferBytes.get().toDouble() })
   }
 }
\ No newline at end of file
@@ -21,13 +21,24 @@ package io.prometheus.agent
 import com.google.common.collect.Maps.newConcurrentMap
 import io.prometheus.Agent
 import io.prometheus.common.GrpcObjects.EMPTY_PATH
+import io.prometheus.common.GzipPool
 import mu.KLogging
 import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.zip.Deflater.DEFAULT_COMPRESSION
 
 class AgentPathManager(private val agent: Agent) {
 
   private val agentConfigVals = agent.configVals.agent
   private val pathContextMap: ConcurrentMap<String, PathContext> = newConcurrentMap()
+  private val defaultCodec = PathCompression.codecOf(agentConfigVals.contentCodec)
+  private val defaultGzipLevel =
+      agentConfigVals.gzipLevel.also { require(GzipPool.isValidLevel(it)) { "Invalid agent.gzipLevel: $it" } }
+
+  // Content that fits in a single message is left to the transport when it compresses, so it is not zipped twice
+  private val minTransportGzipSizeBytes by lazy {
+    if (agent.grpcService.transportEncoding == null) 0 else agent.options.chunkContentSizeKbs
+  }
 
   operator fun get(path: String): PathContext? = pathContextMap[path]
 
@@ -35,12 +46,18 @@ class AgentPathManager(private val agent: Agent) {
 
   fun pathMapSize(): Int = agent.grpcService.pathMapSize()
 
+  val openCircuitCount: Int
+    get() = pathContextMap.values.count { it.circuitBreaker?.isOpen == true }
+
   private val pathConfigs =
       agentConfigVals.pathConfigs
           .map {
             mapOf(NAME to "\"" + it.name + "\"",
                   PATH to it.path,
-                  URL to it.url)
+                  URL to it.url,
+                  CONTENT_CODEC to it.contentCodec.orEmpty(),
+                  GZIP_LEVEL to it.gzipLevel.toString(),
+                  MIN_GZIP_SIZE_BYTES to it.minGzipSizeBytes.toString())
           }
           .onEach { logger.info { "Proxy path /${it["path"]} will be assigned to ${it["url"]}" } }
 
@@ -49,21 +66,37 @@ class AgentPathManager(private val agent: Agent) {
         val path = it["path"]
         val url = it["url"]
         if (path != null && url != null) {
-          registerPath(path, url)
+          registerPath(path,
+                       url,
+                       it[CONTENT_CODEC].orEmpty(),
+                       it[GZIP_LEVEL]?.toInt() ?: DEFAULT_COMPRESSION,
+                       it[MIN_GZIP_SIZE_BYTES]?.toInt() ?: -1)
         }
         else {
           logger.error { "Null path/url values: $path/$url" }
         }
       }
 
-  fun registerPath(pathVal: String, url: String) {
+  // An empty codec and -1 values use the agent-wide settings
+  fun registerPath(pathVal: String,
+                   url: String,
+                   contentCodec: String = "",
+                   gzipLevel: Int = DEFAULT_COMPRESSION,
+                   minGzipSizeBytes: Int = -1) {
     require(pathVal.isNotEmpty()) { EMPTY_PATH }
     require(url.isNotEmpty()) { "Empty URL" }
+    require(GzipPool.isValidLevel(gzipLevel)) { "Invalid gzip level: $gzipLevel" }
+    val minGzipSize = if (minGzipSizeBytes == -1) agent.options.minGzipSizeBytes else minGzipSizeBytes
+    val compression =
+        PathCompression(codec = if (contentCodec.isEmpty()) defaultCodec else PathCompression.codecOf(contentCodec),
+                        gzipLevel = if (gzipLevel == DEFAULT_COMPRESSION) defaultGzipLevel else gzipLevel,
+                        minGzipSizeBytes = maxOf(minGzipSize, minTransportGzipSizeBytes),
+                        maxRatio = agentConfigVals.adaptiveGzipMaxRatio)
     val path = if (pathVal.startsWith("/")) pathVal.substring(1) else pathVal
     val pathId = agent.grpcService.registerPathOnProxy(path)
     if (!agent.isTestMode)
       logger.info { "Registered $url as /$path" }
-    pathContextMap[path] = PathContext(pathId, path, url)
+    pathContextMap[path] = PathContext(pathId, path, url, compression, newCircuitBreaker())
   }
 
   fun unregisterPath(pathVal: String) {
@@ -88,7 +121,19 @@ class AgentPathManager(private val agent: Agent) {
     private const val NAME = "name"
     private const val PATH = "path"
     private const val URL = "url"
+    private const val CONTENT_CODEC = "contentCodec"
+    private const val GZIP_LEVEL = "gzipLevel"
+    private const val MIN_GZIP_SIZE_BYTES = "minGzipSizeBytes"
   }
 
-  data class PathContext(val pathId: Long, val path: String, val url: String)
+  private fun newCircuitBreaker() =
+      agentConfigVals.circuitBreakerFailureThreshold
+          .takeIf { it != -1 }
+          ?.let { CircuitBreaker(it, SECONDS.toNanos(agentConfigVals.circuitBreakerOpenSecs.toLong())) }
+
+  data class PathContext(val pathId: Long,
+                         val path: String,
+                         val url: String,
+                         val compression: PathCompression,
+                         val circuitBreaker: CircuitBreaker? = null)
 }
\ No newline at end of file
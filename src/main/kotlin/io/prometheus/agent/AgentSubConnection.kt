@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
+import io.grpc.ClientInterceptors
+import io.grpc.ManagedChannel
+import io.prometheus.Agent
+import io.prometheus.common.GrpcCompression.withEncoding
+import io.prometheus.grpc.ProxyServiceGrpc
+import io.prometheus.grpc.ProxyServiceGrpc.ProxyServiceBlockingStub
+import io.prometheus.grpc.ProxyServiceGrpc.ProxyServiceStub
+
+// An additional channel to the proxy. The proxy assigns it its own agentId, which is registered
+// as a sub-connection of the primary agentId, so it carries scrapes for the primary's paths.
+class AgentSubConnection(agent: Agent, val channel: ManagedChannel, encoding: String?) {
+  var agentId: String by nonNullableReference("")
+
+  private val interceptedChannel = ClientInterceptors.intercept(channel, AgentClientInterceptor(agent, this))
+
+  val blockingStub: ProxyServiceBlockingStub = ProxyServiceGrpc.newBlockingStub(interceptedChannel).withEncoding(encoding)
+  val asyncStub: ProxyServiceStub = ProxyServiceGrpc.newStub(interceptedChannel).withEncoding(encoding)
+
+  fun shutDown() {
+    channel.shutdownNow()
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.prometheus.agent.CircuitBreaker.State.CLOSED
+import io.prometheus.agent.CircuitBreaker.State.HALF_OPEN
+import io.prometheus.agent.CircuitBreaker.State.OPEN
+
+// Fails scrapes of a dead target fast instead of waiting on its connect timeout each time.
+// After failureThreshold consecutive failures the breaker opens for openNanos, and then lets
+// a single probe scrape through. The probe closes the breaker if it succeeds and reopens it if not.
+class CircuitBreaker(private val failureThreshold: Int,
+                     private val openNanos: Long,
+                     private val clock: () -> Long = System::nanoTime) {
+
+  init {
+    require(failureThreshold > 0) { "Invalid circuit breaker failure threshold: $failureThreshold" }
+  }
+
+  enum class State { CLOSED, OPEN, HALF_OPEN }
+
+  var state = CLOSED
+    private set
+  var consecutiveFailures = 0
+    private set
+  private var openedNanos = 0L
+
+  // Returns false if the scrape should fail fast
+  @Synchronized
+  fun tryAcquire(): Boolean =
+      when (state) {
+        CLOSED -> true
+        OPEN ->
+          if (clock() - openedNanos >= openNanos) {
+            state = HALF_OPEN
+            true
+          }
+          else {
+            false
+          }
+        // A probe is already in flight
+        HALF_OPEN -> false
+      }
+
+  @Synchronized
+  fun recordSuccess() {
+    state = CLOSED
+    consecutiveFailures = 0
+  }
+
+  @Synchronized
+  fun recordFailure() {
+    consecutiveFailures++
+    if (state == HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = OPEN
+      openedNanos = clock()
+    }
+  }
+
+  val isOpen get() = state != CLOSED
+
+  override fun toString() = "$state ($consecutiveFailures consecutive failures)"
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.prometheus.agent.PathCompression.Codec.GZIP
+import io.prometheus.agent.PathCompression.Codec.NONE
+import io.prometheus.agent.PathCompression.Decision.GZIPPED
+import io.prometheus.agent.PathCompression.Decision.PROBED
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_ADAPTIVE
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_CODEC
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_SIZE
+
+// Decides whether the content scraped from a path is gzipped. In adaptive mode the recent ratio and CPU cost
+// of zipping the path are tracked, and zipping is skipped when it saves too few bytes, or when it costs more
+// CPU time than the saved bytes would take on the proxy link. Skipped paths are still zipped now and then,
+// so a change in their content is noticed.
+class PathCompression(val codec: Codec,
+                      val gzipLevel: Int,
+                      val minGzipSizeBytes: Int,
+                      private val maxRatio: Double = 1.0) {
+
+  enum class Codec { GZIP, NONE, ADAPTIVE }
+
+  enum class Decision(val zipped: Boolean) {
+    GZIPPED(true),
+    PROBED(true),
+    SKIPPED_CODEC(false),
+    SKIPPED_SIZE(false),
+    SKIPPED_ADAPTIVE(false);
+
+    val label = name.toLowerCase()
+  }
+
+  // Zipped size over content size, and zipping nanos per content byte, as moving averages
+  private var ratioAverage = -1.0
+  private var nanosPerByteAverage = 0.0
+  private var skippedCount = 0
+
+  val ratio: Double
+    @Synchronized get() = ratioAverage
+
+  // byteCount is the UTF-8 size of the content and linkNanosPerByte is 0 when the link has not been measured
+  @Synchronized
+  fun decide(byteCount: Int, linkNanosPerByte: Double): Decision =
+      when {
+        codec == NONE -> SKIPPED_CODEC
+        byteCount <= minGzipSizeBytes -> SKIPPED_SIZE
+        codec == GZIP || ratioAverage < 0 || paysOff(linkNanosPerByte) -> {
+          skippedCount = 0
+          GZIPPED
+        }
+        ++skippedCount >= PROBE_INTERVAL -> {
+          skippedCount = 0
+          PROBED
+        }
+        else -> SKIPPED_ADAPTIVE
+      }
+
+  private fun paysOff(linkNanosPerByte: Double) =
+      ratioAverage <= maxRatio
+          && (linkNanosPerByte <= 0.0 || nanosPerByteAverage < (1 - ratioAverage) * linkNanosPerByte)
+
+  @Synchronized
+  fun record(byteCount: Int, zippedByteCount: Int, elapsedNanos: Long) {
+    if (byteCount <= 0)
+      return
+    val ratio = zippedByteCount.toDouble() / byteCount
+    val nanosPerByte = elapsedNanos.toDouble() / byteCount
+    if (ratioAverage < 0) {
+      ratioAverage = ratio
+      nanosPerByteAverage = nanosPerByte
+    }
+    else {
+      ratioAverage += ALPHA * (ratio - ratioAverage)
+      nanosPerByteAverage += ALPHA * (nanosPerByte - nanosPerByteAverage)
+    }
+  }
+
+  companion object {
+    private const val ALPHA = 0.2
+    private const val PROBE_INTERVAL = 16
+
+    fun codecOf(name: String): Codec =
+        Codec.values().firstOrNull { it.name.equals(name, ignoreCase = true) }
+            ?: throw IllegalArgumentException("Invalid content codec: $name")
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import java.util.concurrent.ConcurrentHashMap
+
+// Caches the children of a labeled collector and bounds its open-ended labels. Fixed labels, such as a phase,
+// take any value, while the combinations of bounded labels past maxLabelValues are all mapped to OVERFLOW_LABEL.
+// Label values are passed as the fixed values followed by the bounded ones.
+// Children are kept in a tree with one level per label value, bounded labels first, so a lookup of an existing
+// child only walks the values and does not build a key.
+class BoundedLabelChildren<T : Any>(private val fixedLabelCount: Int,
+                                    boundedLabelCount: Int,
+                                    private val maxLabelValues: Int,
+                                    private val newChild: (Array<out String>) -> T) {
+
+  private class Node<T> {
+    val next = ConcurrentHashMap<String, Node<T>>(4)
+
+    @Volatile
+    var child: T? = null
+  }
+
+  private val labelCount = fixedLabelCount + boundedLabelCount
+  private val root = Node<T>()
+  private val overflowRoot = Node<T>()
+  private var admittedCount = 0
+
+  operator fun get(labelValues: Array<out String>): T {
+    require(labelValues.size == labelCount) { "Expected $labelCount label values, got ${labelValues.size}" }
+    // Bounded values that were not admitted are either new or overflowed, the latter is found under overflowRoot
+    return findChild(findBoundedNode(labelValues) ?: overflowRoot, labelValues) ?: addChild(labelValues)
+  }
+
+  private fun findBoundedNode(labelValues: Array<out String>): Node<T>? {
+    var node = root
+    for (i in fixedLabelCount until labelCount)
+      node = node.next[labelValues[i]] ?: return null
+    return node
+  }
+
+  private fun findChild(boundedNode: Node<T>, labelValues: Array<out String>): T? {
+    var node = boundedNode
+    for (i in 0 until fixedLabelCount)
+      node = node.next[labelValues[i]] ?: return null
+    return node.child
+  }
+
+  // Checking the count and admitting are one step, so concurrent new values cannot push past maxLabelValues
+  @Synchronized
+  private fun addChild(labelValues: Array<out String>): T {
+    val boundedNode = admit(labelValues)
+    var node = boundedNode ?: overflowRoot
+    for (i in 0 until fixedLabelCount)
+      node = node.next.getOrPut(labelValues[i]) { Node() }
+    return node.child
+        ?: newChild(if (boundedNode != null) labelValues else overflowValues(labelValues)).also { node.child = it }
+  }
+
+  // Returns null if the bounded values are new and maxLabelValues have already been admitted
+  private fun admit(labelValues: Array<out String>): Node<T>? {
+    var node = root
+    var isNew = false
+    for (i in fixedLabelCount until labelCount) {
+      val next = node.next[labelValues[i]]
+      if (next == null && !isNew) {
+        if (admittedCount >= maxLabelValues)
+          return null
+        isNew = true
+      }
+      node = next ?: Node<T>().also { node.next[labelValues[i]] = it }
+    }
+    if (isNew)
+      admittedCount++
+    return node
+  }
+
+  private fun overflowValues(labelValues: Array<out String>) =
+      Array(labelCount) { i -> if (i < fixedLabelCount) labelValues[i] else OVERFLOW_LABEL }
+
+  companion object {
+    const val OVERFLOW_LABEL = "other"
+  }
+}
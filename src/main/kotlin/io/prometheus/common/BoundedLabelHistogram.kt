@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import io.prometheus.client.Collector
+import io.prometheus.client.Histogram
+import java.util.concurrent.TimeUnit.SECONDS
+
+// A simpleclient Histogram whose open-ended labels are bounded by BoundedLabelChildren
+class BoundedLabelHistogram(name: String,
+                            help: String,
+                            buckets: List<Double> = DEFAULT_BUCKETS,
+                            fixedLabelNames: List<String> = emptyList(),
+                            boundedLabelNames: List<String> = emptyList(),
+                            maxLabelValues: Int = 50) {
+
+  private val histogram =
+      Histogram.build()
+          .name(name)
+          .help(help)
+          .buckets(*buckets.filter { it < Double.POSITIVE_INFINITY }.sorted().distinct().toDoubleArray())
+          .apply {
+            if (fixedLabelNames.isNotEmpty() || boundedLabelNames.isNotEmpty())
+              labelNames(*(fixedLabelNames + boundedLabelNames).toTypedArray())
+          }
+          .create()
+
+  private val children =
+      BoundedLabelChildren(fixedLabelNames.size, boundedLabelNames.size, maxLabelValues) { histogram.labels(*it) }
+
+  fun labels(vararg labelValues: String): Histogram.Child = children[labelValues]
+
+  fun register(): BoundedLabelHistogram = apply { histogram.register<Histogram>() }
+
+  fun collect(): List<Collector.MetricFamilySamples> = histogram.collect()
+
+  companion object {
+    const val OVERFLOW_LABEL = BoundedLabelChildren.OVERFLOW_LABEL
+    private val NANOS_PER_SECOND = SECONDS.toNanos(1).toDouble()
+
+    val DEFAULT_BUCKETS = listOf(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0)
+
+    fun Histogram.Child.observeNanos(nanos: Long) = observe(nanos / NANOS_PER_SECOND)
+  }
+}
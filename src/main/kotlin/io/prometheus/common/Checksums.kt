@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import io.prometheus.grpc.IntegrityMode
+import io.prometheus.grpc.IntegrityMode.CRC32
+import io.prometheus.grpc.IntegrityMode.CRC32C
+import io.prometheus.grpc.IntegrityMode.NONE
+import io.prometheus.grpc.IntegrityMode.SUMMARY_ONLY
+import mu.KLogging
+import java.util.EnumMap
+import java.util.zip.Checksum
+
+object Checksums : KLogging() {
+
+  // java.util.zip.CRC32C is intrinsified on JDK 9+, but the project still targets Java 8,
+  // so its constructor is looked up once and the table-driven CRC32C is used without it
+  private val crc32cFactory: () -> Checksum =
+      try {
+        val constructor = Class.forName("java.util.zip.CRC32C").getConstructor()
+        ({ constructor.newInstance() as Checksum })
+      } catch (e: ClassNotFoundException) {
+        logger.info { "java.util.zip.CRC32C not available, using a table-driven CRC32C" }
+        ({ TableCrc32c() })
+      }
+
+  private val checksumFactories: Map<IntegrityMode, () -> Checksum> =
+      EnumMap<IntegrityMode, () -> Checksum>(IntegrityMode::class.java).apply {
+        put(CRC32) { java.util.zip.CRC32() }
+        put(CRC32C, crc32cFactory)
+        put(SUMMARY_ONLY, crc32cFactory)
+        put(NONE) { NoChecksum }
+      }
+
+  val supportedModes = listOf(CRC32, CRC32C, SUMMARY_ONLY, NONE)
+
+  // UNRECOGNIZED is a valid enum name, but not a mode
+  fun parseIntegrityMode(name: String): IntegrityMode =
+      supportedModes.firstOrNull { it.name == name.toUpperCase() }
+          ?: throw IllegalArgumentException("Invalid integrity mode: $name - valid values are $supportedModes")
+
+  fun newChecksum(mode: IntegrityMode): Checksum =
+      checksumFactories[mode]?.invoke() ?: throw IllegalArgumentException("Unsupported integrity mode: $mode")
+
+  // Chunk checksums are only sent and verified in these modes
+  val IntegrityMode.checksChunks get() = this == CRC32 || this == CRC32C
+
+  val IntegrityMode.checksSummary get() = this != NONE
+
+  private object NoChecksum : Checksum {
+    override fun update(b: Int) {}
+
+    override fun update(b: ByteArray, off: Int, len: Int) {}
+
+    override fun getValue() = 0L
+
+    override fun reset() {}
+  }
+
+  private class TableCrc32c : Checksum {
+    private var crc = -1
+
+    override fun update(b: Int) {
+      crc = (crc ushr 8) xor CRC32C_TABLE[(crc xor b) and 0xFF]
+    }
+
+    override fun update(b: ByteArray, off: Int, len: Int) {
+      var c = crc
+      for (i in off until off + len)
+        c = (c ushr 8) xor CRC32C_TABLE[(c xor b[i].toInt()) and 0xFF]
+      crc = c
+    }
+
+    override fun getValue() = crc.inv().toLong() and 0xFFFFFFFFL
+
+    override fun reset() {
+      crc = -1
+    }
+  }
+
+  // Reflected Castagnoli polynomial
+  private val CRC32C_TABLE =
+      IntArray(256) { n ->
+        var c = n
+        repeat(8) { c = if (c and 1 != 0) (c ushr 1) xor 0x82F63B78.toInt() else c ushr 1 }
+        c
+      }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import io.grpc.Codec
+import io.grpc.CompressorRegistry
+import io.grpc.DecompressorRegistry
+import io.grpc.Metadata
+import io.grpc.stub.AbstractStub
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
+
+object GrpcCompression {
+  const val NONE = "none"
+  const val GZIP = "gzip"
+  const val DEFLATE = "deflate"
+  const val IDENTITY = "identity"
+
+  val GRPC_ENCODING_KEY: Metadata.Key<String> = Metadata.Key.of("grpc-encoding", Metadata.ASCII_STRING_MARSHALLER)
+
+  // Registered on every server and channel, so either side can decode deflate even when it is not sending it
+  val compressorRegistry: CompressorRegistry =
+      CompressorRegistry.newEmptyInstance()
+          .apply {
+            register(Codec.Identity.NONE)
+            register(Codec.Gzip())
+            register(DeflateCodec)
+          }
+
+  val decompressorRegistry: DecompressorRegistry = DecompressorRegistry.getDefaultInstance().with(DeflateCodec, true)
+
+  // Returns the gRPC message encoding for a compression config value, or null for none
+  fun encodingOf(compression: String): String? =
+      when (val name = compression.toLowerCase()) {
+        NONE, "" -> null
+        GZIP, DEFLATE -> name
+        else -> throw IllegalArgumentException("Invalid compression: $compression - expected none, gzip or deflate")
+      }
+
+  fun <T : AbstractStub<T>> T.withEncoding(encoding: String?): T = if (encoding == null) this else withCompression(encoding)
+
+  // zlib deflate at the fastest level, which trades some ratio for much less CPU than gzip
+  object DeflateCodec : Codec {
+    override fun getMessageEncoding() = DEFLATE
+
+    override fun compress(os: OutputStream): OutputStream =
+        object : DeflaterOutputStream(os, Deflater(Deflater.BEST_SPEED)) {
+          // A Deflater passed in is not released by DeflaterOutputStream.close()
+          override fun close() {
+            try {
+              super.close()
+            } finally {
+              def.end()
+            }
+          }
+        }
+
+    override fun decompress(inputStream: InputStream): InputStream = InflaterInputStream(inputStream)
+  }
+}
@@ -25,6 +25,7 @@ import io.prometheus.grpc.ChunkedScrapeResponse
 import io.prometheus.grpc.HeaderData
 import io.prometheus.grpc.HeartBeatRequest
 import io.prometheus.grpc.HeartBeatResponse
+import io.prometheus.grpc.IntegrityMode
 import io.prometheus.grpc.PathMapSizeRequest
 import io.prometheus.grpc.PathMapSizeResponse
 import io.prometheus.grpc.RegisterAgentRequest
@@ -32,11 +33,14 @@ import io.prometheus.grpc.RegisterAgentResponse
 import io.prometheus.grpc.RegisterPathRequest
 import io.prometheus.grpc.RegisterPathResponse
 import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.grpc.ScrapeCancel
 import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeStreamMessage
+import io.prometheus.grpc.ScrapeTraceContext
+import io.prometheus.grpc.StreamPing
 import io.prometheus.grpc.SummaryData
 import io.prometheus.grpc.UnregisterPathRequest
 import io.prometheus.grpc.UnregisterPathResponse
-import java.util.zip.CRC32
 
 object GrpcObjects {
 
@@ -56,22 +60,37 @@ object GrpcObjects {
         build()
       }
 
-  fun newRegisterAgentRequest(agentId: String, agentName: String, hostName: String): RegisterAgentRequest {
+  fun newRegisterAgentRequest(agentId: String,
+                              agentName: String,
+                              hostName: String,
+                              keepAliveTimeSecs: Int,
+                              parentAgentId: String = ""): RegisterAgentRequest {
     require(agentId.isNotEmpty()) { EMPTY_AGENTID }
     return RegisterAgentRequest.newBuilder().run {
       this.agentId = agentId
       this.agentName = agentName
       this.hostName = hostName
+      // Older proxies only read the flag, newer ones also check the interval against permitKeepAliveTimeSecs
+      this.transportLiveness = keepAliveTimeSecs > 0
+      this.keepAliveTimeSecs = maxOf(keepAliveTimeSecs, 0)
+      this.parentAgentId = parentAgentId
       build()
     }
   }
 
-  fun newRegisterAgentResponse(valid: Boolean, reason: String, agentId: String): RegisterAgentResponse {
+  fun newRegisterAgentResponse(valid: Boolean,
+                               reason: String,
+                               agentId: String,
+                               transportLiveness: Boolean,
+                               subConnection: Boolean = false): RegisterAgentResponse {
     require(agentId.isNotEmpty()) { EMPTY_AGENTID }
     return RegisterAgentResponse.newBuilder().run {
       this.valid = valid
       this.reason = reason
       this.agentId = agentId
+      addAllSupportedIntegrityModes(Checksums.supportedModes)
+      this.transportLiveness = transportLiveness
+      this.subConnection = subConnection
       build()
     }
   }
@@ -116,13 +135,15 @@ object GrpcObjects {
                        scrapeId: Long,
                        path: String,
                        accept: String?,
-                       debugEnabled: Boolean): ScrapeRequest {
+                       debugEnabled: Boolean,
+                       traceContext: ScrapeTraceContext = ScrapeTraceContext.getDefaultInstance()): ScrapeRequest {
     require(agentId.isNotEmpty()) { EMPTY_AGENTID }
     return ScrapeRequest.newBuilder().let { builder ->
       builder.agentId = agentId
       builder.scrapeId = scrapeId
       builder.path = path
       builder.debugEnabled = debugEnabled
+      builder.traceContext = traceContext
       if (!accept.isNullOrBlank())
         builder.accept = accept
       builder.build()
@@ -139,10 +160,13 @@ object GrpcObjects {
           contentType = contentType,
           zipped = zipped,
           failureReason = failureReason,
-          url = url
+          url = url,
+          phaseTimings = phaseTimings,
+          traceContext = traceContext
       ).also { results ->
+        results.circuitOpen = circuitOpen
         if (zipped)
-          results.contentAsZipped = contentAsZipped.toByteArray()
+          results.contentAsZipped = contentAsZipped
         else
           results.contentAsText = contentAsText
       }
@@ -156,15 +180,18 @@ object GrpcObjects {
         builder.contentType = contentType
         builder.zipped = zipped
         if (zipped)
-          builder.contentAsZipped = ByteString.copyFrom(contentAsZipped)
+          builder.contentAsZipped = contentAsZipped
         else
           builder.contentAsText = contentAsText
         builder.failureReason = failureReason
         builder.url = url
+        builder.phaseTimings = phaseTimings
+        builder.traceContext = traceContext
+        builder.circuitOpen = circuitOpen
         builder.build()
       }
 
-  fun ScrapeResults.toScrapeResponseHeader(): ChunkedScrapeResponse =
+  fun ScrapeResults.toScrapeResponseHeader(totalChunkCount: Int, integrityMode: IntegrityMode): ChunkedScrapeResponse =
       ChunkedScrapeResponse.newBuilder().let { builder ->
         builder.header =
             HeaderData.newBuilder().run {
@@ -175,6 +202,11 @@ object GrpcObjects {
               headerContentType = contentType
               headerFailureReason = failureReason
               headerUrl = url
+              headerTotalByteCount = contentAsZipped.size()
+              headerTotalChunkCount = totalChunkCount
+              headerIntegrityMode = integrityMode
+              headerPhaseTimings = phaseTimings
+              headerTraceContext = traceContext
               build()
             }
         builder.build()
@@ -183,16 +215,16 @@ object GrpcObjects {
   fun newScrapeResponseChunk(scrapeId: Long,
                              totalChunkCount: Int,
                              readByteCount: Int,
-                             checksum: CRC32,
-                             buffer: ByteArray): ChunkedScrapeResponse =
+                             checksum: Long,
+                             chunkBytes: ByteString): ChunkedScrapeResponse =
       ChunkedScrapeResponse.newBuilder().let { builder ->
         builder.chunk =
             ChunkData.newBuilder().run {
               chunkScrapeId = scrapeId
               chunkCount = totalChunkCount
               chunkByteCount = readByteCount
-              chunkChecksum = checksum.value
-              chunkBytes = ByteString.copyFrom(buffer)
+              chunkChecksum = checksum
+              this.chunkBytes = chunkBytes
               build()
             }
         builder.build()
@@ -201,14 +233,14 @@ object GrpcObjects {
   fun newScrapeResponseSummary(scrapeId: Long,
                                totalChunkCount: Int,
                                totalByteCount: Int,
-                               checksum: CRC32): ChunkedScrapeResponse =
+                               checksum: Long): ChunkedScrapeResponse =
       ChunkedScrapeResponse.newBuilder().let { builder ->
         builder.summary =
             SummaryData.newBuilder().run {
               summaryScrapeId = scrapeId
               summaryChunkCount = totalChunkCount
               summaryByteCount = totalByteCount
-              summaryChecksum = checksum.value
+              summaryChecksum = checksum
               build()
             }
         builder.build()
@@ -233,4 +265,40 @@ object GrpcObjects {
       build()
     }
   }
+
+  fun AgentInfo.toStreamMessage(): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        agentInfo = this@toStreamMessage
+        build()
+      }
+
+  fun ScrapeRequest.toStreamMessage(): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        request = this@toStreamMessage
+        build()
+      }
+
+  fun ScrapeResponse.toStreamMessage(): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        response = this@toStreamMessage
+        build()
+      }
+
+  fun ChunkedScrapeResponse.toStreamMessage(): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        chunkedResponse = this@toStreamMessage
+        build()
+      }
+
+  fun newScrapeCancelMessage(scrapeId: Long): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        cancel = ScrapeCancel.newBuilder().setCancelScrapeId(scrapeId).build()
+        build()
+      }
+
+  fun newStreamPingMessage(): ScrapeStreamMessage =
+      ScrapeStreamMessage.newBuilder().run {
+        ping = StreamPing.newBuilder().setPingTimeMillis(System.currentTimeMillis()).build()
+        build()
+      }
 }
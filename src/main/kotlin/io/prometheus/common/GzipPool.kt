@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import com.google.protobuf.ByteString
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+// Gzip with the zlib state and buffers borrowed from bounded pools, so a scrape does not allocate native memory
+// or leave a finalizable stream behind. The output is plain gzip, so older agents and proxies still interoperate.
+// Both functions are non-suspending and return what they borrow before exiting.
+// Agents only zip and proxies only unzip, so each side's counters describe a single component.
+object GzipPool {
+  private const val GZIP_MAGIC = 0x8b1f
+  private const val FHCRC = 2
+  private const val FEXTRA = 4
+  private const val FNAME = 8
+  private const val FCOMMENT = 16
+  private const val BUFFER_SIZE = 16 * 1024
+
+  // Output buffers that grew past this while handling a large scrape are not kept
+  private const val MAX_RETAINED_BYTES = 4 * 1024 * 1024
+
+  // Idle instances kept per pool; anything returned beyond this is released immediately
+  private val POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2
+
+  private val GZIP_HEADER = byteArrayOf(0x1f, 0x8b.toByte(), Deflater.DEFLATED.toByte(), 0, 0, 0, 0, 0, 0, 0xff.toByte())
+
+  val deflateCount = AtomicLong(0)
+  val inflateCount = AtomicLong(0)
+  val deflateBufferBytes = AtomicLong(0)
+  val inflateBufferBytes = AtomicLong(0)
+
+  private val deflaters = BoundedPool({ Deflater(Deflater.DEFAULT_COMPRESSION, true) }, { it.end() })
+  private val inflaters = BoundedPool({ Inflater(true) }, { it.end() })
+  private val deflateBuffers = BoundedPool({ Buffers(deflateBufferBytes) }, { it.release() })
+  private val inflateBuffers = BoundedPool({ Buffers(inflateBufferBytes) }, { it.release() })
+
+  val deflaterCount get() = deflaters.created
+  val inflaterCount get() = inflaters.created
+
+  fun isValidLevel(level: Int) = level == Deflater.DEFAULT_COMPRESSION || level in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION
+
+  fun gzip(content: String, level: Int = Deflater.DEFAULT_COMPRESSION): ByteString {
+    require(isValidLevel(level)) { "Invalid gzip level: $level" }
+    deflateCount.incrementAndGet()
+
+    val input = content.toByteArray(Charsets.UTF_8)
+    val crc = CRC32().apply { update(input) }
+
+    return deflaters.use { deflater ->
+      deflater.apply {
+        reset()
+        setLevel(level)
+        setInput(input)
+        finish()
+      }
+
+      deflateBuffers.use { buffers ->
+        buffers.use {
+          output.write(GZIP_HEADER)
+          while (!deflater.finished())
+            output.write(scratch, 0, deflater.deflate(scratch))
+          output.writeIntLE(crc.value.toInt())
+          output.writeIntLE(input.size)
+          output.toByteString()
+        }
+      }
+    }
+  }
+
+  // Reads directly from the (possibly rope) ByteString, so the zipped content is never flattened.
+  // maxBytes is checked as the content is inflated, since the size in the trailer is set by the sender.
+  fun gunzip(bytes: ByteString, maxBytes: Int = -1): String {
+    inflateCount.incrementAndGet()
+
+    val input = bytes.newInput()
+    readHeader(input)
+    val crc = CRC32()
+
+    return inflaters.use { inflater ->
+      inflater.reset()
+
+      inflateBuffers.use { buffers ->
+        buffers.use {
+          var lastRead = 0
+          while (!inflater.finished()) {
+            if (inflater.needsInput()) {
+              lastRead = input.read(inbuf)
+              if (lastRead <= 0)
+                throw ZipException("Unexpected end of gzip content")
+              inflater.setInput(inbuf, 0, lastRead)
+            }
+            val len = inflater.inflate(scratch)
+            if (len == 0 && inflater.needsDictionary())
+              throw ZipException("Invalid gzip content")
+            if (maxBytes != -1 && output.size().toLong() + len > maxBytes)
+              throw ContentSizeException(maxBytes)
+            crc.update(scratch, 0, len)
+            output.write(scratch, 0, len)
+          }
+
+          // The trailer starts in whatever input the inflater did not consume
+          val trailer = TrailerInput(inbuf, lastRead - inflater.remaining, inflater.remaining, input)
+          if (trailer.readIntLE() != crc.value.toInt() || trailer.readIntLE() != output.size())
+            throw ZipException("Corrupt gzip trailer")
+          output.toUtf8String()
+        }
+      }
+    }
+  }
+
+  // The gzip trailer ends with the uncompressed size mod 2^32, so a size limit can be checked without unzipping
+  fun uncompressedSize(bytes: ByteString): Long {
+    val size = bytes.size()
+    if (size < 4)
+      throw ZipException("Not in gzip format")
+    return (0..3).fold(0L) { acc, i -> acc or ((bytes.byteAt(size - 4 + i).toLong() and 0xff) shl (8 * i)) }
+  }
+
+  private fun readHeader(input: InputStream) {
+    fun readUByte() = input.read().also { if (it < 0) throw ZipException("Unexpected end of gzip header") }
+    fun readUShort() = readUByte() or (readUByte() shl 8)
+    fun skipString() {
+      while (readUByte() != 0) {
+      }
+    }
+
+    if (readUShort() != GZIP_MAGIC)
+      throw ZipException("Not in gzip format")
+    if (readUByte() != Deflater.DEFLATED)
+      throw ZipException("Unsupported gzip compression method")
+    val flags = readUByte()
+    // Skip mtime, xfl and os
+    repeat(6) { readUByte() }
+    if (flags and FEXTRA != 0)
+      repeat(readUShort()) { readUByte() }
+    if (flags and FNAME != 0)
+      skipString()
+    if (flags and FCOMMENT != 0)
+      skipString()
+    if (flags and FHCRC != 0)
+      readUShort()
+  }
+
+  private class TrailerInput(private val buf: ByteArray,
+                             private var pos: Int,
+                             private var remaining: Int,
+                             private val input: InputStream) {
+    private fun readUByte(): Int =
+        if (remaining > 0) {
+          remaining--
+          buf[pos++].toInt() and 0xff
+        }
+        else
+          input.read().also { if (it < 0) throw ZipException("Unexpected end of gzip trailer") }
+
+    fun readIntLE() = readUByte() or (readUByte() shl 8) or (readUByte() shl 16) or (readUByte() shl 24)
+  }
+
+  private class ReusableOutput : ByteArrayOutputStream(BUFFER_SIZE) {
+    val capacity get() = buf.size
+
+    fun writeIntLE(value: Int) {
+      write(value)
+      write(value ushr 8)
+      write(value ushr 16)
+      write(value ushr 24)
+    }
+
+    fun toByteString(): ByteString = ByteString.copyFrom(buf, 0, count)
+
+    fun toUtf8String() = String(buf, 0, count, Charsets.UTF_8)
+  }
+
+  // Instances returned to a full pool are disposed of, which ends Deflaters/Inflaters instead of
+  // leaving their native memory to the finalizer
+  private class BoundedPool<T : Any>(private val create: () -> T, private val dispose: (T) -> Unit) {
+    private val idle = ArrayBlockingQueue<T>(POOL_SIZE)
+    val created = AtomicLong(0)
+
+    inline fun <R> use(block: (T) -> R): R {
+      val item = idle.poll() ?: create().also { created.incrementAndGet() }
+      try {
+        return block(item)
+      } finally {
+        if (!idle.offer(item))
+          dispose(item)
+      }
+    }
+  }
+
+  private class Buffers(private val retainedBytes: AtomicLong) {
+    var output = ReusableOutput()
+    val scratch = ByteArray(BUFFER_SIZE)
+    val inbuf = ByteArray(BUFFER_SIZE)
+
+    private val size get() = (output.capacity + scratch.size + inbuf.size).toLong()
+
+    init {
+      retainedBytes.addAndGet(size)
+    }
+
+    fun release() {
+      retainedBytes.addAndGet(-size)
+    }
+
+    fun <T> use(block: Buffers.() -> T): T {
+      val before = output.capacity
+      try {
+        return block()
+      } finally {
+        output.reset()
+        if (output.capacity > MAX_RETAINED_BYTES)
+          output = ReusableOutput()
+        retainedBytes.addAndGet((output.capacity - before).toLong())
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import io.netty.channel.EventLoopGroup
+import io.netty.channel.ServerChannel
+import io.netty.channel.epoll.Epoll
+import io.netty.channel.epoll.EpollEventLoopGroup
+import io.netty.channel.epoll.EpollServerSocketChannel
+import io.netty.channel.epoll.EpollSocketChannel
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.netty.channel.socket.nio.NioSocketChannel
+import mu.KLogging
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.TimeUnit.SECONDS
+
+// Builds the gRPC executors and Netty event loop groups described in a transport config section.
+// Everything created here is owned by the caller and released with shutDown().
+class NettyTransports(private val name: String, epollEnabled: Boolean) {
+  private val eventLoopGroups = mutableListOf<EventLoopGroup>()
+  private val executors = mutableListOf<ExecutorService>()
+
+  val useEpoll =
+      epollEnabled &&
+      Epoll.isAvailable().also { available ->
+        if (!available)
+          logger.warn { "Epoll transport unavailable for $name, using NIO - ${Epoll.unavailabilityCause().message}" }
+      }
+
+  val serverChannelType: Class<out ServerChannel>
+    get() = if (useEpoll) EpollServerSocketChannel::class.java else NioServerSocketChannel::class.java
+
+  val channelType
+    get() = if (useEpoll) EpollSocketChannel::class.java else NioSocketChannel::class.java
+
+  // A thread count of 0 uses the Netty default of twice the core count
+  fun newEventLoopGroup(role: String, threads: Int): EventLoopGroup {
+    val threadFactory = newThreadFactory("$name-$role")
+    val count = maxOf(threads, 0)
+    return (if (useEpoll) EpollEventLoopGroup(count, threadFactory) else NioEventLoopGroup(count, threadFactory))
+        .also { eventLoopGroups += it }
+  }
+
+  // Returns null for the gRPC default executor and for the direct executor, which is set on the builder
+  fun newExecutor(type: String, threads: Int): ExecutorService? {
+    val count = if (threads > 0) threads else Runtime.getRuntime().availableProcessors()
+    return when (type.toLowerCase()) {
+      DEFAULT, DIRECT -> null
+      FIXED -> Executors.newFixedThreadPool(count, newThreadFactory("$name-executor"))
+      // asyncMode suits the short, independent tasks gRPC submits
+      FORKJOIN -> ForkJoinPool(count, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true)
+      // Blocking calls park a virtual thread rather than a platform thread
+      VIRTUAL -> newVirtualThreadExecutor("$name executor", "the gRPC default executor")
+      else -> throw IllegalArgumentException("Invalid executorType: $type - expected default, fixed, forkjoin, direct or virtual")
+    }?.also { executors += it }
+  }
+
+  fun shutDown() {
+    eventLoopGroups.forEach { it.shutdownGracefully(0, 2, SECONDS) }
+    executors.forEach { it.shutdown() }
+  }
+
+  private fun newThreadFactory(prefix: String) =
+      ThreadFactoryBuilder().setNameFormat("$prefix-%d").setDaemon(true).build()
+
+  companion object : KLogging() {
+    const val DEFAULT = "default"
+    const val DIRECT = "direct"
+    const val FIXED = "fixed"
+    const val FORKJOIN = "forkjoin"
+    const val VIRTUAL = "virtual"
+
+    fun isDirect(type: String) = type.toLowerCase() == DIRECT
+
+    fun isVirtual(type: String) = type.toLowerCase() == VIRTUAL
+
+    // Looked up reflectively, since the build targets Java 8. Returns null on a JVM without virtual threads,
+    // after warning that the configured mode is not in effect.
+    fun newVirtualThreadExecutor(user: String, fallback: String): ExecutorService? =
+        try {
+          (Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService)
+              .also { logger.info { "Using virtual threads for $user" } }
+        } catch (e: ReflectiveOperationException) {
+          val reason = if (e is NoSuchMethodException) "not in this JVM" else (e.cause ?: e).toString()
+          logger.warn {
+            "Virtual threads configured for $user but unavailable on Java ${System.getProperty("java.version")} " +
+            "($reason), using $fallback"
+          }
+          null
+        }
+  }
+}
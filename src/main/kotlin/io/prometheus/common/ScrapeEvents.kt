@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import jdk.jfr.Category
+import jdk.jfr.DataAmount
+import jdk.jfr.Event
+import jdk.jfr.EventType
+import jdk.jfr.Label
+import jdk.jfr.Name
+import jdk.jfr.StackTrace
+import java.util.EnumMap
+
+// JDK Flight Recorder events for each stage of a scrape, so a recording lines the stages up with GC and
+// thread events. The jdk.jfr types are only touched through JfrScrapeEvents, and only when the JVM has JFR,
+// so older JVMs never load them. An event is only created, filled in and committed when a recording enables it.
+object ScrapeEvents {
+  enum class Stage {
+    REQUEST_CREATED,
+    REQUEST_DEQUEUED,
+    FETCH,
+    COMPRESS,
+    CHUNK_SENT,
+    CHUNK_RECEIVED,
+    RESULTS_ASSIGNED
+  }
+
+  private val jfrAvailable =
+      try {
+        Class.forName("jdk.jfr.FlightRecorder")
+        true
+      } catch (e: ClassNotFoundException) {
+        false
+      }
+
+  // Lets a caller skip computing an argument that is only needed by the event
+  fun isEnabled(stage: Stage) = jfrAvailable && JfrScrapeEvents.isEnabled(stage)
+
+  fun emit(stage: Stage, scrapeId: Long, path: String, agentId: String, byteCount: Long = 0) {
+    if (jfrAvailable)
+      JfrScrapeEvents.emit(stage, scrapeId, path, agentId, byteCount)
+  }
+
+  // Starts a duration event, returning a token for end(), or null if the event is not being recorded
+  fun begin(stage: Stage): Any? = if (jfrAvailable) JfrScrapeEvents.begin(stage) else null
+
+  fun end(token: Any?, scrapeId: Long, path: String, agentId: String, byteCount: Long = 0) {
+    if (token != null)
+      JfrScrapeEvents.end(token, scrapeId, path, agentId, byteCount)
+  }
+}
+
+private object JfrScrapeEvents {
+  // The EventType is checked before an event is created, so a scrape allocates no events when nothing is recording
+  private class StageEvent(val eventType: EventType, val newEvent: () -> ScrapeEvent)
+
+  private inline fun <reified T : ScrapeEvent> stageEvent(noinline newEvent: () -> T) =
+      StageEvent(EventType.getEventType(T::class.java), newEvent)
+
+  private val stageEvents =
+      EnumMap<ScrapeEvents.Stage, StageEvent>(ScrapeEvents.Stage::class.java)
+          .apply {
+            put(ScrapeEvents.Stage.REQUEST_CREATED, stageEvent { ScrapeRequestCreatedEvent() })
+            put(ScrapeEvents.Stage.REQUEST_DEQUEUED, stageEvent { ScrapeRequestDequeuedEvent() })
+            put(ScrapeEvents.Stage.FETCH, stageEvent { ScrapeFetchEvent() })
+            put(ScrapeEvents.Stage.COMPRESS, stageEvent { ScrapeCompressEvent() })
+            put(ScrapeEvents.Stage.CHUNK_SENT, stageEvent { ScrapeChunkSentEvent() })
+            put(ScrapeEvents.Stage.CHUNK_RECEIVED, stageEvent { ScrapeChunkReceivedEvent() })
+            put(ScrapeEvents.Stage.RESULTS_ASSIGNED, stageEvent { ScrapeResultsAssignedEvent() })
+          }
+
+  fun isEnabled(stage: ScrapeEvents.Stage) = stageEvents.getValue(stage).eventType.isEnabled
+
+  fun emit(stage: ScrapeEvents.Stage, scrapeId: Long, path: String, agentId: String, byteCount: Long) {
+    val stageEvent = stageEvents.getValue(stage)
+    if (stageEvent.eventType.isEnabled)
+      stageEvent.newEvent()
+          .apply {
+            assign(scrapeId, path, agentId, byteCount)
+            commit()
+          }
+  }
+
+  fun begin(stage: ScrapeEvents.Stage): Any? {
+    val stageEvent = stageEvents.getValue(stage)
+    return if (stageEvent.eventType.isEnabled) stageEvent.newEvent().apply { begin() } else null
+  }
+
+  fun end(token: Any, scrapeId: Long, path: String, agentId: String, byteCount: Long) {
+    (token as ScrapeEvent).apply {
+      end()
+      if (shouldCommit()) {
+        assign(scrapeId, path, agentId, byteCount)
+        commit()
+      }
+    }
+  }
+}
+
+@Category("Prometheus Proxy", "Scrape")
+@StackTrace(false)
+abstract class ScrapeEvent : Event() {
+  @Label("Scrape Id")
+  @JvmField
+  var scrapeId = 0L
+
+  @Label("Path")
+  @JvmField
+  var path = ""
+
+  @Label("Agent Id")
+  @JvmField
+  var agentId = ""
+
+  @Label("Byte Count")
+  @DataAmount(DataAmount.BYTES)
+  @JvmField
+  var byteCount = 0L
+
+  fun assign(scrapeId: Long, path: String, agentId: String, byteCount: Long) {
+    this.scrapeId = scrapeId
+    this.path = path
+    this.agentId = agentId
+    this.byteCount = byteCount
+  }
+}
+
+@Name("io.prometheus.ScrapeRequestCreated")
+@Label("Scrape Request Created")
+class ScrapeRequestCreatedEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeRequestDequeued")
+@Label("Scrape Request Dequeued")
+class ScrapeRequestDequeuedEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeFetch")
+@Label("Scrape Fetch")
+class ScrapeFetchEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeCompress")
+@Label("Scrape Compress")
+class ScrapeCompressEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeChunkSent")
+@Label("Scrape Chunk Sent")
+class ScrapeChunkSentEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeChunkReceived")
+@Label("Scrape Chunk Received")
+class ScrapeChunkReceivedEvent : ScrapeEvent()
+
+@Name("io.prometheus.ScrapeResultsAssigned")
+@Label("Scrape Results Assigned")
+class ScrapeResultsAssignedEvent : ScrapeEvent()
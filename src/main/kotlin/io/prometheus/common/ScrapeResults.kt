@@ -18,8 +18,11 @@
 
 package io.prometheus.common
 
-import com.github.pambrose.common.util.EMPTY_BYTE_ARRAY
+import com.google.common.base.Utf8
+import com.google.protobuf.ByteString
 import io.ktor.http.HttpStatusCode
+import io.prometheus.grpc.PhaseTimings
+import io.prometheus.grpc.ScrapeTraceContext
 
 class ScrapeResults(val agentId: String,
                     val scrapeId: Long,
@@ -28,9 +31,24 @@ class ScrapeResults(val agentId: String,
                     var contentType: String = "",
                     var zipped: Boolean = false,
                     var contentAsText: String = "",
-                    var contentAsZipped: ByteArray = EMPTY_BYTE_ARRAY,
+                    var contentAsZipped: ByteString = ByteString.EMPTY,
                     var failureReason: String = "",
-                    var url: String = "") {
+                    var url: String = "",
+                    var phaseTimings: PhaseTimings = PhaseTimings.getDefaultInstance(),
+                    var traceContext: ScrapeTraceContext = ScrapeTraceContext.getDefaultInstance()) {
+
+  // Set by the agent when the results are ready to be sent, so the wait to send them can be timed
+  var readyNanos = 0L
+
+  // Set by the agent for its JFR events, and not sent to the proxy
+  var path = ""
+
+  // Set by the agent when the path's circuit breaker is open
+  var circuitOpen = false
+
+  // Bytes as sent by the agent: the zipped size, or the UTF-8 size of unzipped text
+  val wireByteCount: Long
+    get() = if (zipped) contentAsZipped.size().toLong() else Utf8.encodedLength(contentAsText).toLong()
 
   fun setDebugInfo(url: String, failureReason: String = "") {
     this.url = url
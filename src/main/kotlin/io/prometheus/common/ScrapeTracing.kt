@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import brave.propagation.TraceContext
+import io.prometheus.grpc.ScrapeTraceContext
+
+// Carries a Zipkin span across the proxy and agent in ScrapeRequest and ScrapeResponse messages,
+// so a scrape is one trace from the Prometheus request through to the target fetch.
+object ScrapeTracing {
+
+  // Unset and unsampled contexts are not continued, so an untraced scrape creates no spans
+  val ScrapeTraceContext.isTraced get() = traceId != 0L && sampled
+
+  fun TraceContext.toScrapeTraceContext(): ScrapeTraceContext =
+      ScrapeTraceContext.newBuilder().run {
+        traceIdHigh = traceIdHigh()
+        traceId = traceId()
+        spanId = spanId()
+        parentId = parentIdAsLong()
+        sampled = sampled() == true
+        build()
+      }
+
+  fun ScrapeTraceContext.toTraceContext(): TraceContext =
+      TraceContext.newBuilder().let { builder ->
+        builder.traceIdHigh(traceIdHigh)
+        builder.traceId(traceId)
+        builder.spanId(spanId)
+        builder.parentId(parentId)
+        builder.sampled(sampled)
+        builder.build()
+      }
+
+  fun Long.toSpanId(): String = "%016x".format(this)
+}
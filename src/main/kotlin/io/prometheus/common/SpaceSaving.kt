@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+// Space-saving top-K sketch: keeps the capacity heaviest keys of a stream in bounded space.
+// A new key replaces the lightest one and inherits its weight as error, so a key's weight is
+// overstated by at most its error, and any key heavier than total / capacity is kept.
+// Each entry carries a value, which is reset when its key is replaced.
+class SpaceSaving<K, V>(private val capacity: Int, private val newValue: () -> V) {
+
+  init {
+    require(capacity > 0) { "Invalid capacity: $capacity" }
+  }
+
+  class Entry<K, V>(var key: K, var weight: Long, var error: Long, var value: V)
+
+  private val entries = HashMap<K, Entry<K, V>>(capacity * 2)
+
+  @Synchronized
+  fun offer(key: K, weight: Long = 1, update: (V) -> Unit = {}) {
+    val entry =
+        entries[key]
+            ?: if (entries.size < capacity)
+              Entry(key, 0L, 0L, newValue()).also { entries[key] = it }
+            else
+              entries.values.minBy { it.weight }!!
+                  .also { lightest ->
+                    entries.remove(lightest.key)
+                    lightest.key = key
+                    lightest.error = lightest.weight
+                    lightest.value = newValue()
+                    entries[key] = lightest
+                  }
+    entry.weight += weight
+    update(entry.value)
+  }
+
+  // The caller must not hold on to the values, which continue to be updated
+  @Synchronized
+  fun <R> snapshot(block: (List<Entry<K, V>>) -> R): R = block(entries.values.toList())
+
+  @Synchronized
+  fun clear() = entries.clear()
+}
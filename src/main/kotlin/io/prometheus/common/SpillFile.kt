@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
+import java.io.Closeable
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode.READ_ONLY
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.StandardOpenOption.DELETE_ON_CLOSE
+import java.nio.file.StandardOpenOption.READ
+import java.nio.file.StandardOpenOption.WRITE
+
+// A temp file that oversized scrape content is written to instead of being kept on the heap.
+// On POSIX file systems the content is read back through a memory mapping, which stays valid after the file is
+// closed and deleted, so the pages are owned by the OS page cache and released when the mapped ByteString is
+// collected. Windows cannot delete a file while it is mapped, so there the content is read back onto the heap.
+class SpillFile(directory: String = "") : Closeable {
+  private val channel =
+      (if (directory.isEmpty())
+        Files.createTempFile(PREFIX, SUFFIX)
+      else
+        Files.createTempFile(Paths.get(directory), PREFIX, SUFFIX))
+          .let { FileChannel.open(it, READ, WRITE, DELETE_ON_CLOSE) }
+
+  val size: Long get() = channel.size()
+
+  fun write(bytes: ByteString) =
+      bytes.asReadOnlyByteBufferList()
+          .forEach { buffer ->
+            while (buffer.hasRemaining())
+              channel.write(buffer)
+          }
+
+  // Maps what has been written and closes the file, which deletes it
+  fun mapAndClose(): ByteString =
+      use {
+        check(channel.size() <= Int.MAX_VALUE) { "Spill file too large to map: ${channel.size()}" }
+        if (isMappable)
+          UnsafeByteOperations.unsafeWrap(channel.map(READ_ONLY, 0, channel.size()))
+        else
+          ByteString.readFrom(Channels.newInputStream(channel.position(0)))
+      }
+
+  override fun close() = channel.close()
+
+  companion object {
+    private const val PREFIX = "scrape"
+    private const val SUFFIX = ".spill"
+
+    private val isMappable = "posix" in FileSystems.getDefault().supportedFileAttributeViews()
+
+    fun spill(bytes: ByteString, directory: String = ""): ByteString =
+        SpillFile(directory).run {
+          write(bytes)
+          mapAndClose()
+        }
+  }
+}
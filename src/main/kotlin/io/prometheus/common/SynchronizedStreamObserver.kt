@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import io.grpc.stub.StreamObserver
+
+// StreamObservers are not thread-safe, and a scrapeStream is written by more than one coroutine
+class SynchronizedStreamObserver<T>(private val delegate: StreamObserver<T>) : StreamObserver<T> {
+
+  @Synchronized
+  override fun onNext(value: T) = delegate.onNext(value)
+
+  @Synchronized
+  override fun onError(t: Throwable) = delegate.onError(t)
+
+  @Synchronized
+  override fun onCompleted() = delegate.onCompleted()
+}
@@ -20,7 +20,12 @@ package io.prometheus.common
 
 import com.beust.jcommander.IParameterValidator
 import com.beust.jcommander.JCommander
+import com.google.protobuf.ByteOutput
+import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
 import io.prometheus.Proxy
+import java.nio.ByteBuffer
+import java.util.zip.Checksum
 import kotlin.system.exitProcess
 
 fun getVersionDesc(asJson: Boolean = false): String =
@@ -37,4 +42,30 @@ class VersionValidator : IParameterValidator {
     console.println(getVersionDesc(false))
     exitProcess(0)
   }
-}
\ No newline at end of file
+}
+
+fun ByteString.unzip(maxBytes: Int = -1): String = GzipPool.gunzip(this, maxBytes)
+
+// Feeds the arrays backing a ByteString to a checksum without copying them
+fun Checksum.update(bytes: ByteString) =
+    UnsafeByteOperations.unsafeWriteTo(bytes,
+                                       object : ByteOutput() {
+                                         override fun write(value: Byte) = update(value.toInt())
+
+                                         override fun write(value: ByteArray, offset: Int, length: Int) =
+                                             update(value, offset, length)
+
+                                         override fun writeLazy(value: ByteArray, offset: Int, length: Int) =
+                                             update(value, offset, length)
+
+                                         override fun write(value: ByteBuffer) =
+                                             if (value.hasArray())
+                                               update(value.array(), value.arrayOffset() + value.position(), value.remaining())
+                                             else
+                                               ByteArray(value.remaining()).let { arr ->
+                                                 value.duplicate().get(arr)
+                                                 update(arr, 0, arr.size)
+                                               }
+
+                                         override fun writeLazy(value: ByteBuffer) = write(value)
+                                       })
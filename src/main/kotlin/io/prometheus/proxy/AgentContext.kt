@@ -21,25 +21,53 @@ package io.prometheus.proxy
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
 import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
+import io.grpc.stub.StreamObserver
+import io.prometheus.common.GrpcObjects.newScrapeCancelMessage
+import io.prometheus.grpc.ScrapeStreamMessage
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
 import kotlinx.coroutines.channels.receiveOrNull
-import java.util.concurrent.atomic.AtomicInteger
+import kotlinx.coroutines.launch
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.time.ClockMark
 import kotlin.time.MonoClock
 
-class AgentContext(private val remoteAddr: String) {
+class AgentContext(private val remoteAddr: String, schedulingPolicy: ScrapeSchedulingPolicy) {
 
   val agentId = AGENT_ID_GENERATOR.incrementAndGet().toString()
 
-  private val scrapeRequestChannel = Channel<ScrapeRequestWrapper>(Channel.UNLIMITED)
-  private val channelBacklogSize = AtomicInteger(0)
+  private val scheduler = ScrapeRequestScheduler<ScrapeRequestWrapper>(schedulingPolicy) { it.scrapeRequest.path }
+  // Wakes readers when a request is queued or an in-flight slot frees up
+  private val scrapeRequestSignal = Channel<Unit>(Channel.CONFLATED)
 
   private val clock = MonoClock
   private var lastActivityTimeMark: ClockMark by nonNullableReference(clock.markNow())
   private var lastRequestTimeMark: ClockMark by nonNullableReference(clock.markNow())
   private var valid by atomicBoolean(true)
 
+  // Coroutines serving this agent, which are cancelled when it is invalidated
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+  // Assigned when the agent uses scrapeStream rather than the separate request and response streams
+  @Volatile
+  var scrapeStream: StreamObserver<ScrapeStreamMessage>? = null
+
+  // True when liveness comes from transport keepalive pings, so inactivity alone does not mean the agent is gone
+  @Volatile
+  var transportLiveness = false
+
+  // Assigned when this is an additional channel of an agent, in which case it serves that agent's scrape requests
+  @Volatile
+  var parentAgentContext: AgentContext? = null
+
+  val scrapeRequestSource: AgentContext
+    get() = parentAgentContext ?: this
+
   var hostName: String by nonNullableReference()
   var agentName: String by nonNullableReference()
 
@@ -50,7 +78,10 @@ class AgentContext(private val remoteAddr: String) {
     get() = lastActivityTimeMark.elapsedNow()
 
   val scrapeRequestBacklogSize: Int
-    get() = channelBacklogSize.get()
+    get() = scheduler.queuedCount
+
+  val scrapeRequestInFlightSize: Int
+    get() = scheduler.inFlightCount
 
   init {
     hostName = "Unassigned"
@@ -58,24 +89,66 @@ class AgentContext(private val remoteAddr: String) {
     markActivityTime(true)
   }
 
-  suspend fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
-    scrapeRequestChannel.send(scrapeRequest)
-    channelBacklogSize.incrementAndGet()
+  fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
+    scheduler.offer(scrapeRequest)
+    signalReaders()
   }
 
-  suspend fun readScrapeRequest(): ScrapeRequestWrapper? =
-      scrapeRequestChannel.receiveOrNull()
+  // Returns null once the context is invalidated
+  suspend fun readScrapeRequest(): ScrapeRequestWrapper? {
+    while (valid) {
+      scheduler.poll()
           ?.also {
-            channelBacklogSize.decrementAndGet()
+            // Pass the wakeup along in case another reader can take the next request
+            if (scheduler.queuedCount > 0)
+              signalReaders()
+            it.markDispatched()
+            return it
           }
+      scrapeRequestSignal.receiveOrNull() ?: return null
+    }
+    return null
+  }
+
+  // Puts back a request that was read but could not be written to the agent, unless it was already abandoned
+  fun requeueScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
+    if (scheduler.complete(scrapeRequest))
+      writeScrapeRequest(scrapeRequest)
+  }
+
+  // Called once a scrape is answered or abandoned, to release its queue entry or in-flight slot
+  fun completeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
+    if (scheduler.complete(scrapeRequest))
+      signalReaders()
+  }
+
+  private fun signalReaders() {
+    try {
+      scrapeRequestSignal.offer(Unit)
+    } catch (e: ClosedSendChannelException) {
+      // Ignore if the context was invalidated in the meantime
+    }
+  }
+
+  // Only agents using scrapeStream can be told to abandon a scrape
+  fun cancelScrapeRequest(scrapeId: Long) {
+    try {
+      scrapeStream?.onNext(newScrapeCancelMessage(scrapeId))
+    } catch (e: IllegalStateException) {
+      // Ignore if the stream closed in the meantime
+    }
+  }
 
-  fun isValid() = valid && !scrapeRequestChannel.isClosedForReceive
+  fun isValid() = valid && parentAgentContext?.isValid() != false
 
   fun isNotValid() = !isValid()
 
+  fun launch(block: suspend CoroutineScope.() -> Unit): Job = scope.launch(block = block)
+
   fun invalidate() {
     valid = false
-    scrapeRequestChannel.close()
+    scrapeRequestSignal.close()
+    scope.cancel()
   }
 
   fun markActivityTime(isRequest: Boolean) {
@@ -92,6 +165,9 @@ class AgentContext(private val remoteAddr: String) {
         add("agentName", agentName)
         add("hostName", hostName)
         add("remoteAddr", remoteAddr)
+        parentAgentContext?.also { add("parentAgentId", it.agentId) }
+        add("scrapeStream", scrapeStream != null)
+        add("transportLiveness", transportLiveness)
         add("lastRequestDuration", lastRequestDuration)
         //add("inactivityDuration", inactivityDuration)
       }
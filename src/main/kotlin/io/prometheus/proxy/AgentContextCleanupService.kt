@@ -44,8 +44,12 @@ class AgentContextCleanupService(private val proxy: Proxy,
     while (isRunning) {
       proxy.agentContextManager.agentContextMap
           .forEach { (agentId, agentContext) ->
+            // A dead transport is detected by keepalive and removed in ProxyTransportFilter.
+            // Sub-connections are not checked, since they are only valid while their parent is.
             val inactivityDuration = agentContext.inactivityDuration
-            if (inactivityDuration > maxInactivityTime) {
+            if (!agentContext.transportLiveness
+                && agentContext.parentAgentContext == null
+                && inactivityDuration > maxInactivityTime) {
               logger.info { "Evicting agent after $inactivityDuration of inactivty $agentContext" }
               proxy.removeAgentContext(agentId)
               proxy.metrics { agentEvictionCount.inc() }
@@ -32,6 +32,8 @@ class AgentContextManager {
 
   val totalAgentScrapeRequestBacklogSize: Int get() = agentContextMap.values.map { it.scrapeRequestBacklogSize }.sum()
 
+  val totalAgentScrapeRequestInFlightSize: Int get() = agentContextMap.values.map { it.scrapeRequestInFlightSize }.sum()
+
   fun addAgentContext(agentContext: AgentContext) = agentContextMap.put(agentContext.agentId, agentContext)
 
   fun getAgentContext(agentId: String) = agentContextMap[agentId]
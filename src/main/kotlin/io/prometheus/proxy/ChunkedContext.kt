@@ -2,19 +2,52 @@
 
 package io.prometheus.proxy
 
+import com.google.protobuf.ByteString
+import io.ktor.http.HttpStatusCode
+import io.prometheus.common.Checksums.checksChunks
+import io.prometheus.common.Checksums.checksSummary
+import io.prometheus.common.Checksums.newChecksum
 import io.prometheus.common.ScrapeResults
+import io.prometheus.common.SpillFile
+import io.prometheus.common.update
 import io.prometheus.grpc.ChunkedScrapeResponse
-import java.io.ByteArrayOutputStream
-import java.util.zip.CRC32
+import io.prometheus.grpc.IntegrityMode
+import java.io.Closeable
 
-class ChunkedContext(response: ChunkedScrapeResponse) {
-  private val checksum = CRC32()
-  private val baos = ByteArrayOutputStream()
+// Content above spillThresholdBytes is written to a SpillFile rather than kept on the heap.
+// maxScrapeSizeBytes limits uncompressed content. Gzip only adds a few bytes of framing to content it cannot shrink,
+// so zipped content above the limit is dropped as it arrives and the scrape fails.
+// Either limit is off when -1.
+class ChunkedContext(response: ChunkedScrapeResponse,
+                     private val spillThresholdBytes: Int = -1,
+                     private val spillDirectory: String = "",
+                     private val maxScrapeSizeBytes: Int = -1) : Closeable {
+  // Older agents do not declare a mode, which defaults to CRC32
+  val integrityMode: IntegrityMode = response.header.headerIntegrityMode
+  private val checksum = newChecksum(integrityMode)
+
+  // Older agents do not declare the totals, in which case these are 0
+  val declaredByteCount = response.header.headerTotalByteCount
+  val declaredChunkCount = response.header.headerTotalChunkCount
+
+  // Chunks are kept as received and joined into a balanced rope once, so their bytes are never copied
+  private val chunks = ArrayList<ByteString>(if (declaredChunkCount > 0) declaredChunkCount else 16)
+  private var spillFile: SpillFile? = null
 
   var totalChunkCount = 0
     private set
   var totalByteCount = 0
     private set
+  var isSpilled = false
+    private set
+
+  // The path of the scrape, for its JFR events
+  var path = ""
+
+  // Newer agents declare the total up front, so an oversized scrape is caught with its first chunk
+  val isOversized get() = maxScrapeSizeBytes != -1 && maxOf(totalByteCount, declaredByteCount) > maxScrapeSizeBytes
+
+  private val isSpillable get() = spillThresholdBytes != -1 && maxOf(totalByteCount, declaredByteCount) > spillThresholdBytes
 
   val scrapeResults =
       response.header.run {
@@ -25,25 +58,66 @@ class ChunkedContext(response: ChunkedScrapeResponse) {
                       zipped = true,
                       failureReason = headerFailureReason,
                       url = headerUrl,
-                      contentType = headerContentType)
+                      contentType = headerContentType,
+                      phaseTimings = headerPhaseTimings,
+                      traceContext = headerTraceContext)
       }
 
-  fun applyChunk(data: ByteArray, chunkByteCount: Int, chunkCount: Int, chunkChecksum: Long) {
+  fun applyChunk(data: ByteString, chunkByteCount: Int, chunkCount: Int, chunkChecksum: Long) {
     totalChunkCount++
     totalByteCount += chunkByteCount
-    checksum.update(data, 0, data.size)
-    baos.write(data, 0, chunkByteCount)
+    if (integrityMode.checksSummary)
+      checksum.update(data)
+    // Older agents send the entire chunk buffer, so only the first chunkByteCount bytes are content
+    val content = if (chunkByteCount == data.size()) data else data.substring(0, chunkByteCount)
+    val spill = spillFile
+
+    when {
+      isOversized -> close()
+      spill != null -> spill.write(content)
+      isSpillable -> {
+        isSpilled = true
+        spillFile = SpillFile(spillDirectory).apply {
+          chunks.forEach { write(it) }
+          chunks.clear()
+          write(content)
+        }
+      }
+      else -> chunks += content
+    }
 
     check(totalChunkCount == chunkCount)
-    check(checksum.value == chunkChecksum)
+    check(!integrityMode.checksChunks || checksum.value == chunkChecksum)
+    check(declaredByteCount == 0 || totalByteCount <= declaredByteCount)
   }
 
   fun applySummary(summaryChunkCount: Int, summaryByteCount: Int, summaryChecksum: Long) {
     check(totalChunkCount == summaryChunkCount)
     check(totalByteCount == summaryByteCount)
-    check(checksum.value == summaryChecksum)
+    check(!integrityMode.checksSummary || checksum.value == summaryChecksum)
+    check(declaredChunkCount == 0 || totalChunkCount == declaredChunkCount)
+    check(declaredByteCount == 0 || totalByteCount == declaredByteCount)
+
+    scrapeResults.apply {
+      if (isOversized) {
+        validResponse = false
+        statusCode = HttpStatusCode.BadGateway.value
+        zipped = false
+        failureReason = "Scrape size $totalByteCount exceeds max of $maxScrapeSizeBytes bytes"
+      }
+      else {
+        // Despite its name, copyFrom(Iterable) builds a rope in O(chunk count) without copying any bytes
+        contentAsZipped = spillFile?.mapAndClose() ?: ByteString.copyFrom(chunks)
+      }
+    }
+    spillFile = null
+    chunks.clear()
+  }
 
-    baos.flush()
-    scrapeResults.contentAsZipped = baos.toByteArray()
+  // Releases the content of a scrape that will not be completed
+  override fun close() {
+    spillFile?.close()
+    spillFile = null
+    chunks.clear()
   }
-}
\ No newline at end of file
+}
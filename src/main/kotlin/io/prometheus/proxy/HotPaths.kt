@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.prometheus.common.SpaceSaving
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.math.ceil
+import kotlin.math.ln
+import kotlin.math.pow
+
+// Streaming summaries of recent scrapes for the hot paths servlet: the slowest paths, the largest payloads,
+// the paths timing out most often and the agents with the deepest backlogs. Each summary is a space-saving
+// sketch, so memory is bounded however many paths and agents there are. The sketches are kept per time slot,
+// and a sliding window is reported by merging the slots within it.
+class HotPaths(private val windowSecs: Int,
+               private val capacity: Int = DEFAULT_CAPACITY,
+               private val clock: () -> Long = System::currentTimeMillis) {
+
+  init {
+    require(windowSecs > 0) { "Invalid hot paths window: $windowSecs" }
+  }
+
+  private val slotMillis = SECONDS.toMillis(windowSecs.toLong()) / SLOT_COUNT
+  private val slots = Array(SLOT_COUNT) { Slot() }
+
+  private inner class Slot {
+    @Volatile
+    var index = -1L
+    // Paths are weighed by the time they take, so the paths keeping the proxy busiest are kept
+    val latencies = SpaceSaving<String, LatencySketch>(capacity) { LatencySketch() }
+    val sizes = SpaceSaving<String, MaxValue>(capacity) { MaxValue() }
+    val timeouts = SpaceSaving<String, Unit>(capacity) {}
+    // Keyed by the agent itself, so a scrape does not build a key; its name is only formatted for the report
+    val backlogs = SpaceSaving<AgentContext, MaxValue>(capacity) { MaxValue() }
+
+    fun clear() {
+      latencies.clear()
+      sizes.clear()
+      timeouts.clear()
+      backlogs.clear()
+    }
+  }
+
+  private fun currentSlot(): Slot {
+    val index = clock() / slotMillis
+    return slots[(index % SLOT_COUNT).toInt()]
+        .also { slot ->
+          if (slot.index != index)
+            synchronized(slot) {
+              if (slot.index != index) {
+                slot.clear()
+                slot.index = index
+              }
+            }
+        }
+  }
+
+  fun recordLatency(path: String, nanos: Long) =
+      currentSlot().latencies.offer(path, maxOf(1L, nanos / 1000)) { it.record(nanos) }
+
+  fun recordSize(path: String, byteCount: Long) =
+      currentSlot().sizes.offer(path, maxOf(1L, byteCount)) { it.update(byteCount) }
+
+  fun recordTimeout(path: String) = currentSlot().timeouts.offer(path)
+
+  fun recordBacklog(agentContext: AgentContext, backlogSize: Int) {
+    if (backlogSize > 0)
+      currentSlot().backlogs.offer(agentContext, backlogSize.toLong()) { it.update(backlogSize.toLong()) }
+  }
+
+  fun toPlainText(topCount: Int): String =
+      listOf(minOf(60, windowSecs), windowSecs)
+          .distinct()
+          .joinToString("\n\n") { secs -> windowText(secs, topCount) }
+
+  private fun windowText(secs: Int, topCount: Int): String {
+    val current = clock() / slotMillis
+    val slotCount = ceil(SECONDS.toMillis(secs.toLong()).toDouble() / slotMillis).toInt()
+    val window = slots.filter { it.index in (current - slotCount + 1)..current }
+
+    val latencies = merge(window, { it.latencies }, { LatencySketch() }) { merged, _, value -> merged.merge(value) }
+    val sizes = merge(window, { it.sizes }, { MaxValue() }) { merged, _, value -> merged.merge(value) }
+    val timeouts = merge(window, { it.timeouts }, { LongArray(1) }) { merged, weight, _ -> merged[0] += weight }
+    val backlogs = merge(window, { it.backlogs }, { MaxValue() }) { merged, _, value -> merged.merge(value) }
+
+    fun section(title: String, lines: List<String>) =
+        "  $title:\n" + (if (lines.isEmpty()) "    None" else lines.joinToString("\n") { "    $it" })
+
+    return listOf(
+        "Last $secs secs:",
+        section("Slowest paths",
+                latencies.entries
+                    .sortedByDescending { it.value.quantileMillis(0.99) }
+                    .take(topCount)
+                    .map { (path, sketch) ->
+                      "/$path p99: %.1fms p50: %.1fms scrapes: %d"
+                          .format(sketch.quantileMillis(0.99), sketch.quantileMillis(0.5), sketch.count)
+                    }),
+        section("Largest payloads",
+                sizes.entries
+                    .sortedByDescending { it.value.max }
+                    .take(topCount)
+                    .map { (path, size) -> "/$path max: ${size.max} bytes mean: ${size.mean} bytes scrapes: ${size.count}" }),
+        section("Most timed out paths",
+                timeouts.entries
+                    .sortedByDescending { it.value[0] }
+                    .take(topCount)
+                    .map { (path, count) -> "/$path timeouts: ${count[0]}" }),
+        section("Deepest agent backlogs",
+                backlogs.entries
+                    .sortedByDescending { it.value.max }
+                    .take(topCount)
+                    .map { (agent, backlog) ->
+                      "${agent.agentName} [${agent.agentId}] max: ${backlog.max} mean: ${backlog.mean}"
+                    })
+    ).joinToString("\n")
+  }
+
+  // Merges each key's entries across the slots of a window
+  private fun <K, V, R> merge(window: List<Slot>,
+                              sketch: (Slot) -> SpaceSaving<K, V>,
+                              newMerged: () -> R,
+                              combine: (R, Long, V) -> Unit): Map<K, R> =
+      HashMap<K, R>().also { merged ->
+        window.forEach { slot ->
+          sketch(slot).snapshot { entries ->
+            entries.forEach { combine(merged.getOrPut(it.key, newMerged), it.weight, it.value) }
+          }
+        }
+      }
+
+  class MaxValue {
+    var max = 0L
+      private set
+    var count = 0L
+      private set
+    private var total = 0L
+
+    val mean get() = if (count == 0L) 0L else total / count
+
+    fun update(value: Long) {
+      max = maxOf(max, value)
+      total += value
+      count++
+    }
+
+    fun merge(other: MaxValue) {
+      max = maxOf(max, other.max)
+      total += other.total
+      count += other.count
+    }
+  }
+
+  // Log-scale latency buckets, each GROWTH times wider than the last, so quantiles are within about 7%
+  class LatencySketch {
+    private val counts = IntArray(BUCKET_COUNT)
+    var count = 0L
+      private set
+
+    fun record(nanos: Long) {
+      val micros = nanos / 1000
+      val bucket = if (micros <= 1) 0 else minOf(BUCKET_COUNT - 1, ceil(ln(micros.toDouble()) / LN_GROWTH).toInt())
+      counts[bucket]++
+      count++
+    }
+
+    fun merge(other: LatencySketch) {
+      for (i in counts.indices)
+        counts[i] += other.counts[i]
+      count += other.count
+    }
+
+    // Returns the upper bound of the bucket holding the quantile
+    fun quantileMillis(quantile: Double): Double {
+      val rank = maxOf(1L, ceil(quantile * count).toLong())
+      var seen = 0L
+      for (i in counts.indices) {
+        seen += counts[i]
+        if (seen >= rank)
+          return GROWTH.pow(i) / 1000
+      }
+      return 0.0
+    }
+
+    companion object {
+      private const val GROWTH = 1.15
+      private val LN_GROWTH = ln(GROWTH)
+      // The last bucket holds latencies above GROWTH ^ (BUCKET_COUNT - 1) micros, about 5 hours
+      private const val BUCKET_COUNT = 170
+    }
+  }
+
+  companion object {
+    private const val SLOT_COUNT = 10
+    private const val DEFAULT_CAPACITY = 100
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import com.github.pambrose.common.concurrent.GenericExecutionThreadService
+import com.github.pambrose.common.concurrent.genericServiceListener
+import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
+import com.github.pambrose.common.util.sleep
+import com.github.pambrose.common.utils.TlsContext
+import com.google.common.util.concurrent.MoreExecutors
+import io.grpc.StatusRuntimeException
+import io.prometheus.common.ConfigVals
+import mu.KLogging
+import kotlin.time.milliseconds
+
+class ProxyClusterManager(private val proxyName: String,
+                          private val configVals: ConfigVals.Proxy2.Cluster,
+                          tlsContext: TlsContext,
+                          initBlock: (ProxyClusterManager.() -> Unit) = {}) : GenericExecutionThreadService() {
+
+  private val peers = configVals.peers.map { ProxyPeer(it, configVals.forwardTimeoutSecs, tlsContext) }
+
+  // Map path to the peer that owns it, replaced as a whole on each poll
+  @Volatile
+  private var peerPathMap: Map<String, ProxyPeer> = emptyMap()
+
+  val peerPathMapSize: Int
+    get() = peerPathMap.size
+
+  init {
+    addListener(genericServiceListener(logger), MoreExecutors.directExecutor())
+    initBlock(this)
+  }
+
+  fun peerFor(path: String) = peerPathMap[path]
+
+  fun refreshPeerPaths() {
+    peerPathMap =
+        mutableMapOf<String, ProxyPeer>()
+            .apply {
+              peers.forEach { peer ->
+                try {
+                  peer.fetchPaths(proxyName, configVals.peerPollMillis.toLong())
+                      .forEach { path -> putIfAbsent(path, peer) }
+                } catch (e: StatusRuntimeException) {
+                  // Paths of an unreachable peer are dropped until it responds again
+                  logger.debug { "Unable to fetch paths from $peer - ${e.status}" }
+                }
+              }
+            }
+  }
+
+  override fun run() {
+    val pauseTime = configVals.peerPollMillis.milliseconds
+    while (isRunning) {
+      refreshPeerPaths()
+      sleep(pauseTime)
+    }
+  }
+
+  override fun shutDown() {
+    peers.forEach { it.shutDown() }
+  }
+
+  override fun toString() =
+      toStringElements {
+        add("peers", peers.map { it.target })
+        add("poll millis", configVals.peerPollMillis)
+        add("peer paths", peerPathMapSize)
+      }
+
+  companion object : KLogging()
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import com.github.pambrose.common.concurrent.GenericIdleService
+import com.github.pambrose.common.concurrent.genericServiceListener
+import com.github.pambrose.common.dsl.GrpcDsl.server
+import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
+import com.github.pambrose.common.utils.TlsContext.Companion.PLAINTEXT_CONTEXT
+import com.github.pambrose.common.utils.shutdownGracefully
+import com.github.pambrose.common.utils.shutdownWithJvm
+import com.google.common.util.concurrent.MoreExecutors
+import io.grpc.Server
+import io.prometheus.Proxy
+import io.prometheus.common.ConfigVals
+import mu.KLogging
+import kotlin.time.seconds
+
+// Serves peer proxies, which must not connect to the agent port, since ProxyTransportFilter treats every
+// transport there as an agent. The port uses the proxy's TLS settings, and forwardScrape is only authenticated
+// when a trust cert collection makes that mutual TLS, so otherwise the port must stay on a private network.
+class ProxyClusterService(proxy: Proxy,
+                          httpService: ProxyHttpService,
+                          private val configVals: ConfigVals.Proxy2.Cluster,
+                          initBlock: (ProxyClusterService.() -> Unit) = {}) : GenericIdleService() {
+
+  private val clusterServiceImpl = ProxyClusterServiceImpl(proxy, httpService)
+  private val tlsContext = proxy.options.serverTlsContext()
+
+  private val grpcServer: Server =
+      server(port = configVals.port,
+             tlsContext = tlsContext,
+             inProcessServerName = configVals.inProcessName) {
+        addService(clusterServiceImpl)
+      }
+
+  init {
+    grpcServer.shutdownWithJvm(2.seconds)
+    addListener(genericServiceListener(logger), MoreExecutors.directExecutor())
+    initBlock(this)
+  }
+
+  override fun startUp() {
+    if (configVals.inProcessName.isEmpty() && tlsContext == PLAINTEXT_CONTEXT)
+      logger.warn { "Cluster port ${configVals.port} is plaintext and unauthenticated, keep it on a private network" }
+    grpcServer.start()
+  }
+
+  override fun shutDown() {
+    grpcServer.shutdownGracefully(2.seconds)
+    clusterServiceImpl.shutDown()
+  }
+
+  override fun toString() =
+      toStringElements {
+        if (configVals.inProcessName.isNotEmpty()) {
+          add("serverType", "InProcess")
+          add("serverName", configVals.inProcessName)
+        }
+        else {
+          add("serverType", "Netty")
+          add("port", configVals.port)
+        }
+        add("peers", configVals.peers)
+        add("tls", tlsContext != PLAINTEXT_CONTEXT)
+      }
+
+  companion object : KLogging()
+}
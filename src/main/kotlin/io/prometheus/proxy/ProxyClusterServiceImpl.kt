@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.grpc.Status
+import io.grpc.stub.ServerCallStreamObserver
+import io.grpc.stub.StreamObserver
+import io.ktor.http.HttpStatusCode
+import io.prometheus.Proxy
+import io.prometheus.common.GrpcObjects.toScrapeResponse
+import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.ForwardScrapeRequest
+import io.prometheus.grpc.PeerPathsRequest
+import io.prometheus.grpc.PeerPathsResponse
+import io.prometheus.grpc.ProxyClusterServiceGrpc
+import io.prometheus.grpc.ScrapeResponse
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import mu.KLogging
+
+class ProxyClusterServiceImpl(private val proxy: Proxy,
+                              private val httpService: ProxyHttpService) :
+    ProxyClusterServiceGrpc.ProxyClusterServiceImplBase() {
+
+  // Forwarded scrapes wait here rather than on gRPC threads, and are cancelled when the service shuts down
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+  override fun peerPaths(request: PeerPathsRequest, responseObserver: StreamObserver<PeerPathsResponse>) {
+    logger.debug { "peerPaths() request from ${request.proxyName}" }
+    responseObserver.apply {
+      onNext(PeerPathsResponse.newBuilder().addAllPaths(proxy.pathManager.paths).build())
+      onCompleted()
+    }
+  }
+
+  override fun forwardScrape(request: ForwardScrapeRequest, responseObserver: StreamObserver<ScrapeResponse>) {
+    val path = request.path
+    val agentContext = proxy.pathManager[path]
+
+    if (agentContext == null || agentContext.isNotValid()) {
+      logger.info { "forwardScrape() for path not owned by this proxy: /$path" }
+      respond(responseObserver, newFailedResponse(HttpStatusCode.NotFound, "Path /$path not owned by proxy"))
+      return
+    }
+
+    val scrapeRequest = ScrapeRequestWrapper(proxy, path, agentContext, request.accept, request.debugEnabled)
+    val job =
+        scope.launch {
+          try {
+            val response =
+                if (httpService.awaitScrapeResults(scrapeRequest))
+                  scrapeRequest.scrapeResults.toScrapeResponse()
+                else
+                  newFailedResponse(HttpStatusCode.ServiceUnavailable, "timed_out")
+            respond(responseObserver, response)
+          } catch (e: CancellationException) {
+            respondQuietly {
+              responseObserver.onError(Status.UNAVAILABLE.withDescription("Proxy shutting down").asRuntimeException())
+            }
+          }
+        }
+
+    // A peer that gives up, e.g. at its deadline, releases the scrape right away
+    (responseObserver as? ServerCallStreamObserver<ScrapeResponse>)?.setOnCancelHandler { job.cancel() }
+  }
+
+  fun shutDown() {
+    scope.cancel()
+  }
+
+  private fun respond(responseObserver: StreamObserver<ScrapeResponse>, response: ScrapeResponse) =
+      respondQuietly {
+        responseObserver.apply {
+          onNext(response)
+          onCompleted()
+        }
+      }
+
+  // The call may have been cancelled by the peer in the meantime
+  private fun respondQuietly(block: () -> Unit) {
+    try {
+      block()
+    } catch (e: RuntimeException) {
+      logger.debug { "forwardScrape() response not sent - ${e.message}" }
+    }
+  }
+
+  private fun newFailedResponse(statusCode: HttpStatusCode, failureReason: String) =
+      ScrapeResults(agentId = "",
+                    scrapeId = -1,
+                    statusCode = statusCode.value,
+                    failureReason = failureReason).toScrapeResponse()
+
+  companion object : KLogging()
+}
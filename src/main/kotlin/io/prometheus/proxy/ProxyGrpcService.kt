@@ -25,16 +25,19 @@ import com.github.pambrose.common.concurrent.genericServiceListener
 import com.github.pambrose.common.dsl.GrpcDsl.server
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
 import com.github.pambrose.common.dsl.MetricsDsl.healthCheck
-import com.github.pambrose.common.utils.TlsContext.Companion.PLAINTEXT_CONTEXT
-import com.github.pambrose.common.utils.TlsUtils.buildServerTlsContext
 import com.github.pambrose.common.utils.shutdownGracefully
 import com.github.pambrose.common.utils.shutdownWithJvm
 import com.google.common.util.concurrent.MoreExecutors
 import io.grpc.Server
 import io.grpc.ServerInterceptor
 import io.grpc.ServerInterceptors
+import io.grpc.netty.NettyServerBuilder
 import io.prometheus.Proxy
+import io.prometheus.common.GrpcCompression
+import io.prometheus.common.NettyTransports
+import io.prometheus.common.NettyTransports.Companion.isDirect
 import mu.KLogging
+import java.util.concurrent.TimeUnit.SECONDS
 import kotlin.time.seconds
 
 class ProxyGrpcService(private val proxy: Proxy,
@@ -50,26 +53,52 @@ class ProxyGrpcService(private val proxy: Proxy,
       }
 
   private val grpcServer: Server
+  private val transportConfigVals = proxy.configVals.proxy.transport
+  private val transports = NettyTransports("grpc-server", transportConfigVals.epollEnabled)
 
   private val tracing by lazy { proxy.zipkinReporterService.newTracing("grpc_server") }
   private val grpcTracing by lazy { GrpcTracing.create(tracing) }
 
   init {
-    val options = proxy.options
-    val tlsContext =
-        if (options.certChainFilePath.isNotEmpty() || options.privateKeyFilePath.isNotEmpty())
-          buildServerTlsContext(certChainFilePath = options.certChainFilePath,
-                                privateKeyFilePath = options.privateKeyFilePath,
-                                trustCertCollectionFilePath = options.trustCertCollectionFilePath)
-        else
-          PLAINTEXT_CONTEXT
+    val tlsContext = proxy.options.serverTlsContext()
 
     grpcServer =
         server(port = port,
                tlsContext = tlsContext,
                inProcessServerName = inProcessName) {
+          compressorRegistry(GrpcCompression.compressorRegistry)
+          decompressorRegistry(GrpcCompression.decompressorRegistry)
+
+          transportConfigVals
+              .also { transport ->
+                if (isDirect(transport.executorType))
+                  directExecutor()
+                else
+                  transports.newExecutor(transport.executorType, transport.executorThreads)?.also { executor(it) }
+
+                if (this is NettyServerBuilder) {
+                  if (transport.keepAliveTimeSecs > 0)
+                    keepAliveTime(transport.keepAliveTimeSecs.toLong(), SECONDS)
+                  if (transport.keepAliveTimeoutSecs > 0)
+                    keepAliveTimeout(transport.keepAliveTimeoutSecs.toLong(), SECONDS)
+                  if (transport.permitKeepAliveTimeSecs > 0)
+                    permitKeepAliveTime(transport.permitKeepAliveTimeSecs.toLong(), SECONDS)
+                  permitKeepAliveWithoutCalls(transport.permitKeepAliveWithoutCalls)
+
+                  // NettyServerBuilder requires the event loop groups and channel type to be set together
+                  if (transports.useEpoll || transport.bossThreads > 0 || transport.workerThreads > 0) {
+                    bossEventLoopGroup(transports.newEventLoopGroup("boss", transport.bossThreads))
+                    workerEventLoopGroup(transports.newEventLoopGroup("worker", transport.workerThreads))
+                    channelType(transports.serverChannelType)
+                  }
+
+                  if (transport.flowControlWindowBytes > 0)
+                    flowControlWindow(transport.flowControlWindowBytes)
+                }
+              }
+
           val proxyService = ProxyServiceImpl(proxy)
-          val interceptors = mutableListOf<ServerInterceptor>(ProxyInterceptor())
+          val interceptors = mutableListOf<ServerInterceptor>(ProxyInterceptor(proxy))
           if (proxy.isZipkinEnabled)
             interceptors += grpcTracing.newServerInterceptor()
           addService(ServerInterceptors.intercept(proxyService.bindService(), interceptors))
@@ -89,6 +118,7 @@ class ProxyGrpcService(private val proxy: Proxy,
     if (proxy.isZipkinEnabled)
       tracing.close()
     grpcServer.shutdownGracefully(2.seconds)
+    transports.shutDown()
   }
 
   override fun toString() =
@@ -100,7 +130,9 @@ class ProxyGrpcService(private val proxy: Proxy,
         else {
           add("serverType", "Netty")
           add("port", port)
+          add("epoll", transports.useEpoll)
         }
+        add("executorType", transportConfigVals.executorType)
       }
 
   companion object : KLogging()
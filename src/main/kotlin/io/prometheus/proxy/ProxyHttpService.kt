@@ -18,13 +18,18 @@
 
 package io.prometheus.proxy
 
+import brave.Span
+import brave.propagation.Propagation
+import brave.sampler.Sampler
 import com.github.pambrose.common.concurrent.GenericIdleService
 import com.github.pambrose.common.concurrent.genericServiceListener
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
 import com.github.pambrose.common.util.sleep
-import com.github.pambrose.common.util.unzip
+import com.google.common.base.Utf8
 import com.google.common.net.HttpHeaders.ACCEPT
 import com.google.common.util.concurrent.MoreExecutors
+import com.google.protobuf.ByteString
+import io.grpc.StatusRuntimeException
 import io.ktor.application.ApplicationCall
 import io.ktor.application.call
 import io.ktor.application.install
@@ -42,15 +47,32 @@ import io.ktor.request.header
 import io.ktor.request.path
 import io.ktor.response.ApplicationResponse
 import io.ktor.response.header
+import io.ktor.response.respondOutputStream
 import io.ktor.response.respondText
 import io.ktor.routing.get
 import io.ktor.routing.routing
 import io.ktor.server.cio.CIO
 import io.ktor.server.engine.embeddedServer
 import io.prometheus.Proxy
+import io.prometheus.common.ContentSizeException
+import io.prometheus.common.GrpcObjects.toScrapeResults
+import io.prometheus.common.GzipPool
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.ScrapeTracing.isTraced
+import io.prometheus.common.ScrapeTracing.toScrapeTraceContext
+import io.prometheus.common.ScrapeTracing.toSpanId
+import io.prometheus.common.unzip
+import io.prometheus.grpc.ScrapeTraceContext
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import mu.KLogging
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
 import java.util.concurrent.TimeUnit.SECONDS
+import java.util.zip.GZIPInputStream
 import kotlin.time.Duration
+import kotlin.time.MonoClock
 import kotlin.time.milliseconds
 import kotlin.time.seconds
 
@@ -59,12 +81,36 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
   private val idleTimeout =
       if (proxyConfigVals.http.idleTimeoutSecs == -1) 45.seconds else proxyConfigVals.http.idleTimeoutSecs.seconds
 
+  private val spillThresholdBytes = proxyConfigVals.internal.spillThresholdBytes
+  private val maxScrapeSizeBytes = proxyConfigVals.internal.maxScrapeSizeBytes
+
   private val tracing by lazy { proxy.zipkinReporterService.newTracing("proxy-http") }
+  // The sampler only applies when the caller has not made a sampling decision
+  private val scrapeTracer by lazy {
+    tracing.tracer().withSampler(Sampler.create(proxyConfigVals.internal.zipkin.scrapeSampleRate.toFloat()))
+  }
+  private val extractor by lazy {
+    tracing.propagation().extractor(Propagation.Getter<ApplicationRequest, String> { request, key -> request.header(key) })
+  }
 
   private val httpServer =
       embeddedServer(CIO,
                      port = httpPort,
-                     configure = { connectionIdleTimeoutSeconds = idleTimeout.inSeconds.toInt() }) {
+                     configure = {
+                       connectionIdleTimeoutSeconds = idleTimeout.inSeconds.toInt()
+                       proxyConfigVals.http
+                           .also { http ->
+                             // CIO accepts on the connection group, parses on the worker group and runs calls on the call group
+                             if (http.connectionGroupSize > 0)
+                               connectionGroupSize = http.connectionGroupSize
+                             if (http.workerGroupSize > 0)
+                               workerGroupSize = http.workerGroupSize
+                             if (http.callGroupSize > 0)
+                               callGroupSize = http.callGroupSize
+                             if (http.minThreads > 0 || http.maxThreads > 0)
+                               logger.warn { "proxy.http.minThreads and maxThreads are ignored, use the CIO group sizes" }
+                           }
+                     }) {
 
         install(DefaultHeaders)
         //install(CallLogging)
@@ -85,6 +131,8 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
             val path = call.request.path().drop(1)
             logger.debug { "Servicing request for path: $path" }
             val agentContext = proxy.pathManager[path]
+            // Paths owned by an agent on a peer proxy are forwarded to that proxy
+            val peer = if (agentContext == null && proxy.isClusterEnabled) proxy.clusterManager.peerFor(path) else null
             val responseResults = ResponseResults()
 
             when {
@@ -117,6 +165,12 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
               proxyConfigVals.internal.blitz.enabled && path == proxyConfigVals.internal.blitz.path ->
                 responseResults.contentText = "42"
 
+              agentContext == null && peer != null ->
+                forwardScrapeRequest(path, peer, call.request)
+                    .also { response ->
+                      responseResults.assignResponse(path, response)
+                    }
+
               agentContext == null -> {
                 val msg = "Invalid path request /${path}"
                 proxy.logActivity(msg)
@@ -140,32 +194,60 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
               else -> {
                 submitScrapeRequest(path, agentContext, call.request, call.response)
                     .also { response ->
-
-                      var status = "/${path} - ${response.updateMsg} - ${response.statusCode}"
-                      if (!response.statusCode.isSuccess())
-                        status += " reason: [${response.failureReason}]"
-                      status += " time: ${response.fetchDuration} url: ${response.url}"
-
-                      proxy.logActivity(status)
-
-                      responseResults.apply {
-                        statusCode = response.statusCode
-                        contentType = response.contentType
-                        contentText = response.contentText
-                        updateMsg = response.updateMsg
-                      }
+                      responseResults.assignResponse(path, response)
                     }
               }
             }
 
             responseResults.apply {
               updateScrapeRequests(updateMsg)
-              call.respondWith(contentText, contentType, statusCode)
+              val zipped = contentZipped
+              val servedByteCount =
+                  if (zipped == null) {
+                    call.respondWith(contentText, contentType, statusCode)
+                    when {
+                      !proxy.isMetricsEnabled -> 0L
+                      contentByteCount != -1L -> contentByteCount
+                      else -> Utf8.encodedLength(contentText).toLong()
+                    }
+                  }
+                  else {
+                    val (byteCount, inflateNanos) = call.respondUnzipped(zipped, contentType, statusCode)
+                    // Forwarded scrapes have no phases of their own
+                    if (agentContext != null)
+                      proxy.metrics {
+                        recordScrapePhase("decompress", pathGroupOf(path), agentContext.agentName, inflateNanos)
+                      }
+                    byteCount
+                  }
+              if (servedByteCount > 0)
+                proxy.metrics {
+                  recordScrapeBytes("served",
+                                    pathGroupOf(path),
+                                    agentContext?.agentName.orEmpty(),
+                                    servedByteCount)
+                }
             }
           }
         }
       }
 
+  private fun ResponseResults.assignResponse(path: String, response: ScrapeRequestResponse) {
+    var status = "/${path} - ${response.updateMsg} - ${response.statusCode}"
+    if (!response.statusCode.isSuccess())
+      status += " reason: [${response.failureReason}]"
+    status += " time: ${response.fetchDuration} url: ${response.url}"
+
+    proxy.logActivity(status)
+
+    statusCode = response.statusCode
+    contentType = response.contentType
+    contentText = response.contentText
+    contentZipped = response.contentZipped
+    contentByteCount = response.contentByteCount
+    updateMsg = response.updateMsg
+  }
+
   private suspend fun ApplicationCall.respondWith(text: String,
                                                   contentType: ContentType = ContentType.Text.Plain,
                                                   status: HttpStatusCode = HttpStatusCode.OK) {
@@ -176,9 +258,46 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
     }
   }
 
+  // Spilled content is unzipped while it is streamed to the client, rather than into a String.
+  // Returns the number of bytes streamed and the nanos spent inflating them, which leave out the writes to the client.
+  private suspend fun ApplicationCall.respondUnzipped(zipped: ByteString,
+                                                     contentType: ContentType,
+                                                     status: HttpStatusCode): Pair<Long, Long> {
+    var counts = 0L to 0L
+    response.header("cache-control", "must-revalidate,no-cache,no-store")
+    respondOutputStream(contentType, status) {
+      counts = GZIPInputStream(zipped.newInput(), STREAM_BUFFER_SIZE).use { it.copyWithinMax(this) }
+    }
+    return counts
+  }
+
+  // The gzip trailer was checked before the response started, but it only holds the size mod 2^32,
+  // so the limit is enforced again while streaming and an oversized response is cut off.
+  // Only the reads are timed, since they do the inflating.
+  private fun InputStream.copyWithinMax(out: OutputStream): Pair<Long, Long> {
+    val buffer = ByteArray(STREAM_BUFFER_SIZE)
+    var byteCount = 0L
+    var inflateNanos = 0L
+    while (true) {
+      val readStart = System.nanoTime()
+      val len = read(buffer)
+      inflateNanos += System.nanoTime() - readStart
+      if (len < 0)
+        return byteCount to inflateNanos
+      byteCount += len
+      if (exceedsMax(byteCount))
+        throw IOException("Content size exceeds max of $maxScrapeSizeBytes bytes")
+      out.write(buffer, 0, len)
+    }
+  }
+
+  private fun exceedsMax(byteCount: Long) = maxScrapeSizeBytes != -1 && byteCount > maxScrapeSizeBytes
+
   class ResponseResults(var statusCode: HttpStatusCode = HttpStatusCode.OK,
                         var contentType: ContentType = ContentType.Text.Plain,
                         var contentText: String = "",
+                        var contentZipped: ByteString? = null,
+                        var contentByteCount: Long = -1L,
                         var updateMsg: String = "")
 
   init {
@@ -202,6 +321,8 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
                                       val updateMsg: String,
                                       var contentType: ContentType = ContentType.Text.Plain,
                                       var contentText: String = "",
+                                      val contentZipped: ByteString? = null,
+                                      val contentByteCount: Long = -1L,
                                       val failureReason: String = "",
                                       val url: String = "",
                                       val fetchDuration: Duration)
@@ -211,12 +332,102 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
                                           request: ApplicationRequest,
                                           response: ApplicationResponse): ScrapeRequestResponse {
 
+    proxy.hotPaths?.recordBacklog(agentContext, agentContext.scrapeRequestBacklogSize)
+    val span = newScrapeSpan(path, agentContext, request)
     val scrapeRequest = ScrapeRequestWrapper(proxy,
                                              path,
                                              agentContext,
                                              request.header(ACCEPT),
-                                             proxy.options.debugEnabled)
+                                             proxy.options.debugEnabled,
+                                             span?.context()?.toScrapeTraceContext()
+                                                 ?: ScrapeTraceContext.getDefaultInstance())
 
+    try {
+      return awaitScrapeResponse(path, agentContext, scrapeRequest)
+          .also { scrapeResponse ->
+            proxy.hotPaths?.apply {
+              if (scrapeResponse.updateMsg == "timed_out") {
+                recordTimeout(path)
+              }
+              else {
+                recordLatency(path, scrapeResponse.fetchDuration.toLongNanoseconds())
+                // Uncompressed, so zipped and unzipped scrapes of a path are compared alike
+                if (scrapeResponse.contentByteCount != -1L)
+                  recordSize(path, scrapeResponse.contentByteCount)
+              }
+            }
+            span?.apply {
+              tag("http.status_code", scrapeResponse.statusCode.value.toString())
+              if (scrapeResponse.updateMsg == "timed_out")
+                tag("error", scrapeResponse.updateMsg)
+              else
+                // The agent reports its own span, which is a child of this one
+                scrapeRequest.scrapeResults.traceContext
+                    .takeIf { it.isTraced }
+                    ?.also { tag("agent_span_id", it.spanId.toSpanId()) }
+            }
+          }
+    } finally {
+      span?.finish()
+    }
+  }
+
+  // Returns null when the scrape is not traced, in which case no spans are created
+  private fun newScrapeSpan(path: String, agentContext: AgentContext, request: ApplicationRequest): Span? {
+    if (!proxy.isZipkinEnabled)
+      return null
+
+    // A trace started by the caller, e.g. with B3 headers, is continued
+    val span = scrapeTracer.nextSpan(extractor.extract(request))
+    return if (span.isNoop)
+      null
+    else
+      span.name("scrape")
+          .kind(Span.Kind.SERVER)
+          .tag("path", path)
+          .tag("agent_name", agentContext.agentName)
+          .start()
+  }
+
+  private suspend fun awaitScrapeResponse(path: String,
+                                          agentContext: AgentContext,
+                                          scrapeRequest: ScrapeRequestWrapper): ScrapeRequestResponse {
+    if (!awaitScrapeResults(scrapeRequest))
+      return ScrapeRequestResponse(statusCode = HttpStatusCode.ServiceUnavailable,
+                                   updateMsg = "timed_out",
+                                   fetchDuration = scrapeRequest.ageDuration())
+
+    logger.debug { "Results returned from $agentContext for $scrapeRequest" }
+    proxy.pathManager.updateCircuitState(path, scrapeRequest.scrapeResults.circuitOpen)
+
+    val decompressStart = System.nanoTime()
+    return scrapeRequest.scrapeResults.toScrapeRequestResponse("success", scrapeRequest.ageDuration())
+        .also {
+          val decompressNanos = System.nanoTime() - decompressStart
+          proxy.metrics {
+            val pathGroup = pathGroupOf(path)
+            val agentName = agentContext.agentName
+            // Streamed content is unzipped as it is served, so its decompress phase is recorded there
+            scrapeRequest.phaseNanos(if (it.contentZipped == null) decompressNanos else null)
+                .forEach { (phase, nanos) -> recordScrapePhase(phase, pathGroup, agentName, nanos) }
+
+            scrapeRequest.scrapeResults.apply {
+              if (validResponse && it.contentByteCount != -1L) {
+                val byteCount = it.contentByteCount
+                val wireByteCount = if (zipped) contentAsZipped.size().toLong() else byteCount
+                recordScrapeBytes("wire", pathGroup, agentName, wireByteCount)
+                recordScrapeBytes("uncompressed", pathGroup, agentName, byteCount)
+                if (byteCount > 0)
+                  recordCompressionRatio(pathGroup, agentName, wireByteCount.toDouble() / byteCount)
+              }
+            }
+          }
+        }
+  }
+
+  // Returns false if the agent did not respond in time
+  suspend fun awaitScrapeResults(scrapeRequest: ScrapeRequestWrapper): Boolean {
+    val agentContext = scrapeRequest.agentContext
     try {
       val timeoutTime = proxyConfigVals.internal.scrapeRequestTimeoutSecs.seconds
       val checkTime = proxyConfigVals.internal.scrapeRequestCheckMillis.milliseconds
@@ -227,60 +438,110 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
       // Returns false if timed out
       while (!scrapeRequest.suspendUntilComplete(checkTime)) {
         // Check if agent is disconnected or agent is hung
-        if (scrapeRequest.ageDuration() >= timeoutTime || !scrapeRequest.agentContext.isValid() || !proxy.isRunning)
-          return ScrapeRequestResponse(statusCode = HttpStatusCode.ServiceUnavailable,
-                                       updateMsg = "timed_out",
-                                       fetchDuration = scrapeRequest.ageDuration())
+        if (scrapeRequest.ageDuration() >= timeoutTime || !agentContext.isValid() || !proxy.isRunning) {
+          agentContext.cancelScrapeRequest(scrapeRequest.scrapeId)
+          return false
+        }
       }
     } finally {
+      agentContext.completeScrapeRequest(scrapeRequest)
       val scrapeId = scrapeRequest.scrapeId
       proxy.scrapeRequestManager.removeFromScrapeRequestMap(scrapeId)
           ?: logger.error { "Scrape request $scrapeId missing in map" }
     }
+    return true
+  }
 
-    logger.debug { "Results returned from $agentContext for $scrapeRequest" }
+  private suspend fun forwardScrapeRequest(path: String,
+                                           peer: ProxyPeer,
+                                           request: ApplicationRequest): ScrapeRequestResponse {
+    val startMark = MonoClock.markNow()
+    return try {
+      val scrapeResponse =
+          withContext(Dispatchers.IO) {
+            peer.forwardScrape(path, request.header(ACCEPT), proxy.options.debugEnabled)
+          }
+      logger.debug { "Results returned from $peer for /$path" }
+      scrapeResponse.toScrapeResults().toScrapeRequestResponse("forwarded", startMark.elapsedNow())
+    } catch (e: StatusRuntimeException) {
+      logger.info { "Unable to forward /$path to $peer - ${e.status}" }
+      ScrapeRequestResponse(statusCode = HttpStatusCode.ServiceUnavailable,
+                            updateMsg = "forward_failed",
+                            failureReason = e.status.toString(),
+                            fetchDuration = startMark.elapsedNow())
+    }
+  }
 
-    scrapeRequest.scrapeResults
-        .also { scrapeResults ->
-          HttpStatusCode.fromValue(scrapeResults.statusCode)
-              .also { statusCode ->
-                scrapeResults.contentType.split("/")
-                    .also { contentTypeElems ->
-
-                      val contentType =
-                          if (contentTypeElems.size == 2)
-                            ContentType(contentTypeElems[0], contentTypeElems[1])
-                          else
-                            ContentType.Text.Plain
-
-                      // Do not return content on error status codes
-                      return if (!statusCode.isSuccess()) {
-                        scrapeRequest.scrapeResults.run {
-                          ScrapeRequestResponse(statusCode = statusCode,
-                                                contentType = contentType,
-                                                failureReason = failureReason,
-                                                url = url,
-                                                updateMsg = "path_not_found",
-                                                fetchDuration = scrapeRequest.ageDuration())
-                        }
-                      }
-                      else {
-                        scrapeRequest.scrapeResults.run {
-                          // Unzip content here
-                          ScrapeRequestResponse(statusCode = statusCode,
-                                                contentType = contentType,
-                                                contentText = if (zipped) contentAsZipped.unzip() else contentAsText,
-                                                failureReason = failureReason,
-                                                url = url,
-                                                updateMsg = "success",
-                                                fetchDuration = scrapeRequest.ageDuration())
-                        }
-                      }
-                    }
-              }
-        }
+  private fun ScrapeResults.toScrapeRequestResponse(successMsg: String, fetchDuration: Duration): ScrapeRequestResponse {
+    val statusCode = HttpStatusCode.fromValue(this.statusCode)
+    val contentTypeElems = contentType.split("/")
+    val contentType =
+        if (contentTypeElems.size == 2)
+          ContentType(contentTypeElems[0], contentTypeElems[1])
+        else
+          ContentType.Text.Plain
+
+    // The limit is on uncompressed bytes, as on the agent. The size in the gzip trailer lets most oversized content
+    // be refused before it is unzipped, but it is set by the sender and only mod 2^32, so the limit is also
+    // enforced while inflating. The count is taken once here and carried with the response, for the byte metrics
+    // and the hot paths.
+    val byteCount =
+        if (statusCode.isSuccess() && (proxy.isMetricsEnabled || proxy.hotPaths != null || maxScrapeSizeBytes != -1))
+          uncompressedByteCount()
+        else
+          -1L
+
+    // Do not return content on error status codes
+    return when {
+      !statusCode.isSuccess() ->
+        ScrapeRequestResponse(statusCode = statusCode,
+                              contentType = contentType,
+                              failureReason = failureReason,
+                              url = url,
+                              updateMsg = if (circuitOpen) "circuit_open" else "path_not_found",
+                              fetchDuration = fetchDuration)
+
+      exceedsMax(byteCount) ->
+        oversizedResponse(contentType, fetchDuration, "Content size $byteCount exceeds max of $maxScrapeSizeBytes bytes")
+
+      else -> {
+        // Unzip content here, unless it is large enough to be streamed
+        val streamed = zipped && spillThresholdBytes != -1 && contentAsZipped.size() > spillThresholdBytes
+        val text =
+            try {
+              if (!zipped) contentAsText else if (streamed) "" else contentAsZipped.unzip(maxScrapeSizeBytes)
+            } catch (e: ContentSizeException) {
+              return oversizedResponse(contentType, fetchDuration, e.message.orEmpty())
+            }
+        ScrapeRequestResponse(statusCode = statusCode,
+                              contentType = contentType,
+                              contentText = text,
+                              contentZipped = if (streamed) contentAsZipped else null,
+                              contentByteCount = byteCount,
+                              failureReason = failureReason,
+                              url = url,
+                              updateMsg = successMsg,
+                              fetchDuration = fetchDuration)
+      }
+    }
   }
 
+  private fun ScrapeResults.oversizedResponse(contentType: ContentType,
+                                              fetchDuration: Duration,
+                                              reason: String): ScrapeRequestResponse {
+    logger.warn { "$reason: $url" }
+    proxy.metrics { scrapeOversizedCount.inc() }
+    return ScrapeRequestResponse(statusCode = HttpStatusCode.BadGateway,
+                                 contentType = contentType,
+                                 failureReason = reason,
+                                 url = url,
+                                 updateMsg = "oversized",
+                                 fetchDuration = fetchDuration)
+  }
+
+  private fun ScrapeResults.uncompressedByteCount(): Long =
+      if (zipped) GzipPool.uncompressedSize(contentAsZipped) else Utf8.encodedLength(contentAsText).toLong()
+
   private fun updateScrapeRequests(type: String) {
     if (type.isNotEmpty())
       proxy.metrics { scrapeRequestCount.labels(type).inc() }
@@ -288,5 +549,7 @@ class ProxyHttpService(private val proxy: Proxy, val httpPort: Int) : GenericIdl
 
   override fun toString() = toStringElements { add("port", httpPort) }
 
-  companion object : KLogging()
+  companion object : KLogging() {
+    private const val STREAM_BUFFER_SIZE = 64 * 1024
+  }
 }
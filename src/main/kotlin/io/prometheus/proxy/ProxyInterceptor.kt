@@ -19,13 +19,18 @@
 package io.prometheus.proxy
 
 import io.grpc.ForwardingServerCall
+import io.grpc.ForwardingServerCallListener
 import io.grpc.Metadata
 import io.grpc.ServerCall
 import io.grpc.ServerCallHandler
 import io.grpc.ServerInterceptor
 import io.prometheus.Proxy
+import io.prometheus.common.GrpcCompression.GRPC_ENCODING_KEY
+import io.prometheus.common.GrpcCompression.IDENTITY
+import io.prometheus.common.GrpcCompression.encodingOf
 
-class ProxyInterceptor : ServerInterceptor {
+class ProxyInterceptor(private val proxy: Proxy) : ServerInterceptor {
+  private val responseEncoding = encodingOf(proxy.configVals.proxy.transport.compression)
 
   override fun <ReqT, RespT> interceptCall(call: ServerCall<ReqT, RespT>,
                                            requestHeaders: Metadata,
@@ -35,16 +40,34 @@ class ProxyInterceptor : ServerInterceptor {
     // final String methodName = methodDescriptor.getFullMethodName();
     // logger.info {"Intercepting {}", methodName);
 
-    return handler.startCall(
-      object : ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
-        override fun sendHeaders(headers: Metadata) {
-          // agent_id was assigned in ServerTransportFilter
-          attributes.get(Proxy.ATTRIB_AGENT_ID)?.also { headers.put(META_AGENT_ID, it) }
-          super.sendHeaders(headers)
-        }
-      },
-      requestHeaders
-    )
+    // Looked up once per call rather than once per message
+    val agentContext by lazy {
+      attributes.get(Proxy.ATTRIB_AGENT_ID)?.let { proxy.agentContextManager.getAgentContext(it) }
+    }
+
+    proxy.metrics { grpcCallCount.labels(requestHeaders.get(GRPC_ENCODING_KEY) ?: IDENTITY).inc() }
+
+    val listener =
+        handler.startCall(
+            object : ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+              override fun sendHeaders(headers: Metadata) {
+                // agent_id was assigned in ServerTransportFilter
+                attributes.get(Proxy.ATTRIB_AGENT_ID)?.also { headers.put(META_AGENT_ID, it) }
+                // gRPC falls back to identity if the agent did not advertise the encoding
+                responseEncoding?.also { setCompression(it) }
+                super.sendHeaders(headers)
+              }
+            },
+            requestHeaders
+        )
+
+    return object : ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+      override fun onMessage(message: ReqT) {
+        // Any message from an agent shows it is alive, so heartbeats are only needed when it is idle
+        agentContext?.markActivityTime(false)
+        super.onMessage(message)
+      }
+    }
   }
 
   companion object {
@@ -20,11 +20,14 @@ package io.prometheus.proxy
 
 import com.github.pambrose.common.dsl.PrometheusDsl.counter
 import com.github.pambrose.common.dsl.PrometheusDsl.gauge
-import com.github.pambrose.common.dsl.PrometheusDsl.summary
 import com.github.pambrose.common.metrics.SamplerGaugeCollector
 import io.prometheus.Proxy
+import io.prometheus.common.BoundedLabelChildren
+import io.prometheus.common.BoundedLabelHistogram
+import io.prometheus.common.BoundedLabelHistogram.Companion.observeNanos
+import io.prometheus.common.GzipPool
 
-class ProxyMetrics(proxy: Proxy) {
+class ProxyMetrics(private val proxy: Proxy) {
 
   val scrapeRequestCount =
       counter {
@@ -45,17 +48,123 @@ class ProxyMetrics(proxy: Proxy) {
         help("Proxy eviction count")
       }
 
+  val grpcCallCount =
+      counter {
+        name("proxy_grpc_call_count")
+        help("Proxy gRPC calls from agents by message encoding")
+        labelNames("encoding")
+      }
+
   val heartbeatCount =
       counter {
         name("proxy_heartbeat_count")
         help("Proxy heartbeat count")
       }
 
-  val scrapeRequestLatency =
-    summary {
-      name("proxy_scrape_request_latency_seconds")
-      help("Proxy scrape request latency in seconds")
-    }
+  private val metricsConfigVals = proxy.configVals.proxy.metrics
+  private val latencyBuckets = metricsConfigVals.latencyBuckets ?: BoundedLabelHistogram.DEFAULT_BUCKETS
+  private val maxPathGroups = metricsConfigVals.maxPathGroups
+
+  // Paths are grouped by their own patterns, so tuning the scheduling priority classes does not change the metrics.
+  // A path matching no pattern is its own group, and the groups past maxPathGroups are labeled "other".
+  private val pathGroupPatterns = metricsConfigVals.pathGroups.map { Regex(it) }
+
+  private val latencyPathGroupsEnabled = metricsConfigVals.latencyPathGroupsEnabled
+
+  // Agent names are open-ended, so they are only labeled when enabled
+  private val agentNameLabelsEnabled = metricsConfigVals.agentNameLabelsEnabled
+  private val pathLabelNames = listOf("path_group") + if (agentNameLabelsEnabled) listOf("agent_name") else emptyList()
+
+  private val scrapeRequestLatency =
+      BoundedLabelHistogram("proxy_scrape_request_latency_seconds",
+                            "Proxy scrape request latency in seconds",
+                            latencyBuckets,
+                            boundedLabelNames = if (latencyPathGroupsEnabled) listOf("path_group") else emptyList(),
+                            maxLabelValues = maxPathGroups).register()
+
+  private val scrapePhaseLatency =
+      BoundedLabelHistogram("proxy_scrape_phase_seconds",
+                            "Proxy scrape phase durations in seconds",
+                            latencyBuckets,
+                            listOf("phase"),
+                            (if (latencyPathGroupsEnabled) listOf("path_group") else emptyList()) +
+                                (if (agentNameLabelsEnabled) listOf("agent_name") else emptyList()),
+                            maxPathGroups).register()
+
+  private val scrapeByteCount =
+      counter {
+        name("proxy_scrape_byte_count")
+        help("Proxy scrape bytes by type: wire (as received from agents), uncompressed and served")
+        labelNames(*(listOf("type") + pathLabelNames).toTypedArray())
+      }
+
+  private val scrapeByteCounts =
+      BoundedLabelChildren(1, pathLabelNames.size, maxPathGroups) { scrapeByteCount.labels(*it) }
+
+  private val scrapeSizeBytes =
+      BoundedLabelHistogram("proxy_scrape_size_bytes",
+                            "Proxy scrape sizes in bytes by type",
+                            List(10) { 1024.0 * Math.pow(4.0, it.toDouble()) },
+                            listOf("type"),
+                            listOf("path_group"),
+                            maxPathGroups).register()
+
+  private val scrapeCompressionRatio =
+      gauge {
+        name("proxy_scrape_compression_ratio")
+        help("Proxy wire to uncompressed size ratio of the latest scrape")
+        labelNames(*pathLabelNames.toTypedArray())
+      }
+
+  private val scrapeCompressionRatios =
+      BoundedLabelChildren(0, pathLabelNames.size, maxPathGroups) { scrapeCompressionRatio.labels(*it) }
+
+  val chunkedByteCount =
+      counter {
+        name("proxy_chunked_byte_count")
+        help("Proxy bytes received in chunked scrape responses")
+      }
+
+  val scrapeSpillCount =
+      counter {
+        name("proxy_scrape_spill_count")
+        help("Proxy scrapes spilled to a temp file")
+      }
+
+  val scrapeOversizedCount =
+      counter {
+        name("proxy_scrape_oversized_count")
+        help("Proxy scrapes failed for exceeding the max size")
+      }
+
+  // Paths are matched without the leading slash
+  fun pathGroupOf(path: String) = pathGroupPatterns.firstOrNull { it.matches(path) }?.pattern ?: path
+
+  fun recordScrapeLatency(path: String, nanos: Long) =
+      (if (latencyPathGroupsEnabled)
+        scrapeRequestLatency.labels(pathGroupOf(path))
+      else
+        scrapeRequestLatency.labels())
+          .observeNanos(nanos)
+
+  fun recordScrapePhase(phase: String, pathGroup: String, agentName: String, nanos: Long) =
+      when {
+        latencyPathGroupsEnabled && agentNameLabelsEnabled -> scrapePhaseLatency.labels(phase, pathGroup, agentName)
+        latencyPathGroupsEnabled -> scrapePhaseLatency.labels(phase, pathGroup)
+        agentNameLabelsEnabled -> scrapePhaseLatency.labels(phase, agentName)
+        else -> scrapePhaseLatency.labels(phase)
+      }.observeNanos(nanos)
+
+  fun recordScrapeBytes(type: String, pathGroup: String, agentName: String, byteCount: Long) {
+    val labelValues = if (agentNameLabelsEnabled) arrayOf(type, pathGroup, agentName) else arrayOf(type, pathGroup)
+    scrapeByteCounts[labelValues].inc(byteCount.toDouble())
+    scrapeSizeBytes.labels(type, pathGroup).observe(byteCount.toDouble())
+  }
+
+  fun recordCompressionRatio(pathGroup: String, agentName: String, ratio: Double) {
+    val labelValues = if (agentNameLabelsEnabled) arrayOf(pathGroup, agentName) else arrayOf(pathGroup)
+    scrapeCompressionRatios[labelValues].set(ratio)
+  }
 
   init {
     gauge {
@@ -75,6 +184,10 @@ class ProxyMetrics(proxy: Proxy) {
                           help = "Proxy path map size",
                           data = { proxy.pathManager.pathMapSize.toDouble() })
 
+    SamplerGaugeCollector(name = "proxy_circuit_open_path_count",
+                          help = "Proxy paths whose agent reported an open circuit breaker",
+                          data = { proxy.pathManager.circuitOpenPathCount.toDouble() })
+
     SamplerGaugeCollector(name = "proxy_scrape_map_size",
                           help = "Proxy scrape map size",
                           data = { proxy.scrapeRequestManager.scrapeMapSize.toDouble() })
@@ -82,5 +195,21 @@ class ProxyMetrics(proxy: Proxy) {
     SamplerGaugeCollector(name = "proxy_cummulative_agent_backlog_size",
                           help = "Proxy cummulative agent backlog size",
                           data = { proxy.agentContextManager.totalAgentScrapeRequestBacklogSize.toDouble() })
+
+    SamplerGaugeCollector(name = "proxy_cummulative_agent_in_flight_size",
+                          help = "Proxy cummulative agent scrape requests in flight",
+                          data = { proxy.agentContextManager.totalAgentScrapeRequestInFlightSize.toDouble() })
+
+    SamplerGaugeCollector(name = "proxy_gzip_pool_inflater_count",
+                          help = "Proxy pooled Inflaters created",
+                          data = { GzipPool.inflaterCount.get().toDouble() })
+
+    SamplerGaugeCollector(name = "proxy_gzip_pool_inflate_count",
+                          help = "Proxy scrapes unzipped with a pooled Inflater",
+                          data = { GzipPool.inflateCount.get().toDouble() })
+
+    SamplerGaugeCollector(name = "proxy_gzip_pool_buffer_bytes",
+                          help = "Proxy gzip pool buffer bytes retained",
+                          data = { GzipPool.inflateBufferBytes.get().toDouble() })
   }
 }
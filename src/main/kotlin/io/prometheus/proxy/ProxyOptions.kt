@@ -19,6 +19,10 @@
 package io.prometheus.proxy
 
 import com.beust.jcommander.Parameter
+import com.github.pambrose.common.utils.TlsContext
+import com.github.pambrose.common.utils.TlsContext.Companion.PLAINTEXT_CONTEXT
+import com.github.pambrose.common.utils.TlsUtils.buildClientTlsContext
+import com.github.pambrose.common.utils.TlsUtils.buildServerTlsContext
 import com.google.common.collect.Iterables
 import io.prometheus.Proxy
 import io.prometheus.common.BaseOptions
@@ -61,4 +65,24 @@ class ProxyOptions(argv: Array<String>) : BaseOptions(Proxy::class.java.simpleNa
       assignTrustCertCollectionFilePath(proxy.tls.trustCertCollectionFilePath)
     }
   }
+
+  private val isTlsEnabled get() = certChainFilePath.isNotEmpty() || privateKeyFilePath.isNotEmpty()
+
+  // Used by both the agent port and the cluster port
+  fun serverTlsContext(): TlsContext =
+      if (isTlsEnabled)
+        buildServerTlsContext(certChainFilePath = certChainFilePath,
+                              privateKeyFilePath = privateKeyFilePath,
+                              trustCertCollectionFilePath = trustCertCollectionFilePath)
+      else
+        PLAINTEXT_CONTEXT
+
+  // Peers present the proxy's own cert, which the peer verifies when it has a trust cert collection
+  fun peerTlsContext(): TlsContext =
+      if (isTlsEnabled)
+        buildClientTlsContext(certChainFilePath = certChainFilePath,
+                              privateKeyFilePath = privateKeyFilePath,
+                              trustCertCollectionFilePath = trustCertCollectionFilePath)
+      else
+        PLAINTEXT_CONTEXT
 }
\ No newline at end of file
@@ -23,12 +23,16 @@ import io.prometheus.common.GrpcObjects.EMPTY_AGENTID
 import io.prometheus.common.GrpcObjects.EMPTY_PATH
 import io.prometheus.grpc.UnregisterPathResponse
 import mu.KLogging
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentMap
 
 class ProxyPathManager(private val isTestMode: Boolean) {
 
   private val pathMap: ConcurrentMap<String, AgentContext> = newConcurrentMap() // Map path to AgentContext
 
+  // Paths whose agent reported an open circuit breaker with their last scrape
+  private val circuitOpenPaths: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
   operator fun get(path: String) = pathMap[path]
 
   operator fun contains(path: String) = pathMap.containsKey(path)
@@ -36,6 +40,21 @@ class ProxyPathManager(private val isTestMode: Boolean) {
   val pathMapSize: Int
     get() = pathMap.size
 
+  val paths: List<String>
+    get() = pathMap.keys.toList()
+
+  val circuitOpenPathCount: Int
+    get() = circuitOpenPaths.size
+
+  fun isCircuitOpen(path: String) = path in circuitOpenPaths
+
+  fun updateCircuitState(path: String, circuitOpen: Boolean) {
+    if (circuitOpen)
+      circuitOpenPaths += path
+    else
+      circuitOpenPaths -= path
+  }
+
   fun addPath(path: String, agentContext: AgentContext) {
     require(path.isNotEmpty()) { EMPTY_PATH }
     synchronized(pathMap) {
@@ -69,6 +88,7 @@ class ProxyPathManager(private val isTestMode: Boolean) {
         }
         else -> {
           pathMap.remove(path)
+          circuitOpenPaths -= path
           if (!isTestMode)
             logger.info { "Removed path /$path for $agentContext" }
           responseBuilder.apply {
@@ -84,9 +104,11 @@ class ProxyPathManager(private val isTestMode: Boolean) {
     require(agentId.isNotEmpty()) { EMPTY_AGENTID }
     synchronized(pathMap) {
       pathMap.forEach { (k, v) ->
-        if (v.agentId == agentId)
+        if (v.agentId == agentId) {
+          circuitOpenPaths -= k
           pathMap.remove(k)?.also { if (!isTestMode) logger.info { "Removed path /$k for context: $it" } }
               ?: logger.error { "Missing path /$k for agentId: $agentId" }
+        }
       }
     }
   }
@@ -100,7 +122,7 @@ class ProxyPathManager(private val isTestMode: Boolean) {
         "Proxy Path Map:\n" + "Path".padEnd(maxPath + 2) + "Agent Context\n" +
             pathMap
                 .toSortedMap()
-                .map { c -> "/${c.key.padEnd(maxPath)} ${c.value}" }
+                .map { c -> "/${c.key.padEnd(maxPath)} ${c.value}" + if (isCircuitOpen(c.key)) " [circuit open]" else "" }
                 .joinToString("\n")
       }
 
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import com.github.pambrose.common.dsl.GrpcDsl.channel
+import com.github.pambrose.common.utils.TlsContext
+import com.github.pambrose.common.utils.TlsContext.Companion.PLAINTEXT_CONTEXT
+import io.grpc.ManagedChannel
+import io.prometheus.grpc.ForwardScrapeRequest
+import io.prometheus.grpc.PeerPathsRequest
+import io.prometheus.grpc.ProxyClusterServiceGrpc
+import io.prometheus.grpc.ScrapeResponse
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+
+// A peer is either "hostname:port" or "inprocess:name", and tlsContext only applies to the former
+class ProxyPeer(val target: String, private val forwardTimeoutSecs: Int, tlsContext: TlsContext = PLAINTEXT_CONTEXT) {
+
+  private val channel: ManagedChannel =
+      if (target.startsWith(INPROCESS_PREFIX)) {
+        channel(hostName = "",
+                port = -1,
+                tlsContext = PLAINTEXT_CONTEXT,
+                overrideAuthority = "",
+                inProcessServerName = target.removePrefix(INPROCESS_PREFIX)) {}
+      }
+      else {
+        val vals = target.split(":")
+        require(vals.size == 2) { "Invalid peer: $target - expected hostname:port" }
+        channel(hostName = vals[0],
+                port = vals[1].toInt(),
+                tlsContext = tlsContext,
+                overrideAuthority = "",
+                inProcessServerName = "") {}
+      }
+
+  private val blockingStub = ProxyClusterServiceGrpc.newBlockingStub(channel)
+
+  fun fetchPaths(proxyName: String, timeoutMillis: Long): List<String> =
+      blockingStub
+          .withDeadlineAfter(timeoutMillis, MILLISECONDS)
+          .peerPaths(PeerPathsRequest.newBuilder().setProxyName(proxyName).build())
+          .pathsList
+
+  fun forwardScrape(path: String, accept: String?, debugEnabled: Boolean): ScrapeResponse =
+      blockingStub
+          .withDeadlineAfter(forwardTimeoutSecs.toLong(), SECONDS)
+          .forwardScrape(
+              ForwardScrapeRequest.newBuilder().run {
+                this.path = path
+                if (!accept.isNullOrBlank())
+                  this.accept = accept
+                this.debugEnabled = debugEnabled
+                build()
+              })
+
+  fun shutDown() {
+    channel.shutdownNow()
+  }
+
+  override fun toString() = "ProxyPeer($target)"
+
+  companion object {
+    const val INPROCESS_PREFIX = "inprocess:"
+  }
+}
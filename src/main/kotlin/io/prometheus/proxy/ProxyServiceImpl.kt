@@ -30,8 +30,15 @@ import io.prometheus.common.GrpcObjects.newRegisterAgentResponse
 import io.prometheus.common.GrpcObjects.newRegisterPathResponse
 import io.prometheus.common.GrpcObjects.newUnregisterPathResponseBuilder
 import io.prometheus.common.GrpcObjects.toScrapeResults
+import io.prometheus.common.GrpcObjects.toStreamMessage
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.CHUNK_RECEIVED
+import io.prometheus.common.SynchronizedStreamObserver
 import io.prometheus.grpc.AgentInfo
 import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.ChunkedScrapeResponse.ChunkOneOfCase.CHUNK
+import io.prometheus.grpc.ChunkedScrapeResponse.ChunkOneOfCase.HEADER
+import io.prometheus.grpc.ChunkedScrapeResponse.ChunkOneOfCase.SUMMARY
 import io.prometheus.grpc.HeartBeatRequest
 import io.prometheus.grpc.HeartBeatResponse
 import io.prometheus.grpc.PathMapSizeRequest
@@ -43,8 +50,14 @@ import io.prometheus.grpc.RegisterPathRequest
 import io.prometheus.grpc.RegisterPathResponse
 import io.prometheus.grpc.ScrapeRequest
 import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeStreamMessage
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.AGENT_INFO
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.CHUNKED_RESPONSE
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.PING
+import io.prometheus.grpc.ScrapeStreamMessage.MessageOneOfCase.RESPONSE
 import io.prometheus.grpc.UnregisterPathRequest
 import io.prometheus.grpc.UnregisterPathResponse
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.runBlocking
 import mu.KLogging
 import java.util.concurrent.atomic.AtomicLong
@@ -63,18 +76,41 @@ class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpc.ProxyService
   override fun registerAgent(request: RegisterAgentRequest,
                              responseObserver: StreamObserver<RegisterAgentResponse>) {
     val agentId = request.agentId
+    val parentAgentId = request.parentAgentId
     var valid = false
+    var reason = "Invalid agentId: $agentId"
+    // Inactivity checks can be skipped only if both ends send keepalive pings and the agent's are permitted
+    val keepAliveTimeSecs = request.keepAliveTimeSecs
+    val transportLiveness = request.transportLiveness && proxy.livenessPolicy.isGranted(keepAliveTimeSecs)
+    if (proxy.livenessPolicy.isRejected(keepAliveTimeSecs))
+      logger.warn {
+        "Agent $agentId keepalive of ${keepAliveTimeSecs}s is below permitKeepAliveTimeSecs of " +
+            "${proxy.livenessPolicy.permitKeepAliveTimeSecs}s, so it will be sent GOAWAY too_many_pings"
+      }
     proxy.agentContextManager.getAgentContext(agentId)
         ?.apply {
+          if (parentAgentId.isNotEmpty()) {
+            parentAgentContext = proxy.agentContextManager.getAgentContext(parentAgentId)
+            if (parentAgentContext == null) {
+              reason = "Invalid parentAgentId: $parentAgentId"
+              logger.info { "registerAgent() missing parent AgentContext agentId: $parentAgentId" }
+              return@apply
+            }
+          }
           valid = true
           agentName = request.agentName
           hostName = request.hostName
+          this.transportLiveness = transportLiveness
           markActivityTime(false)
           logger.info { "Connected to $this" }
         } ?: logger.info { "registerAgent() missing AgentContext agentId: $agentId" }
 
     responseObserver.apply {
-      onNext(newRegisterAgentResponse(valid, "Invalid agentId: $agentId", agentId))
+      onNext(newRegisterAgentResponse(valid,
+                                      reason,
+                                      agentId,
+                                      valid && transportLiveness,
+                                      valid && parentAgentId.isNotEmpty()))
       onCompleted()
     }
   }
@@ -152,11 +188,19 @@ class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpc.ProxyService
       proxy.agentContextManager.getAgentContext(agentInfo.agentId)
           ?.also { agentContext ->
             runBlocking {
-              while (proxy.isRunning && agentContext.isValid())
-                agentContext.readScrapeRequest()
-                    ?.apply {
-                      observer.onNext(scrapeRequest)
-                    }
+              val source = agentContext.scrapeRequestSource
+              // Sub-connections of an agent compete for its requests, which spreads them across the channels
+              while (proxy.isRunning && agentContext.isValid()) {
+                val scrapeRequest = source.readScrapeRequest() ?: continue
+                try {
+                  observer.onNext(scrapeRequest.scrapeRequest)
+                } catch (e: RuntimeException) {
+                  // The call was cancelled after the request was read, so it goes to a sibling channel
+                  logger.debug { "readRequestsFromProxy() closed for agentId: ${agentContext.agentId} - ${e.message}" }
+                  source.requeueScrapeRequest(scrapeRequest)
+                  break
+                }
+              }
             }
           }
       observer.onCompleted()
@@ -200,33 +244,7 @@ class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpc.ProxyService
       streamObserver {
 
         onNext { response ->
-          val ooc = response.chunkOneOfCase
-          val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
-          when (ooc.name.toLowerCase()) {
-            "header" -> {
-              val scrapeId = response.header.headerScrapeId
-              logger.debug { "Reading header for scrapeId: $scrapeId}" }
-              chunkedContextMap[scrapeId] = ChunkedContext(response)
-            }
-            "chunk" -> {
-              response.chunk.apply {
-                logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
-                val context = chunkedContextMap[chunkScrapeId]
-                check(context != null) { "Missing chunked context with scrapeId: $chunkScrapeId" }
-                context.applyChunk(chunkBytes.toByteArray(), chunkByteCount, chunkCount, chunkChecksum)
-              }
-            }
-            "summary" -> {
-              response.summary.apply {
-                val context = chunkedContextMap.remove(summaryScrapeId)
-                check(context != null) { "Missing chunked context with scrapeId: $summaryScrapeId" }
-                logger.debug { "Reading summary chunkCount: ${context.totalChunkCount} byteCount: ${context.totalByteCount} for scrapeId: $summaryScrapeId" }
-                context.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
-                proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
-              }
-            }
-            else -> throw IllegalStateException("Invalid field name in writeChunkedResponsesToProxy()")
-          }
+          processChunkedResponse(response)
         }
 
         onError { throwable ->
@@ -255,6 +273,162 @@ class ProxyServiceImpl(private val proxy: Proxy) : ProxyServiceGrpc.ProxyService
         }
       }
 
+  override fun scrapeStream(responseObserver: StreamObserver<ScrapeStreamMessage>): StreamObserver<ScrapeStreamMessage> {
+    val syncObserver = SynchronizedStreamObserver(responseObserver)
+    var agentContext: AgentContext? = null
+    var writer: Job? = null
+
+    // The writer completes the outbound half when it exits, so it is only completed here if there is no writer
+    fun closeScrapeStream() {
+      writer?.cancel() ?: completeQuietly(syncObserver)
+    }
+
+    return streamObserver {
+      onNext { message ->
+        when (message.messageOneOfCase) {
+          AGENT_INFO ->
+            if (agentContext == null)
+              agentContext =
+                  startScrapeStream(message.agentInfo.agentId, syncObserver)
+                      ?.also { writer = launchScrapeStreamWriter(it, syncObserver) }
+          RESPONSE -> proxy.scrapeRequestManager.assignScrapeResults(message.response.toScrapeResults())
+          CHUNKED_RESPONSE -> processChunkedResponse(message.chunkedResponse)
+          PING -> agentContext?.markActivityTime(false)
+          else -> throw IllegalStateException("Invalid message in scrapeStream(): ${message.messageOneOfCase}")
+        }
+      }
+
+      onError { throwable ->
+        if (proxy.isRunning)
+          Status.fromThrowable(throwable).also { arg ->
+            if (arg.code != Status.Code.CANCELLED)
+              logger.error(throwable) { "Error in scrapeStream(): $arg" }
+          }
+        closeScrapeStream()
+      }
+
+      onCompleted {
+        closeScrapeStream()
+      }
+    }
+  }
+
+  private fun startScrapeStream(agentId: String,
+                                streamObserver: StreamObserver<ScrapeStreamMessage>): AgentContext? {
+    val agentContext = proxy.agentContextManager.getAgentContext(agentId)
+
+    if (agentContext == null) {
+      logger.info { "scrapeStream() missing AgentContext agentId: $agentId" }
+      streamObserver.onError(Status.NOT_FOUND.withDescription("Invalid agentId: $agentId").asRuntimeException())
+      return null
+    }
+
+    agentContext.scrapeStream = streamObserver
+    agentContext.markActivityTime(false)
+    return agentContext
+  }
+
+  // Requests are written from a coroutine, since blocking in onNext() would stall the inbound half of the stream.
+  // The coroutine belongs to the agent, so it is cancelled when the agent is invalidated or the stream closes.
+  private fun launchScrapeStreamWriter(agentContext: AgentContext,
+                                       streamObserver: StreamObserver<ScrapeStreamMessage>): Job =
+      agentContext.launch {
+        val source = agentContext.scrapeRequestSource
+        try {
+          while (proxy.isRunning && agentContext.isValid()) {
+            val scrapeRequest = source.readScrapeRequest() ?: break
+            if (!writeScrapeRequest(agentContext, streamObserver, scrapeRequest)) {
+              // The stream closed after the request was read, so it goes to another channel or the reconnected agent
+              source.requeueScrapeRequest(scrapeRequest)
+              break
+            }
+          }
+        } finally {
+          if (agentContext.scrapeStream === streamObserver)
+            agentContext.scrapeStream = null
+          completeQuietly(streamObserver)
+        }
+      }
+
+  private fun writeScrapeRequest(agentContext: AgentContext,
+                                 streamObserver: StreamObserver<ScrapeStreamMessage>,
+                                 scrapeRequest: ScrapeRequestWrapper): Boolean {
+    if (agentContext.scrapeStream !== streamObserver)
+      return false
+    return try {
+      streamObserver.onNext(scrapeRequest.scrapeRequest.toStreamMessage())
+      true
+    } catch (e: RuntimeException) {
+      // The agent closed the stream, which is reported in onError()
+      logger.debug { "scrapeStream() closed for agentId: ${agentContext.agentId} - ${e.message}" }
+      false
+    }
+  }
+
+  private fun completeQuietly(streamObserver: StreamObserver<ScrapeStreamMessage>) {
+    try {
+      streamObserver.onCompleted()
+    } catch (e: RuntimeException) {
+      // Ignore if the call was already closed or cancelled
+    }
+  }
+
+  private fun processChunkedResponse(response: ChunkedScrapeResponse) {
+    val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
+    when (response.chunkOneOfCase) {
+      HEADER -> {
+        val scrapeId = response.header.headerScrapeId
+        logger.debug { "Reading header for scrapeId: $scrapeId}" }
+        chunkedContextMap[scrapeId] =
+            proxy.configVals.proxy.internal.run {
+              ChunkedContext(response, spillThresholdBytes, spillDirectory, maxScrapeSizeBytes)
+            }.apply {
+              path = proxy.scrapeRequestManager.scrapeRequestMap[scrapeId]?.path.orEmpty()
+            }
+      }
+      CHUNK -> {
+        response.chunk.apply {
+          logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
+          val context = chunkedContextMap[chunkScrapeId]
+          check(context != null) { "Missing chunked context with scrapeId: $chunkScrapeId" }
+          try {
+            context.applyChunk(chunkBytes, chunkByteCount, chunkCount, chunkChecksum)
+            ScrapeEvents.emit(CHUNK_RECEIVED,
+                              chunkScrapeId,
+                              context.path,
+                              context.scrapeResults.agentId,
+                              chunkByteCount.toLong())
+          } catch (e: Throwable) {
+            // A spilled context holds a file, so a failed scrape releases it right away
+            chunkedContextMap.remove(chunkScrapeId)
+            context.close()
+            throw e
+          }
+        }
+      }
+      SUMMARY -> {
+        response.summary.apply {
+          val context = chunkedContextMap.remove(summaryScrapeId)
+          check(context != null) { "Missing chunked context with scrapeId: $summaryScrapeId" }
+          logger.debug { "Reading summary chunkCount: ${context.totalChunkCount} byteCount: ${context.totalByteCount} for scrapeId: $summaryScrapeId" }
+          // applySummary() hands the content to the results, so closing afterwards only matters if it fails
+          context.use {
+            it.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
+            proxy.metrics {
+              chunkedByteCount.inc(it.totalByteCount.toDouble())
+              if (it.isSpilled)
+                scrapeSpillCount.inc()
+              if (it.isOversized)
+                scrapeOversizedCount.inc()
+            }
+            proxy.scrapeRequestManager.assignScrapeResults(it.scrapeResults)
+          }
+        }
+      }
+      else -> throw IllegalStateException("Invalid field name in processChunkedResponse()")
+    }
+  }
+
   companion object : KLogging() {
     private val PATH_ID_GENERATOR = AtomicLong(0)
   }
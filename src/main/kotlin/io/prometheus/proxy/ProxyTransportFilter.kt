@@ -29,7 +29,7 @@ class ProxyTransportFilter(private val proxy: Proxy) : ServerTransportFilter() {
   override fun transportReady(attributes: Attributes): Attributes {
     fun getRemoteAddr(attributes: Attributes) = attributes.get(REMOTE_ADDR_KEY)?.toString() ?: "Unknown"
 
-    val agentContext = AgentContext(getRemoteAddr(attributes))
+    val agentContext = AgentContext(getRemoteAddr(attributes), proxy.schedulingPolicy)
     proxy.agentContextManager.addAgentContext(agentContext)
     logger.debug { "Registering agentId: ${agentContext.agentId}" }
 
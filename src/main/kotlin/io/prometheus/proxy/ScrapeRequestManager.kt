@@ -19,6 +19,8 @@
 package io.prometheus.proxy
 
 import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.RESULTS_ASSIGNED
 import io.prometheus.common.ScrapeResults
 import mu.KLogging
 import java.util.concurrent.ConcurrentMap
@@ -40,6 +42,8 @@ class ScrapeRequestManager {
     val scrapeId = scrapeResults.scrapeId
     scrapeRequestMap[scrapeId]
         ?.also { wrapper ->
+          if (ScrapeEvents.isEnabled(RESULTS_ASSIGNED))
+            ScrapeEvents.emit(RESULTS_ASSIGNED, scrapeId, wrapper.path, scrapeResults.agentId, scrapeResults.wireByteCount)
           wrapper.scrapeResults = scrapeResults
           wrapper.markComplete()
           wrapper.agentContext.markActivityTime(true)
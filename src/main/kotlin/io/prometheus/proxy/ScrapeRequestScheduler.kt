@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import java.util.ArrayDeque
+import java.util.IdentityHashMap
+
+// Orders the pending scrape requests of a single agent. Each priority class has its own queue and the
+// classes are served by weighted round robin, earliest class first, so a flood of bulk scrapes delays
+// a high priority scrape by at most one round. A request is only handed out while the agent and its path
+// are below their in-flight limits. Requests are only told apart by identity and their path.
+class ScrapeRequestScheduler<T : Any>(private val policy: ScrapeSchedulingPolicy,
+                                      private val pathOf: (T) -> String) {
+  private val queues = List(policy.weights.size) { ArrayDeque<T>() }
+  private val credits = policy.weights.toIntArray()
+  private val inFlight = IdentityHashMap<T, String>()
+  private val inFlightByPath = mutableMapOf<String, Int>()
+
+  @Volatile
+  var queuedCount = 0
+    private set
+
+  val inFlightCount: Int
+    @Synchronized get() = inFlight.size
+
+  @Synchronized
+  fun offer(scrapeRequest: T) {
+    queues[policy.priorityClassOf(pathOf(scrapeRequest))] += scrapeRequest
+    queuedCount++
+  }
+
+  // Returns null if nothing is queued or every queued request is held back by an in-flight limit
+  @Synchronized
+  fun poll(): T? {
+    if (queuedCount == 0 || isAtLimit(inFlight.size, policy.maxInFlightPerAgent))
+      return null
+
+    // The second pass starts a new round after every class has used its credits or has nothing to send
+    repeat(2) {
+      queues.forEachIndexed { i, queue ->
+        if (credits[i] > 0)
+          takeEligible(queue)
+              ?.also { scrapeRequest ->
+                credits[i]--
+                dispatch(scrapeRequest)
+                return scrapeRequest
+              }
+      }
+      policy.weights.forEachIndexed { i, weight -> credits[i] = weight }
+    }
+    return null
+  }
+
+  // Returns true if the request held a queue entry or an in-flight slot
+  @Synchronized
+  fun complete(scrapeRequest: T): Boolean {
+    val path = inFlight.remove(scrapeRequest)
+    if (path != null) {
+      inFlightByPath.compute(path) { _, count -> if (count == null || count <= 1) null else count - 1 }
+      return true
+    }
+
+    if (queues[policy.priorityClassOf(pathOf(scrapeRequest))].removeIf { it === scrapeRequest }) {
+      queuedCount--
+      return true
+    }
+    return false
+  }
+
+  private fun takeEligible(queue: ArrayDeque<T>): T? {
+    if (policy.maxInFlightPerPath <= 0)
+      return queue.pollFirst()
+
+    val iter = queue.iterator()
+    while (iter.hasNext()) {
+      val scrapeRequest = iter.next()
+      if (!isAtLimit(inFlightByPath[pathOf(scrapeRequest)] ?: 0, policy.maxInFlightPerPath)) {
+        iter.remove()
+        return scrapeRequest
+      }
+    }
+    return null
+  }
+
+  private fun dispatch(scrapeRequest: T) {
+    val path = pathOf(scrapeRequest)
+    queuedCount--
+    inFlight[scrapeRequest] = path
+    inFlightByPath.merge(path, 1, Int::plus)
+  }
+
+  private fun isAtLimit(count: Int, limit: Int) = limit > 0 && count >= limit
+}
@@ -22,7 +22,10 @@ import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
 import io.prometheus.Proxy
 import io.prometheus.common.GrpcObjects.newScrapeRequest
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.REQUEST_CREATED
 import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.ScrapeTraceContext
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ClosedReceiveChannelException
 import kotlinx.coroutines.withTimeoutOrNull
@@ -30,31 +33,48 @@ import java.util.concurrent.atomic.AtomicLong
 import kotlin.time.Duration
 import kotlin.time.MonoClock
 
-class ScrapeRequestWrapper(proxy: Proxy,
-                           path: String,
+class ScrapeRequestWrapper(private val proxy: Proxy,
+                           val path: String,
                            val agentContext: AgentContext,
                            accept: String?,
-                           debugEnabled: Boolean) {
+                           debugEnabled: Boolean,
+                           traceContext: ScrapeTraceContext = ScrapeTraceContext.getDefaultInstance()) {
   private val clock = MonoClock
   private val createTimeMark = clock.markNow()
   private val completeChannel = Channel<Boolean>()
-  private val requestTimer = if (proxy.isMetricsEnabled) proxy.metrics.scrapeRequestLatency.startTimer() else null
+  private val createNanos = System.nanoTime()
+
+  // Set when the request is handed to the agent and when its results arrive, for the phase timings
+  @Volatile
+  private var dispatchNanos = 0L
+  @Volatile
+  private var completeNanos = 0L
 
   val scrapeRequest = newScrapeRequest(agentContext.agentId,
                                        SCRAPE_ID_GENERATOR.getAndIncrement(),
                                        path,
                                        accept,
-                                       debugEnabled)
+                                       debugEnabled,
+                                       traceContext)
 
   var scrapeResults: ScrapeResults by nonNullableReference()
 
+  init {
+    ScrapeEvents.emit(REQUEST_CREATED, scrapeRequest.scrapeId, path, agentContext.agentId)
+  }
+
   val scrapeId: Long
     get() = scrapeRequest.scrapeId
 
   fun ageDuration() = createTimeMark.elapsedNow()
 
+  fun markDispatched() {
+    dispatchNanos = System.nanoTime()
+  }
+
   fun markComplete() {
-    requestTimer?.observeDuration()
+    completeNanos = System.nanoTime()
+    proxy.metrics { recordScrapeLatency(path, completeNanos - createNanos) }
     completeChannel.close()
   }
 
@@ -69,6 +89,23 @@ class ScrapeRequestWrapper(proxy: Proxy,
       }
     } != null
 
+  // The proxy phases, around the agent phases reported in the results. Transfer is the part of the agent's
+  // turnaround not covered by its own phases, which is mostly the network and the proxy's gRPC handling.
+  // Decompress is left out when it is null, for content that is unzipped while it is streamed to the client.
+  fun phaseNanos(decompressNanos: Long?): List<Pair<String, Long>> {
+    if (dispatchNanos == 0L || completeNanos == 0L)
+      return emptyList()
+    val agentPhases = scrapeResults.phaseTimings
+    val agentNanos = agentPhases.run { queueNanos + fetchNanos + compressNanos + sendNanos }
+    val phases = listOf("proxy_queue" to dispatchNanos - createNanos,
+                        "agent_queue" to agentPhases.queueNanos,
+                        "fetch" to agentPhases.fetchNanos,
+                        "compress" to agentPhases.compressNanos,
+                        "send" to agentPhases.sendNanos,
+                        "transfer" to maxOf(completeNanos - dispatchNanos - agentNanos, 0L))
+    return if (decompressNanos == null) phases else phases + ("decompress" to decompressNanos)
+  }
+
   override fun toString() =
     toStringElements {
       add("scrapeId", scrapeRequest.scrapeId)
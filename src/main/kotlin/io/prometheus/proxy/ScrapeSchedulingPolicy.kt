@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.prometheus.common.ConfigVals
+
+// Shared by all agents, so the patterns are compiled once
+class ScrapeSchedulingPolicy(configVals: ConfigVals.Proxy2.Scheduling) {
+  private val patterns = configVals.priorityClasses.map { Regex(it.pattern) }
+
+  val maxInFlightPerAgent = configVals.maxInFlightPerAgent
+  val maxInFlightPerPath = configVals.maxInFlightPerPath
+
+  // Paths that match no pattern fall into a final default class
+  val weights = (configVals.priorityClasses.map { it.weight } + configVals.defaultWeight).map { maxOf(it, 1) }
+
+  // Paths are matched without the leading slash
+  fun priorityClassOf(path: String) =
+      patterns.indexOfFirst { it.matches(path) }.let { if (it == -1) patterns.size else it }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.prometheus.common.ConfigVals
+
+// Decides whether an agent's keepalive pings can replace heartbeats and inactivity eviction
+class TransportLivenessPolicy(configVals: ConfigVals.Proxy2.Transport2) {
+  private val keepAliveEnabled = configVals.keepAliveTimeSecs > 0
+
+  // Agents pinging more often than this are sent GOAWAY too_many_pings, so their keepalive is not dependable
+  val permitKeepAliveTimeSecs =
+      if (configVals.permitKeepAliveTimeSecs > 0) configVals.permitKeepAliveTimeSecs else DEFAULT_PERMIT_KEEPALIVE_TIME_SECS
+
+  // Agents that do not report their interval send 0, which is never granted
+  fun isGranted(agentKeepAliveTimeSecs: Int) = keepAliveEnabled && agentKeepAliveTimeSecs >= permitKeepAliveTimeSecs
+
+  fun isRejected(agentKeepAliveTimeSecs: Int) = agentKeepAliveTimeSecs in 1 until permitKeepAliveTimeSecs
+
+  companion object {
+    // The permitKeepAliveTime used by NettyServerBuilder when none is set
+    const val DEFAULT_PERMIT_KEEPALIVE_TIME_SECS = 300
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.AdaptiveChunkSizer
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.MILLISECONDS
+
+class AdaptiveChunkSizerTest {
+
+  @Test
+  fun fastLinkTest() {
+    val sizer = AdaptiveChunkSizer(32 * 1024, 8 * 1024, 1024 * 1024)
+
+    // 1MB drained in 1ms grows the chunk size up to the max
+    repeat(50) { sizer.update(1024 * 1024, MILLISECONDS.toNanos(1)) }
+    sizer.chunkSize shouldEqual 1024 * 1024
+  }
+
+  @Test
+  fun slowLinkTest() {
+    val sizer = AdaptiveChunkSizer(32 * 1024, 8 * 1024, 1024 * 1024)
+
+    // 64KB drained in 1s shrinks the chunk size down to the min
+    repeat(50) { sizer.update(64 * 1024, MILLISECONDS.toNanos(1000)) }
+    sizer.chunkSize shouldEqual 8 * 1024
+  }
+
+  @Test
+  fun initialSizeTest() {
+    AdaptiveChunkSizer(4 * 1024, 8 * 1024, 1024 * 1024).chunkSize shouldEqual 8 * 1024
+    AdaptiveChunkSizer(2048 * 1024, 8 * 1024, 1024 * 1024).chunkSize shouldEqual 1024 * 1024
+  }
+}
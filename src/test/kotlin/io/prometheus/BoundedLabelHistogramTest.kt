@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.BoundedLabelHistogram
+import io.prometheus.common.BoundedLabelHistogram.Companion.OVERFLOW_LABEL
+import io.prometheus.common.BoundedLabelHistogram.Companion.observeNanos
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class BoundedLabelHistogramTest {
+
+  private fun BoundedLabelHistogram.sampleValues(sampleName: String) =
+      collect().first().samples.filter { it.name == sampleName }.map { it.labelValues to it.value }
+
+  @Test
+  fun bucketTest() {
+    BoundedLabelHistogram("bucket_test", "Bucket test", listOf(1.0, 0.1, 0.5)).apply {
+      listOf(0.05, 0.1, 0.3, 0.7, 2.0).forEach { labels().observe(it) }
+
+      sampleValues("bucket_test_bucket").map { it.second } shouldEqual listOf(2.0, 3.0, 4.0, 5.0)
+      sampleValues("bucket_test_bucket").map { it.first.last() } shouldEqual listOf("0.1", "0.5", "1.0", "+Inf")
+      sampleValues("bucket_test_count").single().second shouldEqual 5.0
+      (Math.abs(sampleValues("bucket_test_sum").single().second - 3.15) < 1e-9) shouldEqual true
+    }
+  }
+
+  @Test
+  fun nanosTest() {
+    BoundedLabelHistogram("nanos_test", "Nanos test", listOf(0.5)).apply {
+      labels().observeNanos(250_000_000)
+      sampleValues("nanos_test_bucket").first().second shouldEqual 1.0
+    }
+  }
+
+  @Test
+  fun cardinalityTest() {
+    BoundedLabelHistogram("cardinality_test", "Cardinality test", listOf(1.0),
+                          boundedLabelNames = listOf("path"), maxLabelValues = 3).apply {
+      (1..10).forEach { labels("path$it").observe(0.5) }
+
+      val counts = sampleValues("cardinality_test_count").map { it.first.single() to it.second }.toMap()
+      counts.size shouldEqual 4
+      counts[OVERFLOW_LABEL] shouldEqual 7.0
+    }
+  }
+
+  @Test
+  fun fixedLabelTest() {
+    BoundedLabelHistogram("fixed_test", "Fixed test", listOf(1.0),
+                          listOf("phase"), listOf("path_group"), 1).apply {
+      labels("fetch", "group1").observe(0.5)
+      labels("send", "group2").observe(0.5)
+
+      // The fixed label keeps its value when the bounded one overflows
+      sampleValues("fixed_test_count").map { it.first }.toSet() shouldEqual
+          setOf(listOf("fetch", "group1"), listOf("send", OVERFLOW_LABEL))
+    }
+  }
+
+  @Test
+  fun cachedChildTest() {
+    BoundedLabelHistogram("cached_test", "Cached test", listOf(1.0),
+                          listOf("phase"), listOf("path_group"), 1).apply {
+      (labels("fetch", "group1") === labels("fetch", "group1")) shouldEqual true
+
+      // Overflowed values share one child per fixed value
+      (labels("fetch", "group2") === labels("fetch", "group3")) shouldEqual true
+      (labels("fetch", "group2") === labels("send", "group2")) shouldEqual false
+    }
+  }
+
+  @Test
+  fun concurrentCardinalityTest() {
+    val executor = Executors.newFixedThreadPool(8)
+    try {
+      BoundedLabelHistogram("concurrent_test", "Concurrent test", listOf(1.0),
+                            boundedLabelNames = listOf("path"), maxLabelValues = 5).apply {
+        executor.invokeAll((1..1000).map { i -> Callable { labels("path$i").observe(0.5) } }).forEach { it.get() }
+
+        val counts = sampleValues("concurrent_test_count").map { it.first.single() to it.second }.toMap()
+        counts.size shouldEqual 6
+        counts.values.sum() shouldEqual 1000.0
+      }
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+}
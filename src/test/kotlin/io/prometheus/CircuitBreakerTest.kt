@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.CircuitBreaker
+import io.prometheus.agent.CircuitBreaker.State.CLOSED
+import io.prometheus.agent.CircuitBreaker.State.HALF_OPEN
+import io.prometheus.agent.CircuitBreaker.State.OPEN
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+
+class CircuitBreakerTest {
+  private var nanos = 0L
+  private val breaker = CircuitBreaker(3, 1000, { nanos })
+
+  @Test
+  fun opensAfterThresholdTest() {
+    repeat(2) { breaker.recordFailure() }
+    breaker.state shouldEqual CLOSED
+    breaker.tryAcquire() shouldEqual true
+
+    breaker.recordFailure()
+    breaker.state shouldEqual OPEN
+    breaker.tryAcquire() shouldEqual false
+  }
+
+  @Test
+  fun successResetsFailuresTest() {
+    repeat(2) { breaker.recordFailure() }
+    breaker.recordSuccess()
+    repeat(2) { breaker.recordFailure() }
+    breaker.state shouldEqual CLOSED
+    breaker.consecutiveFailures shouldEqual 2
+  }
+
+  @Test
+  fun probeTest() {
+    repeat(3) { breaker.recordFailure() }
+
+    // A single probe is let through once the breaker has been open for openNanos
+    nanos = 999
+    breaker.tryAcquire() shouldEqual false
+    nanos = 1000
+    breaker.tryAcquire() shouldEqual true
+    breaker.state shouldEqual HALF_OPEN
+    breaker.tryAcquire() shouldEqual false
+
+    // A failed probe reopens the breaker for another openNanos
+    breaker.recordFailure()
+    breaker.state shouldEqual OPEN
+    nanos = 1999
+    breaker.tryAcquire() shouldEqual false
+    nanos = 2000
+    breaker.tryAcquire() shouldEqual true
+
+    // A successful probe closes it
+    breaker.recordSuccess()
+    breaker.state shouldEqual CLOSED
+    (breaker.isOpen) shouldEqual false
+  }
+}
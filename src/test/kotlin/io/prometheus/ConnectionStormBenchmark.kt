@@ -0,0 +1,276 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.beust.jcommander.JCommander
+import com.beust.jcommander.Parameter
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import com.google.protobuf.Empty
+import io.grpc.ManagedChannel
+import io.grpc.Metadata
+import io.grpc.inprocess.InProcessChannelBuilder
+import io.grpc.stub.MetadataUtils
+import io.ktor.application.call
+import io.ktor.http.ContentType.Text
+import io.ktor.http.isSuccess
+import io.ktor.response.respondText
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.GrpcObjects.newRegisterAgentRequest
+import io.prometheus.common.GrpcObjects.newRegisterPathRequest
+import io.prometheus.grpc.ProxyServiceGrpc
+import mu.KLogging
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryType
+import java.util.Locale
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.MINUTES
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+import kotlin.time.seconds
+
+class ConnectionStormOptions {
+  @Parameter(names = ["--agents"], description = "Number of simulated agents")
+  var agentCount = 10_000
+
+  @Parameter(names = ["--paths"], description = "Paths registered by each simulated agent")
+  var pathsPerAgent = 5
+
+  @Parameter(names = ["--cycles"], description = "Number of connect and disconnect storms")
+  var cycles = 3
+
+  @Parameter(names = ["--concurrency"], description = "Threads connecting and disconnecting the simulated agents")
+  var concurrency = 256
+
+  @Parameter(names = ["--probe-qps"], description = "Scrapes per second of a real agent's path during the storms")
+  var probeQps = 20
+
+  @Parameter(names = ["--exporter-port"], description = "Probe exporter listen port")
+  var exporterPort = 12300
+
+  @Parameter(names = ["-h", "--help"], help = true)
+  var usage = false
+}
+
+// Simulates many agents reconnecting at once after a partition. Each simulated agent is a bare in-process
+// channel that connects, registers itself and its paths, and later disconnects, which exercises
+// ProxyTransportFilter, AgentContextManager, registerPath and removePathByAgentId the way real agents do.
+// Meanwhile, a real agent's path is scraped at a fixed rate to show the storm's effect on scrape latency.
+// Run with: ./gradlew stormTest --args="--agents 50000 --paths 2"
+object ConnectionStormBenchmark : KLogging() {
+  private const val SERVER_NAME = "connection-storm"
+  private val STEADY_STATE_TIMEOUT_NANOS = MINUTES.toNanos(2)
+  private val agentIdKey = Metadata.Key.of(Proxy.AGENT_ID, Metadata.ASCII_STRING_MARSHALLER)
+
+  @JvmStatic
+  fun main(argv: Array<String>) {
+    val options = ConnectionStormOptions()
+    JCommander.newBuilder().addObject(options).build()
+        .apply {
+          programName = ConnectionStormBenchmark::class.java.simpleName
+          parse(*argv)
+          if (options.usage) {
+            usage()
+            return
+          }
+        }
+
+    val exporter =
+        embeddedServer(CIO, port = options.exporterPort) {
+          routing {
+            get("/metrics") {
+              call.respondText(Payloads.exposition(100), Text.Plain)
+            }
+          }
+        }.apply { start() }
+
+    // Simulated agents never heartbeat, so they must not be evicted as stale
+    val proxy = startProxy(SERVER_NAME, argv = listOf("-Dproxy.internal.staleAgentCheckEnabled=false"))
+    val probeAgent = startAgent(SERVER_NAME)
+    val executor = Executors.newFixedThreadPool(options.concurrency)
+
+    try {
+      probeAgent.awaitInitialConnection(30.seconds)
+      probeAgent.pathManager.registerPath("storm-probe", "${options.exporterPort}/metrics".fixUrl())
+      val baseAgentCount = proxy.agentContextManager.agentContextSize
+      val basePathCount = proxy.pathManager.pathMapSize
+
+      logger.info { "Probe latency before the storms: ${probe(options, seconds = 5) {}}" }
+
+      repeat(options.cycles) { cycle ->
+        val channels = arrayOfNulls<ManagedChannel>(options.agentCount)
+        val failures = AtomicInteger(0)
+        val stats = StormStats()
+        var stormReport = ""
+
+        val connectLatency =
+            probe(options) {
+              stats.reset()
+              runAll(executor, options.agentCount) { i ->
+                try {
+                  channels[i] = connect(i, options.pathsPerAgent, cycle)
+                } catch (e: Exception) {
+                  failures.incrementAndGet()
+                }
+              }
+              awaitSteadyState(proxy,
+                               baseAgentCount + options.agentCount - failures.get(),
+                               basePathCount + (options.agentCount - failures.get()) * options.pathsPerAgent)
+              stormReport = stats.report()
+            }
+        logger.info { "Cycle $cycle connect: $stormReport failures: ${failures.get()} probe: $connectLatency" }
+
+        val disconnectLatency =
+            probe(options) {
+              stats.reset()
+              runAll(executor, options.agentCount) { i -> channels[i]?.shutdownNow() }
+              awaitSteadyState(proxy, baseAgentCount, basePathCount)
+              stormReport = stats.report()
+            }
+        logger.info { "Cycle $cycle disconnect: $stormReport probe: $disconnectLatency" }
+      }
+    } finally {
+      executor.shutdownNow()
+      probeAgent.stopSync()
+      proxy.stopSync()
+      exporter.stop(1, 1, SECONDS)
+    }
+  }
+
+  // Connects one simulated agent and registers it and its paths, as Agent.connectToProxy() does
+  private fun connect(index: Int, pathCount: Int, cycle: Int): ManagedChannel {
+    val headers = AtomicReference<Metadata>()
+    val channel =
+        InProcessChannelBuilder.forName(SERVER_NAME)
+            .directExecutor()
+            .intercept(MetadataUtils.newCaptureMetadataInterceptor(headers, AtomicReference<Metadata>()))
+            .build()
+    val stub = ProxyServiceGrpc.newBlockingStub(channel)
+
+    try {
+      stub.connectAgent(Empty.getDefaultInstance())
+      val agentId = checkNotNull(headers.get()?.get(agentIdKey)) { "Missing agentId for simulated agent $index" }
+      stub.registerAgent(newRegisterAgentRequest(agentId, "storm-$index", "localhost", -1))
+      repeat(pathCount) { j ->
+        stub.registerPath(newRegisterPathRequest(agentId, "storm-$cycle-$index-$j"))
+      }
+    } catch (e: Throwable) {
+      // Otherwise the channel is leaked and its agent context stays on the proxy until it is evicted
+      channel.shutdownNow()
+      throw e
+    }
+    return channel
+  }
+
+  private fun runAll(executor: ExecutorService, count: Int, block: (Int) -> Unit) {
+    (0 until count)
+        .map { i -> executor.submit { block(i) } }
+        .forEach { it.get(10, MINUTES) }
+  }
+
+  private fun awaitSteadyState(proxy: Proxy, agentCount: Int, pathCount: Int) {
+    val deadline = System.nanoTime() + STEADY_STATE_TIMEOUT_NANOS
+    while (proxy.agentContextManager.agentContextSize != agentCount || proxy.pathManager.pathMapSize != pathCount) {
+      check(System.nanoTime() < deadline) {
+        "Proxy did not reach $agentCount agents and $pathCount paths: " +
+        "found ${proxy.agentContextManager.agentContextSize} agents and ${proxy.pathManager.pathMapSize} paths"
+      }
+      Thread.sleep(10)
+    }
+  }
+
+  // Scrapes the probe path at a fixed rate while block runs, and returns the scrape latencies
+  private fun probe(options: ConnectionStormOptions, seconds: Int = 0, block: () -> Unit): String {
+    val recorder = LatencyRecorder(1_000_000)
+    val errors = AtomicInteger(0)
+    val running = AtomicBoolean(true)
+    val intervalMillis = 1000L / options.probeQps
+
+    val prober =
+        thread(name = "storm-probe") {
+          while (running.get()) {
+            val start = System.nanoTime()
+            try {
+              blockingGet("${TestConstants.PROXY_PORT}/storm-probe".fixUrl()) { response ->
+                if (response.status.isSuccess())
+                  recorder.record(System.nanoTime() - start)
+                else
+                  errors.incrementAndGet()
+              }
+            } catch (e: Exception) {
+              errors.incrementAndGet()
+            }
+            Thread.sleep(maxOf(0L, intervalMillis - NANOSECONDS.toMillis(System.nanoTime() - start)))
+          }
+        }
+
+    block()
+    if (seconds > 0)
+      Thread.sleep(SECONDS.toMillis(seconds.toLong()))
+    running.set(false)
+    prober.join()
+
+    val (p50, p99, max) = recorder.percentiles(0.5, 0.99, 1.0).map { it / 1e6 }
+    return "scrapes: ${recorder.count} errors: ${errors.get()} " +
+           String.format(Locale.ROOT, "p50: %.1fms p99: %.1fms max: %.1fms", p50, p99, max)
+  }
+
+  // Elapsed time, peak heap and monitor contention since the last reset
+  private class StormStats {
+    private val threadBean = ManagementFactory.getThreadMXBean().apply {
+      if (isThreadContentionMonitoringSupported)
+        isThreadContentionMonitoringEnabled = true
+    }
+    private val heapPools = ManagementFactory.getMemoryPoolMXBeans().filter { it.type == MemoryType.HEAP }
+    private var startNanos = 0L
+    private var startBlockedCount = 0L
+    private var startBlockedMillis = 0L
+
+    // Blocked counts are summed over live threads, so those of threads that exit are missed
+    private fun blocked() =
+        threadBean.getThreadInfo(threadBean.allThreadIds)
+            .filterNotNull()
+            .let { infos -> infos.map { it.blockedCount }.sum() to infos.map { maxOf(0L, it.blockedTime) }.sum() }
+
+    fun reset() {
+      heapPools.forEach { it.resetPeakUsage() }
+      val (count, millis) = blocked()
+      startBlockedCount = count
+      startBlockedMillis = millis
+      startNanos = System.nanoTime()
+    }
+
+    fun report(): String {
+      val elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+      val peakHeapMBs = heapPools.map { it.peakUsage.used }.sum() / (1024 * 1024)
+      val (count, millis) = blocked()
+      return "steady state after: ${elapsedMillis}ms peak heap: ${peakHeapMBs}MB " +
+             "monitor blocks: ${count - startBlockedCount} blocked time: ${millis - startBlockedMillis}ms"
+    }
+  }
+}
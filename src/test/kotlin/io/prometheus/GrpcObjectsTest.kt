@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import brave.propagation.TraceContext
+import com.github.pambrose.common.util.zip
+import com.google.protobuf.UnsafeByteOperations
+import io.prometheus.common.Checksums.checksChunks
+import io.prometheus.common.Checksums.newChecksum
+import io.prometheus.common.Checksums.parseIntegrityMode
+import io.prometheus.common.GrpcCompression.DeflateCodec
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.common.GrpcObjects.toScrapeResponse
+import io.prometheus.common.GrpcObjects.toScrapeResponseHeader
+import io.prometheus.common.GrpcObjects.toScrapeResults
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.ScrapeTracing.isTraced
+import io.prometheus.common.ScrapeTracing.toScrapeTraceContext
+import io.prometheus.common.ScrapeTracing.toTraceContext
+import io.prometheus.common.unzip
+import io.prometheus.common.update
+import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.IntegrityMode
+import io.prometheus.grpc.PhaseTimings
+import io.prometheus.grpc.ScrapeTraceContext
+import io.prometheus.proxy.ChunkedContext
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+class GrpcObjectsTest {
+
+  private val content = (1..5000).joinToString("\n") { "test_metric{index=\"$it\"} $it" }
+
+  @Test
+  fun zippedContentNotCopiedTest() {
+    val bytes = content.zip()
+    val results = ScrapeResults(agentId = "1",
+                                scrapeId = 1,
+                                zipped = true,
+                                contentAsZipped = UnsafeByteOperations.unsafeWrap(bytes))
+    val response = results.toScrapeResponse()
+
+    // The response shares the array backing the results, so a change to one is visible in the other
+    bytes[0] = (bytes[0] + 1).toByte()
+    response.contentAsZipped.byteAt(0) shouldEqual bytes[0]
+    response.toScrapeResults().contentAsZipped.byteAt(0) shouldEqual bytes[0]
+  }
+
+  @Test
+  fun chunkedContextTest() {
+    for (mode in listOf(IntegrityMode.CRC32, IntegrityMode.CRC32C, IntegrityMode.SUMMARY_ONLY, IntegrityMode.NONE))
+      applyChunks(mode)
+  }
+
+  @Test
+  fun spilledChunkedContextTest() {
+    applyChunks(IntegrityMode.CRC32) { ChunkedContext(it, spillThresholdBytes = 2048) }
+        .apply {
+          isSpilled shouldEqual true
+          scrapeResults.contentAsZipped.unzip() shouldEqual content
+        }
+  }
+
+  @Test
+  fun oversizedChunkedContextTest() {
+    applyChunks(IntegrityMode.CRC32) { ChunkedContext(it, maxScrapeSizeBytes = 2048) }
+        .apply {
+          isOversized shouldEqual true
+          scrapeResults.validResponse shouldEqual false
+          scrapeResults.statusCode shouldEqual 502
+          scrapeResults.contentAsZipped.size() shouldEqual 0
+          scrapeResults.failureReason.isNotEmpty() shouldEqual true
+        }
+  }
+
+  @Test
+  fun phaseTimingsTest() {
+    val timings = PhaseTimings.newBuilder().setQueueNanos(1).setFetchNanos(2).setCompressNanos(3).setSendNanos(4).build()
+    val results = ScrapeResults(agentId = "1",
+                                scrapeId = 3,
+                                zipped = true,
+                                contentAsZipped = UnsafeByteOperations.unsafeWrap(content.zip()),
+                                phaseTimings = timings)
+
+    results.toScrapeResponse().toScrapeResults().phaseTimings shouldEqual timings
+    ChunkedContext(results.toScrapeResponseHeader(1, IntegrityMode.CRC32)).scrapeResults.phaseTimings shouldEqual timings
+  }
+
+  @Test
+  fun traceContextTest() {
+    val context = TraceContext.newBuilder().traceIdHigh(1).traceId(2).parentId(3).spanId(4).sampled(true).build()
+    val traceContext = context.toScrapeTraceContext()
+    traceContext.isTraced shouldEqual true
+    traceContext.toTraceContext() shouldEqual context
+
+    val results = ScrapeResults(agentId = "1", scrapeId = 3, traceContext = traceContext)
+    results.toScrapeResponse().toScrapeResults().traceContext shouldEqual traceContext
+    results.contentAsZipped = UnsafeByteOperations.unsafeWrap(content.zip())
+    ChunkedContext(results.toScrapeResponseHeader(1, IntegrityMode.CRC32)).scrapeResults.traceContext shouldEqual traceContext
+
+    // Requests from older proxies carry no context, so the agent does not trace them
+    ScrapeTraceContext.getDefaultInstance().isTraced shouldEqual false
+  }
+
+  @Test
+  fun crc32cTest() {
+    newChecksum(IntegrityMode.CRC32C).apply {
+      val bytes = "123456789".toByteArray()
+      update(bytes, 0, bytes.size)
+      value shouldEqual 0xE3069283L
+    }
+  }
+
+  @Test
+  fun parseIntegrityModeTest() {
+    parseIntegrityMode("crc32c") shouldEqual IntegrityMode.CRC32C
+    listOf("UNRECOGNIZED", "MD5").forEach { name ->
+      var failed = false
+      try {
+        parseIntegrityMode(name)
+      } catch (e: IllegalArgumentException) {
+        failed = true
+      }
+      failed shouldEqual true
+    }
+  }
+
+  @Test
+  fun deflateCodecTest() {
+    val bytes = ByteArrayOutputStream()
+    DeflateCodec.compress(bytes).use { it.write(content.toByteArray()) }
+    (bytes.size() < content.length) shouldEqual true
+
+    DeflateCodec.decompress(ByteArrayInputStream(bytes.toByteArray()))
+        .bufferedReader()
+        .use { it.readText() } shouldEqual content
+  }
+
+  private fun applyChunks(mode: IntegrityMode,
+                          newContext: (ChunkedScrapeResponse) -> ChunkedContext = { ChunkedContext(it) }): ChunkedContext {
+    val zipped = UnsafeByteOperations.unsafeWrap(content.zip())
+    val results = ScrapeResults(agentId = "1",
+                                scrapeId = 2,
+                                validResponse = true,
+                                zipped = true,
+                                contentAsZipped = zipped)
+    val context = newContext(results.toScrapeResponseHeader((zipped.size() + 1023) / 1024, mode))
+    val checksum = newChecksum(mode)
+    var count = 0
+
+    for (offset in 0 until zipped.size() step 1024) {
+      val chunkBytes = zipped.substring(offset, minOf(offset + 1024, zipped.size()))
+      checksum.update(chunkBytes)
+      val chunkChecksum = if (mode.checksChunks) checksum.value else 0L
+      newScrapeResponseChunk(2, ++count, chunkBytes.size(), chunkChecksum, chunkBytes).chunk
+          .apply {
+            context.applyChunk(chunkBytes, chunkByteCount, chunkCount, chunkChecksum)
+          }
+    }
+
+    context.applySummary(count, zipped.size(), checksum.value)
+    context.integrityMode shouldEqual mode
+    context.totalChunkCount shouldEqual count
+    context.declaredChunkCount shouldEqual count
+    context.declaredByteCount shouldEqual zipped.size()
+    if (!context.isOversized)
+      context.scrapeResults.contentAsZipped.unzip() shouldEqual content
+    return context
+  }
+}
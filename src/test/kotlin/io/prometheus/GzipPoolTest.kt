@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.util.zip
+import com.google.protobuf.ByteString
+import io.prometheus.common.ContentSizeException
+import io.prometheus.common.GzipPool
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.zip.GZIPInputStream
+import java.util.zip.ZipException
+
+class GzipPoolTest {
+
+  private val content = (1..20_000).joinToString("\n") { "metric_$it{label=\"value $it\"} ${it * 1.5}" }
+
+  @Test
+  fun roundTripTest() {
+    (-1..9).forEach { level ->
+      GzipPool.gunzip(GzipPool.gzip(content, level)) shouldEqual content
+    }
+    GzipPool.gunzip(GzipPool.gzip("")) shouldEqual ""
+  }
+
+  @Test
+  fun interoperabilityTest() {
+    // Older proxies read with GZIPInputStream and older agents write with GZIPOutputStream
+    GZIPInputStream(GzipPool.gzip(content).newInput()).bufferedReader().use { it.readText() } shouldEqual content
+    GzipPool.gunzip(ByteString.copyFrom(content.zip())) shouldEqual content
+  }
+
+  @Test
+  fun reuseTest() {
+    GzipPool.gzip(content)
+    val deflaters = GzipPool.deflaterCount.get()
+    repeat(10) { GzipPool.gunzip(GzipPool.gzip(content)) shouldEqual content }
+    GzipPool.deflaterCount.get() shouldEqual deflaters
+  }
+
+  @Test
+  fun concurrentUseTest() {
+    val executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4)
+    try {
+      val tasks = (1..200).map { i -> Callable { GzipPool.gunzip(GzipPool.gzip("$content $i")) shouldEqual "$content $i" } }
+      executor.invokeAll(tasks).forEach { it.get() }
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  fun corruptContentTest() {
+    val zipped = GzipPool.gzip(content).toByteArray()
+    zipped[zipped.size - 5] = (zipped[zipped.size - 5] + 1).toByte()
+    var failed = false
+    try {
+      GzipPool.gunzip(ByteString.copyFrom(zipped))
+    } catch (e: ZipException) {
+      failed = true
+    }
+    failed shouldEqual true
+  }
+
+  @Test
+  fun maxBytesTest() {
+    val zipped = GzipPool.gzip(content)
+    val size = content.toByteArray().size
+    GzipPool.gunzip(zipped, size) shouldEqual content
+
+    // The limit holds even if the trailer understates the size
+    val understated = zipped.toByteArray().apply { fill(0, this.size - 4, this.size) }
+    var failed = false
+    try {
+      GzipPool.gunzip(ByteString.copyFrom(understated), size - 1)
+    } catch (e: ContentSizeException) {
+      failed = true
+    }
+    failed shouldEqual true
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.SpaceSaving
+import io.prometheus.proxy.HotPaths
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+
+class HotPathsTest {
+
+  @Test
+  fun spaceSavingTest() {
+    val sketch = SpaceSaving<String, Unit>(3) {}
+
+    // A heavy key is kept while a stream of light keys churns through the other entries
+    repeat(100) { i ->
+      sketch.offer("heavy", 10)
+      sketch.offer("light-$i")
+    }
+
+    sketch.snapshot { entries ->
+      entries.size shouldEqual 3
+      entries.first { it.key == "heavy" }.apply {
+        weight shouldEqual 1000L
+        error shouldEqual 0L
+      }
+    }
+  }
+
+  @Test
+  fun slowestPathsTest() {
+    val hotPaths = HotPaths(60, clock = { 0L })
+    repeat(100) {
+      hotPaths.recordLatency("fast", MILLISECONDS.toNanos(2))
+      hotPaths.recordLatency("slow", SECONDS.toNanos(2))
+    }
+    hotPaths.recordTimeout("slow")
+
+    val text = hotPaths.toPlainText(1)
+    text.contains("/slow p99: ") shouldEqual true
+    text.contains("/fast p99: ") shouldEqual false
+    text.contains("/slow timeouts: 1") shouldEqual true
+  }
+
+  @Test
+  fun slidingWindowTest() {
+    var now = 0L
+    val hotPaths = HotPaths(60, clock = { now })
+    hotPaths.recordSize("old", 1024)
+
+    // The window slides past the slot holding the old path
+    now = SECONDS.toMillis(61)
+    hotPaths.recordSize("new", 2048)
+
+    val text = hotPaths.toPlainText(10)
+    text.contains("/new max: 2048 bytes") shouldEqual true
+    text.contains("/old") shouldEqual false
+  }
+
+  @Test
+  fun latencySketchTest() {
+    HotPaths.LatencySketch()
+        .apply {
+          repeat(99) { record(MILLISECONDS.toNanos(10)) }
+          record(SECONDS.toNanos(1))
+          // Quantiles are within the width of a bucket
+          (quantileMillis(0.5) in 10.0..11.5) shouldEqual true
+          (quantileMillis(1.0) in 1000.0..1150.0) shouldEqual true
+        }
+  }
+}
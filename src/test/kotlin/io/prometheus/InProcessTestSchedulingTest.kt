@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.util.simpleClassName
+import io.prometheus.TestConstants.SCHEDULING_CONFIG_ARG
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+
+class InProcessTestSchedulingTest : CommonTests(agent,
+                                                ProxyCallTestArgs(agent,
+                                                                  httpServerCount = 5,
+                                                                  pathCount = 25,
+                                                                  sequentialQueryCount = 200,
+                                                                  parallelQueryCount = 20,
+                                                                  startPort = 11900,
+                                                                  caller = simpleClassName)) {
+
+  companion object : CommonCompanion() {
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() = setItUp({ startProxy("scheduling", configArg = SCHEDULING_CONFIG_ARG) },
+                          { startAgent(serverName = "scheduling", chunkContentSizeKbs = 5) })
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.google.protobuf.Empty
+import io.grpc.Server
+import io.grpc.ServerInterceptors
+import io.grpc.inprocess.InProcessServerBuilder
+import io.grpc.stub.StreamObserver
+import io.prometheus.grpc.AgentInfo
+import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.HeartBeatRequest
+import io.prometheus.grpc.HeartBeatResponse
+import io.prometheus.grpc.PathMapSizeRequest
+import io.prometheus.grpc.PathMapSizeResponse
+import io.prometheus.grpc.ProxyServiceGrpc
+import io.prometheus.grpc.RegisterAgentRequest
+import io.prometheus.grpc.RegisterAgentResponse
+import io.prometheus.grpc.RegisterPathRequest
+import io.prometheus.grpc.RegisterPathResponse
+import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.UnregisterPathRequest
+import io.prometheus.grpc.UnregisterPathResponse
+import io.prometheus.proxy.ProxyInterceptor
+import io.prometheus.proxy.ProxyServiceImpl
+import io.prometheus.proxy.ProxyTransportFilter
+import java.io.Closeable
+
+// Serves a running proxy to agents the way an older proxy would: scrapeStream is answered with
+// UNIMPLEMENTED and the parent agentId of a sub-connection is ignored
+class LegacyProxyServer(proxy: Proxy, serverName: String) : Closeable {
+  private val server: Server =
+      InProcessServerBuilder.forName(serverName)
+          .addService(ServerInterceptors.intercept(LegacyProxyService(ProxyServiceImpl(proxy)),
+                                                   ProxyInterceptor(proxy)))
+          .addTransportFilter(ProxyTransportFilter(proxy))
+          .build()
+          .start()
+
+  override fun close() {
+    server.shutdownNow()
+  }
+
+  private class LegacyProxyService(private val delegate: ProxyServiceImpl) : ProxyServiceGrpc.ProxyServiceImplBase() {
+    override fun connectAgent(request: Empty, responseObserver: StreamObserver<Empty>) =
+        delegate.connectAgent(request, responseObserver)
+
+    override fun registerAgent(request: RegisterAgentRequest, responseObserver: StreamObserver<RegisterAgentResponse>) =
+        delegate.registerAgent(request.toBuilder().clearParentAgentId().build(), responseObserver)
+
+    override fun registerPath(request: RegisterPathRequest, responseObserver: StreamObserver<RegisterPathResponse>) =
+        delegate.registerPath(request, responseObserver)
+
+    override fun unregisterPath(request: UnregisterPathRequest,
+                                responseObserver: StreamObserver<UnregisterPathResponse>) =
+        delegate.unregisterPath(request, responseObserver)
+
+    override fun pathMapSize(request: PathMapSizeRequest, responseObserver: StreamObserver<PathMapSizeResponse>) =
+        delegate.pathMapSize(request, responseObserver)
+
+    override fun sendHeartBeat(request: HeartBeatRequest, responseObserver: StreamObserver<HeartBeatResponse>) =
+        delegate.sendHeartBeat(request, responseObserver)
+
+    override fun readRequestsFromProxy(agentInfo: AgentInfo, responseObserver: StreamObserver<ScrapeRequest>) =
+        delegate.readRequestsFromProxy(agentInfo, responseObserver)
+
+    override fun writeResponsesToProxy(responseObserver: StreamObserver<Empty>): StreamObserver<ScrapeResponse> =
+        delegate.writeResponsesToProxy(responseObserver)
+
+    override fun writeChunkedResponsesToProxy(responseObserver: StreamObserver<Empty>): StreamObserver<ChunkedScrapeResponse> =
+        delegate.writeChunkedResponsesToProxy(responseObserver)
+  }
+}
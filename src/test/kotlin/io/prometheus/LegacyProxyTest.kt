@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.coroutine.delay
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import com.github.pambrose.common.util.simpleClassName
+import io.ktor.application.call
+import io.ktor.client.response.readText
+import io.ktor.http.ContentType.Text
+import io.ktor.http.HttpStatusCode
+import io.ktor.response.respondText
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import mu.KLogging
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.time.milliseconds
+import kotlin.time.seconds
+
+// Agents with newer transport features enabled, connected to a proxy without them
+class LegacyProxyTest {
+
+  @Test
+  fun scrapeStreamFallbackTest() {
+    val agent =
+        startAgent(serverName = LEGACY_SERVER_NAME,
+                   argv = listOf("-Dagent.internal.scrapeStreamEnabled=true"))
+            .apply { awaitInitialConnection(10.seconds) }
+
+    try {
+      // The UNIMPLEMENTED answer to scrapeStream makes the agent reconnect with the separate streams
+      awaitCondition { !agent.grpcService.useScrapeStream }
+      agent.grpcService.useScrapeStream shouldEqual false
+      scrapeAfterReconnect(agent) shouldEqual true
+    } finally {
+      agent.stopSync()
+    }
+  }
+
+  @Test
+  fun subConnectionFallbackTest() {
+    val agent =
+        startAgent(serverName = LEGACY_SERVER_NAME, argv = listOf("-Dagent.transport.channelCount=3"))
+            .apply { awaitInitialConnection(10.seconds) }
+
+    try {
+      // The extra channels are closed, so the proxy drops the agent contexts it created for them
+      awaitCondition {
+        agent.grpcService.subConnections.isEmpty() && proxy.agentContextManager.agentContextSize == 1
+      }
+      agent.grpcService.subConnections.size shouldEqual 0
+      agent.grpcService.scrapeConnections.size shouldEqual 1
+      proxy.agentContextManager.agentContextSize shouldEqual 1
+      scrapeAfterReconnect(agent) shouldEqual true
+    } finally {
+      agent.stopSync()
+    }
+  }
+
+  companion object : KLogging() {
+    private const val LEGACY_SERVER_NAME = "legacy-proxy"
+    private const val EXPORTER_PORT = 12500
+    private const val EXPORTER_PATH = "legacy-metrics"
+    private const val PROXY_PATH = "legacy-path"
+    private const val CONTENT = "This is the content for a legacy proxy\n"
+
+    private lateinit var proxy: Proxy
+    private lateinit var legacyServer: LegacyProxyServer
+
+    private val httpServer =
+        embeddedServer(CIO, port = EXPORTER_PORT) {
+          routing {
+            get("/$EXPORTER_PATH") {
+              call.respondText(CONTENT, Text.Plain)
+            }
+          }
+        }
+
+    private fun awaitCondition(condition: () -> Boolean) =
+        runBlocking {
+          withTimeoutOrNull(15.seconds.toLongMilliseconds()) {
+            while (!condition())
+              delay(100.milliseconds)
+          }
+        }
+
+    // The path is registered again after each reconnect, so the scrape is retried until one gets through
+    private fun scrapeAfterReconnect(agent: Agent): Boolean {
+      var scraped = false
+      awaitCondition {
+        try {
+          agent.pathManager.registerPath("/$PROXY_PATH", "$EXPORTER_PORT/$EXPORTER_PATH".fixUrl())
+          blockingGet("$PROXY_PORT/$PROXY_PATH".fixUrl()) { response ->
+            scraped = response.status == HttpStatusCode.OK && response.readText() == CONTENT
+          }
+        } catch (e: Exception) {
+          logger.info { "Scrape before reconnect failed: ${e.simpleClassName}" }
+        }
+        scraped
+      }
+      return scraped
+    }
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      proxy = startProxy("legacy-proxy-current")
+      legacyServer = LegacyProxyServer(proxy, LEGACY_SERVER_NAME)
+      httpServer.start()
+      logger.info { "Started ${proxy.simpleClassName} behind $LEGACY_SERVER_NAME" }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      httpServer.stop(1, 1, SECONDS)
+      legacyServer.close()
+      proxy.stopSync()
+    }
+  }
+}
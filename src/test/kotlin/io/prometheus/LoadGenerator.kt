@@ -0,0 +1,268 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.beust.jcommander.JCommander
+import com.beust.jcommander.Parameter
+import com.github.pambrose.common.dsl.KtorDsl.get
+import com.github.pambrose.common.dsl.KtorDsl.http
+import com.github.pambrose.common.dsl.KtorDsl.newHttpClient
+import io.ktor.application.call
+import io.ktor.client.HttpClient
+import io.ktor.client.response.readBytes
+import io.ktor.http.ContentType.Text
+import io.ktor.http.isSuccess
+import io.ktor.response.respondText
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import mu.KLogging
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.Locale
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.seconds
+
+class LoadGeneratorOptions {
+  @Parameter(names = ["--agents"], description = "Number of agents")
+  var agentCount = 4
+
+  @Parameter(names = ["--paths"], description = "Paths registered by each agent")
+  var pathsPerAgent = 10
+
+  @Parameter(names = ["--transport"], description = "Agent transport: inprocess or netty")
+  var transport = "inprocess"
+
+  @Parameter(names = ["--qps"], description = "Scrapes per second sent to the proxy")
+  var qps = 200
+
+  @Parameter(names = ["--duration"], description = "Measured run time (secs)")
+  var durationSecs = 60
+
+  @Parameter(names = ["--warmup"], description = "Unmeasured run time before the measured run (secs)")
+  var warmupSecs = 10
+
+  @Parameter(names = ["--series"], description = "Series counts of the exporter pages, assigned to paths in turn")
+  var seriesCounts = "100,1000,10000"
+
+  @Parameter(names = ["--max-inflight"], description = "Scrapes in flight before new ones are dropped")
+  var maxInFlight = 512
+
+  @Parameter(names = ["--chunk"], description = "Agent chunk size (KBs), -1 uses the default")
+  var chunkContentSizeKbs = -1
+
+  @Parameter(names = ["--exporter-port"], description = "Synthetic exporter listen port")
+  var exporterPort = 12200
+
+  @Parameter(names = ["--output"], description = "File the JSON report is also written to")
+  var output = ""
+
+  @Parameter(names = ["-h", "--help"], help = true)
+  var usage = false
+}
+
+// Allocation is summed over live threads, so bytes allocated by threads that exit during the run are missed
+class JvmSnapshot(val nanos: Long = System.nanoTime(),
+                  val allocatedBytes: Long = allocatedBytes(),
+                  val gcCount: Long = ManagementFactory.getGarbageCollectorMXBeans().map { it.collectionCount }.sum(),
+                  val gcMillis: Long = ManagementFactory.getGarbageCollectorMXBeans().map { it.collectionTime }.sum()) {
+  companion object {
+    private fun allocatedBytes(): Long =
+        (ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean)
+            ?.takeIf { it.isThreadAllocatedMemorySupported }
+            ?.run { getThreadAllocatedBytes(allThreadIds).filter { it > 0 }.sum() }
+            ?: -1L
+  }
+}
+
+// Starts a proxy, agents and a synthetic exporter in one JVM and drives scrapes at the proxy at a fixed rate.
+// Latency is measured from when each scrape was due, so a stalled proxy is not hidden by a stalled client.
+// Run with: ./gradlew loadTest --args="--agents 8 --qps 500 --transport netty"
+object LoadGenerator : KLogging() {
+
+  @JvmStatic
+  fun main(argv: Array<String>) {
+    val options = LoadGeneratorOptions()
+    JCommander.newBuilder().addObject(options).build()
+        .apply {
+          programName = LoadGenerator::class.java.simpleName
+          parse(*argv)
+          if (options.usage) {
+            usage()
+            return
+          }
+        }
+
+    val seriesCounts = options.seriesCounts.split(",").map { it.trim().toInt() }
+    val pages = ConcurrentHashMap<Int, String>()
+    val exporter =
+        embeddedServer(CIO, port = options.exporterPort) {
+          routing {
+            get("/series/{count}") {
+              val count = call.parameters["count"]!!.toInt()
+              call.respondText(pages.computeIfAbsent(count) { Payloads.exposition(it) }, Text.Plain)
+            }
+          }
+        }.apply { start() }
+
+    val serverName = if (options.transport == "netty") "" else "load-generator"
+    val proxy = startProxy(serverName)
+    val agents =
+        List(options.agentCount) {
+          startAgent(serverName = serverName, chunkContentSizeKbs = options.chunkContentSizeKbs)
+        }
+
+    try {
+      val paths =
+          agents.mapIndexed { i, agent ->
+            agent.awaitInitialConnection(30.seconds)
+            List(options.pathsPerAgent) { j ->
+              val seriesCount = seriesCounts[(i * options.pathsPerAgent + j) % seriesCounts.size]
+              "load-$i-$j".also {
+                agent.pathManager.registerPath(it, "${options.exporterPort}/series/$seriesCount".fixUrl())
+              }
+            }
+          }.flatten()
+
+      runBlocking {
+        newHttpClient()
+            .use { httpClient ->
+              logger.info { "Warming up for ${options.warmupSecs} secs" }
+              drive(httpClient, paths, options, options.warmupSecs, LatencyRecorder(0))
+
+              logger.info { "Running for ${options.durationSecs} secs at ${options.qps} scrapes/sec" }
+              val recorder = LatencyRecorder(options.qps * options.durationSecs)
+              val before = JvmSnapshot()
+              val counts = drive(httpClient, paths, options, options.durationSecs, recorder)
+              val report = report(options, paths.size, recorder, counts, before, JvmSnapshot())
+
+              logger.info { "\n$report" }
+              if (options.output.isNotEmpty())
+                File(options.output).writeText(report)
+            }
+      }
+    } finally {
+      agents.forEach { it.stopSync() }
+      proxy.stopSync()
+      exporter.stop(1, 1, SECONDS)
+    }
+  }
+
+  class Counts {
+    val errors = AtomicLong(0)
+    val dropped = AtomicLong(0)
+    val bytes = AtomicLong(0)
+  }
+
+  // Issues scrapes on a fixed schedule, whether or not earlier ones have completed
+  private suspend fun drive(httpClient: HttpClient,
+                            paths: List<String>,
+                            options: LoadGeneratorOptions,
+                            secs: Int,
+                            recorder: LatencyRecorder): Counts {
+    val counts = Counts()
+    val inFlight = AtomicInteger(0)
+    val intervalNanos = SECONDS.toNanos(1) / options.qps
+    val start = System.nanoTime()
+
+    coroutineScope {
+      for (i in 0 until options.qps.toLong() * secs) {
+        val due = start + i * intervalNanos
+        val wait = NANOSECONDS.toMillis(due - System.nanoTime())
+        if (wait > 0)
+          delay(wait)
+
+        if (inFlight.incrementAndGet() > options.maxInFlight) {
+          inFlight.decrementAndGet()
+          counts.dropped.incrementAndGet()
+          continue
+        }
+
+        launch(Dispatchers.IO) {
+          try {
+            http(httpClient) {
+              get("${TestConstants.PROXY_PORT}/${paths[(i % paths.size).toInt()]}".fixUrl()) { response ->
+                val body = response.readBytes()
+                if (response.status.isSuccess()) {
+                  recorder.record(System.nanoTime() - due)
+                  counts.bytes.addAndGet(body.size.toLong())
+                }
+                else {
+                  counts.errors.incrementAndGet()
+                }
+              }
+            }
+          } catch (e: Exception) {
+            counts.errors.incrementAndGet()
+          } finally {
+            inFlight.decrementAndGet()
+          }
+        }
+      }
+    }
+    return counts
+  }
+
+  private fun report(options: LoadGeneratorOptions,
+                     pathCount: Int,
+                     recorder: LatencyRecorder,
+                     counts: Counts,
+                     before: JvmSnapshot,
+                     after: JvmSnapshot): String {
+    val elapsedSecs = (after.nanos - before.nanos) / 1e9
+    val (p50, p99, p999, max) = recorder.percentiles(0.5, 0.99, 0.999, 1.0).map { it / 1e6 }
+    val allocationRate =
+        if (before.allocatedBytes < 0) -1.0 else (after.allocatedBytes - before.allocatedBytes) / elapsedSecs / 1e6
+    val gcMillis = after.gcMillis - before.gcMillis
+
+    return """
+      {
+        "transport": "${options.transport}",
+        "agents": ${options.agentCount},
+        "paths": $pathCount,
+        "targetQps": ${options.qps},
+        "completed": ${recorder.count},
+        "errors": ${counts.errors.get()},
+        "dropped": ${counts.dropped.get()},
+        "throughputQps": ${format("%.1f", recorder.count / elapsedSecs)},
+        "throughputMBps": ${format("%.2f", counts.bytes.get() / elapsedSecs / 1e6)},
+        "latencyMillis": { "p50": ${format("%.2f", p50)}, "p99": ${format("%.2f", p99)}, "p999": ${format("%.2f", p999)}, "max": ${format("%.2f", max)} },
+        "allocationMBps": ${format("%.1f", allocationRate)},
+        "gcCount": ${after.gcCount - before.gcCount},
+        "gcMillis": $gcMillis,
+        "gcPercent": ${format("%.2f", gcMillis / 10.0 / elapsedSecs)}
+      }
+    """.trimIndent()
+  }
+
+  // The report is JSON, so a locale with a decimal comma must not change the numbers
+  private fun format(pattern: String, value: Double) = String.format(Locale.ROOT, pattern, value)
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.util.simpleClassName
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+
+class NettyTestTransportTest : CommonTests(agent,
+                                           ProxyCallTestArgs(agent,
+                                                             httpServerCount = 5,
+                                                             pathCount = 50,
+                                                             sequentialQueryCount = 200,
+                                                             parallelQueryCount = 20,
+                                                             startPort = 12700,
+                                                             caller = simpleClassName)) {
+
+  companion object : CommonCompanion() {
+
+    // Epoll falls back to NIO where the native transport is unavailable, so this also runs off Linux
+    private val proxyArgs =
+        listOf("-Dproxy.transport.executorType=fixed",
+               "-Dproxy.transport.executorThreads=4",
+               "-Dproxy.transport.bossThreads=1",
+               "-Dproxy.transport.workerThreads=2",
+               "-Dproxy.transport.epollEnabled=true",
+               "-Dproxy.http.connectionGroupSize=1",
+               "-Dproxy.http.workerGroupSize=2",
+               "-Dproxy.http.callGroupSize=4")
+
+    private val agentArgs =
+        listOf("-Dagent.transport.executorType=forkjoin",
+               "-Dagent.transport.executorThreads=2",
+               "-Dagent.transport.workerThreads=2",
+               "-Dagent.transport.epollEnabled=true")
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() = setItUp({ startProxy(argv = proxyArgs) },
+                          { startAgent(chunkContentSizeKbs = 5, argv = agentArgs) })
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.netty.channel.MultithreadEventLoopGroup
+import io.netty.channel.epoll.Epoll
+import io.netty.channel.nio.NioEventLoopGroup
+import io.netty.channel.socket.nio.NioServerSocketChannel
+import io.prometheus.common.NettyTransports
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ThreadPoolExecutor
+
+class NettyTransportsTest {
+
+  @Test
+  fun executorTypeTest() {
+    NettyTransports("executor-test", false).apply {
+      try {
+        newExecutor("default", 4) shouldEqual null
+        newExecutor("direct", 4) shouldEqual null
+        (newExecutor("fixed", 3) as ThreadPoolExecutor).maximumPoolSize shouldEqual 3
+        (newExecutor("FORKJOIN", 2) as ForkJoinPool).parallelism shouldEqual 2
+        (newExecutor("fixed", -1) as ThreadPoolExecutor).maximumPoolSize shouldEqual
+            Runtime.getRuntime().availableProcessors()
+
+        var failed = false
+        try {
+          newExecutor("bogus", 1)
+        } catch (e: IllegalArgumentException) {
+          failed = true
+        }
+        failed shouldEqual true
+      } finally {
+        shutDown()
+      }
+    }
+  }
+
+  @Test
+  fun eventLoopGroupTest() {
+    NettyTransports("nio-test", false).apply {
+      try {
+        useEpoll shouldEqual false
+        serverChannelType shouldEqual NioServerSocketChannel::class.java
+        (newEventLoopGroup("worker", 2) as NioEventLoopGroup).executorCount() shouldEqual 2
+      } finally {
+        shutDown()
+      }
+    }
+  }
+
+  @Test
+  fun epollFallbackTest() {
+    // Epoll is only used where the native transport loads, otherwise NIO is used
+    NettyTransports("epoll-test", true).apply {
+      try {
+        useEpoll shouldEqual Epoll.isAvailable()
+        (newEventLoopGroup("worker", 1) as MultithreadEventLoopGroup).executorCount() shouldEqual 1
+      } finally {
+        shutDown()
+      }
+    }
+  }
+
+  @Test
+  fun shutDownTest() {
+    NettyTransports("shutdown-test", false).apply {
+      val executor = newExecutor("fixed", 1)!!
+      val group = newEventLoopGroup("worker", 1)
+      shutDown()
+      executor.isShutdown shouldEqual true
+      group.isShuttingDown shouldEqual true
+    }
+  }
+}
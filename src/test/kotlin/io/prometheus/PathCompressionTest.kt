@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.agent.PathCompression
+import io.prometheus.agent.PathCompression.Codec.ADAPTIVE
+import io.prometheus.agent.PathCompression.Codec.GZIP
+import io.prometheus.agent.PathCompression.Codec.NONE
+import io.prometheus.agent.PathCompression.Decision.GZIPPED
+import io.prometheus.agent.PathCompression.Decision.PROBED
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_ADAPTIVE
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_CODEC
+import io.prometheus.agent.PathCompression.Decision.SKIPPED_SIZE
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+
+class PathCompressionTest {
+
+  @Test
+  fun staticCodecTest() {
+    PathCompression(NONE, -1, 512).decide(10_000, 0.0) shouldEqual SKIPPED_CODEC
+    PathCompression(GZIP, -1, 512).decide(512, 0.0) shouldEqual SKIPPED_SIZE
+
+    // Gzip is used regardless of how poorly it does
+    PathCompression(GZIP, -1, 512).apply {
+      record(10_000, 10_000, 1_000_000)
+      decide(10_000, 0.0) shouldEqual GZIPPED
+    }
+  }
+
+  @Test
+  fun incompressibleContentTest() {
+    PathCompression(ADAPTIVE, -1, 512, 0.9).apply {
+      // Nothing is known about the path yet
+      decide(10_000, 0.0) shouldEqual GZIPPED
+      record(10_000, 9_800, 100_000)
+      decide(10_000, 0.0) shouldEqual SKIPPED_ADAPTIVE
+    }
+  }
+
+  @Test
+  fun slowCompressionTest() {
+    PathCompression(ADAPTIVE, -1, 512, 0.9).apply {
+      // Zipping costs 100ns per byte and saves half the bytes
+      record(10_000, 5_000, 1_000_000)
+      // A slow link makes that worthwhile and a fast one does not
+      decide(10_000, 1_000.0) shouldEqual GZIPPED
+      decide(10_000, 10.0) shouldEqual SKIPPED_ADAPTIVE
+    }
+  }
+
+  @Test
+  fun probeTest() {
+    PathCompression(ADAPTIVE, -1, 512, 0.9).apply {
+      record(10_000, 10_000, 100_000)
+      val decisions = (1..32).map { decide(10_000, 0.0) }
+      decisions.count { it == PROBED } shouldEqual 2
+      decisions.count { it == SKIPPED_ADAPTIVE } shouldEqual 30
+    }
+  }
+
+  @Test
+  fun codecOfTest() {
+    PathCompression.codecOf("gzip") shouldEqual GZIP
+    PathCompression.codecOf("Adaptive") shouldEqual ADAPTIVE
+  }
+}
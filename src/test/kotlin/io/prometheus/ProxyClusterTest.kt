@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.coroutine.delay
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import com.github.pambrose.common.util.simpleClassName
+import io.ktor.application.call
+import io.ktor.client.response.readText
+import io.ktor.http.ContentType.Text
+import io.ktor.http.HttpStatusCode
+import io.ktor.response.respondText
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.TestConstants.CLUSTER_A_CONFIG_ARG
+import io.prometheus.TestConstants.CLUSTER_B_CONFIG_ARG
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import mu.KLogging
+import org.amshove.kluent.shouldEqual
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.time.milliseconds
+import kotlin.time.seconds
+
+class ProxyClusterTest {
+
+  @Test
+  fun forwardedScrapeTest() {
+    val content = "This is the content for a path owned by a peer proxy\n"
+    val httpServer =
+        embeddedServer(CIO, port = EXPORTER_PORT) {
+          routing {
+            get("/$EXPORTER_PATH") {
+              call.respondText(content, Text.Plain)
+            }
+          }
+        }.apply { start() }
+
+    try {
+      agent.pathManager.registerPath("/$PROXY_PATH", "$EXPORTER_PORT/$EXPORTER_PATH".fixUrl())
+
+      // Wait for proxyB to learn the path from proxyA
+      runBlocking {
+        withTimeoutOrNull(10.seconds.toLongMilliseconds()) {
+          while (proxyB.clusterManager.peerFor(PROXY_PATH) == null)
+            delay(100.milliseconds)
+        }
+      }
+      proxyB.clusterManager.peerFor(PROXY_PATH).shouldNotBeNull()
+
+      blockingGet("$PROXY_B_PORT/$PROXY_PATH".fixUrl()) { response ->
+        response.status shouldEqual HttpStatusCode.OK
+        response.readText() shouldEqual content
+      }
+
+      blockingGet("$PROXY_B_PORT/not_owned_by_anyone".fixUrl()) { response ->
+        response.status shouldEqual HttpStatusCode.NotFound
+      }
+
+      agent.pathManager.unregisterPath("/$PROXY_PATH")
+    } finally {
+      httpServer.stop(1, 1, SECONDS)
+    }
+  }
+
+  companion object : KLogging() {
+    private const val PROXY_B_PORT = PROXY_PORT + 1
+    private const val EXPORTER_PORT = 11500
+    private const val EXPORTER_PATH = "cluster-metrics"
+    private const val PROXY_PATH = "cluster-path"
+
+    private lateinit var proxyA: Proxy
+    private lateinit var proxyB: Proxy
+    private lateinit var agent: Agent
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+
+      runBlocking {
+        launch(Dispatchers.Default) {
+          proxyA = startProxy("clusterA", configArg = CLUSTER_A_CONFIG_ARG)
+        }
+        launch(Dispatchers.Default) {
+          proxyB = startProxy("clusterB",
+                              proxyHttpPort = PROXY_B_PORT,
+                              configArg = CLUSTER_B_CONFIG_ARG)
+        }
+      }
+
+      agent = startAgent(serverName = "clusterA").apply { awaitInitialConnection(10.seconds) }
+
+      logger.info { "Started ${proxyA.simpleClassName}, ${proxyB.simpleClassName} and ${agent.simpleClassName}" }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      runBlocking {
+        for (service in listOf(agent, proxyA, proxyB))
+          launch(Dispatchers.Default) { service.stopSync() }
+      }
+    }
+  }
+}
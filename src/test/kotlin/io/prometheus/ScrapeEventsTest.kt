@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.ScrapeEvents
+import io.prometheus.common.ScrapeEvents.Stage.CHUNK_SENT
+import io.prometheus.common.ScrapeEvents.Stage.FETCH
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+import java.nio.file.Files
+
+class ScrapeEventsTest {
+
+  @Test
+  fun disabledTest() {
+    // Without a recording the events are neither filled in nor committed
+    ScrapeEvents.isEnabled(CHUNK_SENT) shouldEqual false
+    ScrapeEvents.begin(FETCH) shouldEqual null
+    ScrapeEvents.emit(CHUNK_SENT, 1, "metrics", "agent", 10)
+  }
+
+  @Test
+  fun recordedTest() {
+    val file = Files.createTempFile("scrape-events", ".jfr")
+    try {
+      Recording().use { recording ->
+        recording.enable("io.prometheus.ScrapeChunkSent")
+        recording.enable("io.prometheus.ScrapeFetch")
+        recording.start()
+        ScrapeEvents.isEnabled(CHUNK_SENT) shouldEqual true
+        ScrapeEvents.emit(CHUNK_SENT, 7, "metrics", "agent1", 1024)
+        ScrapeEvents.end(ScrapeEvents.begin(FETCH), 7, "metrics", "agent1", 2048)
+        recording.stop()
+        recording.dump(file)
+      }
+
+      val events = RecordingFile.readAllEvents(file).associateBy { it.eventType.name }
+      events.getValue("io.prometheus.ScrapeChunkSent").apply {
+        getLong("scrapeId") shouldEqual 7L
+        getString("path") shouldEqual "metrics"
+        getString("agentId") shouldEqual "agent1"
+        getLong("byteCount") shouldEqual 1024L
+      }
+      events.getValue("io.prometheus.ScrapeFetch").getLong("byteCount") shouldEqual 2048L
+    } finally {
+      Files.deleteIfExists(file)
+    }
+  }
+}
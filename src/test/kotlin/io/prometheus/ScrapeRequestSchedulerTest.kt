@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.typesafe.config.ConfigFactory
+import io.prometheus.common.ConfigVals
+import io.prometheus.proxy.ScrapeRequestScheduler
+import io.prometheus.proxy.ScrapeSchedulingPolicy
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+
+class ScrapeRequestSchedulerTest {
+
+  private class Request(val path: String)
+
+  private fun newScheduler(scheduling: String): ScrapeRequestScheduler<Request> {
+    val config = ConfigFactory.parseString("proxy.scheduling { $scheduling }")
+    val configVals = ConfigVals(config.withFallback(ConfigFactory.load().resolve()).resolve())
+    return ScrapeRequestScheduler(ScrapeSchedulingPolicy(configVals.proxy.scheduling)) { it.path }
+  }
+
+  private fun ScrapeRequestScheduler<Request>.offerAll(vararg paths: String) =
+      paths.map { Request(it).also { request -> offer(request) } }
+
+  private fun ScrapeRequestScheduler<Request>.pollPaths(count: Int) = List(count) { poll()?.path }
+
+  @Test
+  fun weightedRoundRobinTest() {
+    val scheduler = newScheduler("""priorityClasses = [{pattern = "high.*", weight = 3}], defaultWeight = 1""")
+    repeat(4) { scheduler.offerAll("high", "low") }
+
+    scheduler.pollPaths(8) shouldEqual listOf("high", "high", "high", "low", "high", "low", "low", "low")
+    scheduler.poll().shouldBeNull()
+    scheduler.queuedCount shouldEqual 0
+    scheduler.inFlightCount shouldEqual 8
+  }
+
+  @Test
+  fun maxInFlightPerAgentTest() {
+    val scheduler = newScheduler("maxInFlightPerAgent = 2, priorityClasses = []")
+    scheduler.offerAll("a", "b", "c")
+
+    val first = scheduler.poll()!!
+    scheduler.poll()!!.path shouldEqual "b"
+    // The agent is at its limit, so the third request waits until a slot frees up
+    scheduler.poll().shouldBeNull()
+    scheduler.queuedCount shouldEqual 1
+
+    scheduler.complete(first) shouldEqual true
+    scheduler.poll()!!.path shouldEqual "c"
+    scheduler.complete(first) shouldEqual false
+  }
+
+  @Test
+  fun maxInFlightPerPathTest() {
+    val scheduler = newScheduler("maxInFlightPerPath = 1, priorityClasses = []")
+    scheduler.offerAll("a", "a", "b")
+
+    val first = scheduler.poll()!!
+    first.path shouldEqual "a"
+    // The second request for a is passed over for b
+    scheduler.poll()!!.path shouldEqual "b"
+    scheduler.poll().shouldBeNull()
+
+    scheduler.complete(first)
+    scheduler.poll()!!.path shouldEqual "a"
+  }
+
+  @Test
+  fun saturatedGroupTest() {
+    val scheduler =
+        newScheduler("""maxInFlightPerPath = 1, priorityClasses = [{pattern = "bulk.*", weight = 4}]""")
+    repeat(10) { scheduler.offerAll("bulk") }
+    scheduler.offerAll("x", "y", "z")
+
+    // The bulk group is held at its path limit, so it does not stop the default group from being served
+    scheduler.pollPaths(5) shouldEqual listOf("bulk", "x", "y", "z", null)
+    scheduler.queuedCount shouldEqual 9
+  }
+
+  @Test
+  fun floodTest() {
+    val scheduler = newScheduler("""priorityClasses = [{pattern = "bulk.*", weight = 4}], defaultWeight = 1""")
+    repeat(100) { scheduler.offerAll("bulk") }
+    scheduler.offerAll("urgent")
+
+    // A flood of bulk requests delays the other class by at most one round
+    scheduler.pollPaths(5) shouldEqual listOf("bulk", "bulk", "bulk", "bulk", "urgent")
+  }
+
+  @Test
+  fun completeQueuedTest() {
+    val scheduler = newScheduler("priorityClasses = []")
+    val (a, b) = scheduler.offerAll("a", "b")
+
+    // An abandoned request is dropped from the queue before it is dispatched
+    scheduler.complete(a) shouldEqual true
+    scheduler.queuedCount shouldEqual 1
+    scheduler.poll() shouldEqual b
+  }
+}
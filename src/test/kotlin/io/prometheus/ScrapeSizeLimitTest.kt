@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import com.github.pambrose.common.util.simpleClassName
+import io.ktor.application.call
+import io.ktor.client.response.readText
+import io.ktor.http.ContentType.Text
+import io.ktor.http.HttpStatusCode
+import io.ktor.response.respondText
+import io.ktor.response.respondTextWriter
+import io.ktor.routing.get
+import io.ktor.routing.routing
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import mu.KLogging
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.time.seconds
+
+// maxScrapeSizeBytes limits uncompressed content on both the agent and the proxy
+class ScrapeSizeLimitTest {
+
+  @Test
+  fun agentLimitTest() {
+    val agent =
+        startAgent(serverName = SERVER_NAME, argv = listOf("-Dagent.maxScrapeSizeBytes=$AGENT_MAX_BYTES"))
+            .apply { awaitInitialConnection(10.seconds) }
+
+    try {
+      agent.registerPaths("agent")
+      scrape("agent-small") shouldEqual (HttpStatusCode.OK to SMALL_CONTENT)
+      // Refused from the declared length, and while reading when there is none
+      scrape("agent-large").first shouldEqual HttpStatusCode.BadGateway
+      scrape("agent-large-undeclared").first shouldEqual HttpStatusCode.BadGateway
+    } finally {
+      agent.stopSync()
+    }
+  }
+
+  @Test
+  fun proxyLimitTest() {
+    val agent = startAgent(serverName = SERVER_NAME).apply { awaitInitialConnection(10.seconds) }
+
+    try {
+      agent.registerPaths("proxy")
+      // Zipped content above the spill threshold is unzipped while it is streamed to the client
+      scrape("proxy-large") shouldEqual (HttpStatusCode.OK to LARGE_CONTENT)
+      scrape("proxy-large-undeclared") shouldEqual (HttpStatusCode.OK to LARGE_CONTENT)
+      scrape("proxy-oversized").first shouldEqual HttpStatusCode.BadGateway
+    } finally {
+      agent.stopSync()
+    }
+  }
+
+  companion object : KLogging() {
+    private const val SERVER_NAME = "size-limit-proxy"
+    private const val EXPORTER_PORT = 12600
+    private const val AGENT_MAX_BYTES = 10_000
+    private const val PROXY_MAX_BYTES = 100_000
+    private val SMALL_CONTENT = Payloads.exposition(50)
+    private val LARGE_CONTENT = Payloads.exposition(500)
+    private val OVERSIZED_CONTENT = Payloads.exposition(5000)
+
+    private lateinit var proxy: Proxy
+
+    private val httpServer =
+        embeddedServer(CIO, port = EXPORTER_PORT) {
+          routing {
+            get("/small") { call.respondText(SMALL_CONTENT, Text.Plain) }
+            get("/large") { call.respondText(LARGE_CONTENT, Text.Plain) }
+            get("/large-undeclared") { call.respondTextWriter(Text.Plain) { write(LARGE_CONTENT) } }
+            get("/oversized") { call.respondText(OVERSIZED_CONTENT, Text.Plain) }
+          }
+        }
+
+    private fun Agent.registerPaths(prefix: String) =
+        listOf("small", "large", "large-undeclared", "oversized")
+            .forEach { pathManager.registerPath("/$prefix-$it", "$EXPORTER_PORT/$it".fixUrl()) }
+
+    private fun scrape(path: String): Pair<HttpStatusCode, String> {
+      var result = HttpStatusCode.InternalServerError to ""
+      blockingGet("$PROXY_PORT/$path".fixUrl()) { response ->
+        result = response.status to response.readText()
+      }
+      return result
+    }
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      // Zipped LARGE_CONTENT is well above the spill threshold, so it takes the streamed path
+      proxy = startProxy(SERVER_NAME,
+                         argv = listOf("-Dproxy.internal.spillThresholdBytes=1024",
+                                       "-Dproxy.internal.maxScrapeSizeBytes=$PROXY_MAX_BYTES"))
+      httpServer.start()
+      logger.info { "Started ${proxy.simpleClassName} with exporter on $EXPORTER_PORT" }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      httpServer.stop(1, 1, SECONDS)
+      proxy.stopSync()
+    }
+  }
+}
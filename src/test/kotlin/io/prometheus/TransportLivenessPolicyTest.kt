@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.typesafe.config.ConfigFactory
+import io.prometheus.common.ConfigVals
+import io.prometheus.proxy.TransportLivenessPolicy
+import io.prometheus.proxy.TransportLivenessPolicy.Companion.DEFAULT_PERMIT_KEEPALIVE_TIME_SECS
+import org.amshove.kluent.shouldEqual
+import org.junit.jupiter.api.Test
+
+class TransportLivenessPolicyTest {
+
+  private fun newPolicy(transport: String): TransportLivenessPolicy {
+    val config = ConfigFactory.parseString("proxy.transport { $transport }")
+    val configVals = ConfigVals(config.withFallback(ConfigFactory.load().resolve()).resolve())
+    return TransportLivenessPolicy(configVals.proxy.transport)
+  }
+
+  @Test
+  fun proxyKeepAliveDisabledTest() {
+    newPolicy("keepAliveTimeSecs = -1, permitKeepAliveTimeSecs = 10").isGranted(60) shouldEqual false
+  }
+
+  @Test
+  fun defaultPermitTimeTest() {
+    newPolicy("keepAliveTimeSecs = 30")
+        .apply {
+          permitKeepAliveTimeSecs shouldEqual DEFAULT_PERMIT_KEEPALIVE_TIME_SECS
+          // Shorter intervals would be answered with GOAWAY too_many_pings
+          isGranted(30) shouldEqual false
+          isRejected(30) shouldEqual true
+          isGranted(DEFAULT_PERMIT_KEEPALIVE_TIME_SECS) shouldEqual true
+          isRejected(DEFAULT_PERMIT_KEEPALIVE_TIME_SECS) shouldEqual false
+        }
+  }
+
+  @Test
+  fun configuredPermitTimeTest() {
+    newPolicy("keepAliveTimeSecs = 30, permitKeepAliveTimeSecs = 10")
+        .apply {
+          isGranted(9) shouldEqual false
+          isRejected(9) shouldEqual true
+          isGranted(10) shouldEqual true
+          isGranted(60) shouldEqual true
+        }
+  }
+
+  @Test
+  fun unreportedIntervalTest() {
+    // Agents without keepalive, or too old to report the interval, keep sending heartbeats
+    newPolicy("keepAliveTimeSecs = 30, permitKeepAliveTimeSecs = 10")
+        .apply {
+          isGranted(0) shouldEqual false
+          isRejected(0) shouldEqual false
+        }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+
+// Latencies are kept exactly, so the percentiles are not approximations
+class LatencyRecorder(capacity: Int) {
+  private val latencies = AtomicLongArray(capacity)
+  private val index = AtomicInteger(0)
+
+  val count get() = minOf(index.get(), latencies.length())
+
+  fun record(nanos: Long) {
+    val i = index.getAndIncrement()
+    if (i < latencies.length())
+      latencies.set(i, nanos)
+  }
+
+  fun percentiles(vararg quantiles: Double): List<Long> {
+    val sorted = LongArray(count) { latencies.get(it) }.apply { sort() }
+    return quantiles.map { q -> if (sorted.isEmpty()) 0L else sorted[minOf(sorted.size - 1, (q * sorted.size).toInt())] }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2019 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+// Exposition format content shaped like a node exporter page: counters and gauges with a few labels,
+// and histograms with a bucket line per bound
+object Payloads {
+  private val bounds = listOf("0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "+Inf")
+
+  fun exposition(seriesCount: Int): String =
+      buildString {
+        var series = 0
+        var family = 0
+        while (series < seriesCount) {
+          val name = "benchmark_family_$family"
+          when (family % 3) {
+            0 -> {
+              append("# HELP ${name}_total Total number of events for family $family\n")
+              append("# TYPE ${name}_total counter\n")
+              repeat(10) { i ->
+                append("${name}_total{instance=\"host-$i:9100\",job=\"node\",mode=\"user\"} ${family * 1000L + i}\n")
+              }
+              series += 10
+            }
+            1 -> {
+              append("# HELP $name Current value of family $family\n")
+              append("# TYPE $name gauge\n")
+              repeat(10) { i ->
+                append("$name{device=\"sda$i\",fstype=\"ext4\",mountpoint=\"/data/$i\"} ${family * 3.25 + i}\n")
+              }
+              series += 10
+            }
+            else -> {
+              append("# HELP ${name}_seconds Latency of family $family\n")
+              append("# TYPE ${name}_seconds histogram\n")
+              bounds.forEachIndexed { i, le ->
+                append("${name}_seconds_bucket{handler=\"/api/v1/query\",le=\"$le\"} ${i * 17L + family}\n")
+              }
+              append("${name}_seconds_sum{handler=\"/api/v1/query\"} ${family * 12.5}\n")
+              append("${name}_seconds_count{handler=\"/api/v1/query\"} ${bounds.size * 17L + family}\n")
+              series += bounds.size + 2
+            }
+          }
+          family++
+        }
+      }
+}
@@ -30,5 +30,10 @@ object TestConstants {
 
   val CONFIG_ARG = listOf("--config", "${if (File(travisFile).exists()) "" else ghPrefix}$travisFile")
 
+  // Lists such as priority classes and peers can't be set with -D, which parses values as properties
+  val SCHEDULING_CONFIG_ARG = listOf("--config", "etc/test-configs/scheduling-test.conf")
+  val CLUSTER_A_CONFIG_ARG = listOf("--config", "etc/test-configs/cluster-a-test.conf")
+  val CLUSTER_B_CONFIG_ARG = listOf("--config", "etc/test-configs/cluster-b-test.conf")
+
   val OPTIONS_CONFIG = "${if (File(junitFile).exists()) ghPrefix else ""}$junitFile"
 }
@@ -33,6 +33,8 @@ object TestUtils : KLogging() {
                  adminEnabled: Boolean = false,
                  debugEnabled: Boolean = false,
                  metricsEnabled: Boolean = false,
+                 proxyHttpPort: Int = PROXY_PORT,
+                 configArg: List<String> = TestConstants.CONFIG_ARG,
                  argv: List<String> = emptyList()): Proxy {
 
     logger.apply {
@@ -42,14 +44,14 @@ object TestUtils : KLogging() {
 
     val proxyOptions = ProxyOptions(mutableListOf<String>()
                                         .apply {
-                                          addAll(TestConstants.CONFIG_ARG)
+                                          addAll(configArg)
                                           addAll(argv)
                                           add("-Dproxy.admin.enabled=$adminEnabled")
                                           add("-Dproxy.admin.debugEnabled=$debugEnabled")
                                           add("-Dproxy.metrics.enabled=$metricsEnabled")
                                         })
     return Proxy(options = proxyOptions,
-                 proxyHttpPort = PROXY_PORT,
+                 proxyHttpPort = proxyHttpPort,
                  inProcessServerName = serverName,
                  testMode = true) { startSync() }
   }